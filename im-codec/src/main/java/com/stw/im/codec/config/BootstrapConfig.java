@@ -53,6 +53,41 @@ public class BootstrapConfig {
 
         private String logicUrl;
 
+        /**
+         * 负载上报zk的间隔 单位毫秒
+         */
+        private Long loadReportInterval = 5000L;
+
+        /**
+         * 每个客户端记录的最近messageId数, 用于拦截重发
+         */
+        private Integer recentMessageWindowSize;
+
+        /**
+         * 投递逻辑层消息的批量大小, 不配置或<=1不开启批量
+         */
+        private Integer mqBatchSize;
+
+        /**
+         * 批量最长等待时间 单位毫秒
+         */
+        private Integer mqBatchLingerMs;
+
+        /**
+         * 全员广播每批写出的连接数
+         */
+        private Integer broadcastBatchSize = 2000;
+
+        /**
+         * 全员广播两批之间的间隔 单位毫秒
+         */
+        private Integer broadcastBatchIntervalMs = 20;
+
+        /**
+         * 单聊/群聊/用户队列的分区数, 必须与逻辑层 logicPartitions 一致
+         */
+        private Integer logicPartitions = 1;
+
     }
 
     @Data
@@ -1,8 +1,10 @@
 package com.stw.im.codec.proto;
 
+import com.stw.im.common.model.UserClientDto;
 import lombok.Data;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * @author: stw
@@ -42,6 +44,16 @@ public class MessagePack<T> implements Serializable {
      */
     private T data;
 
+    /**
+     * 批量下发的接收端列表, 不为空时网关按列表逐个投递, 忽略 toId/clientType/imei
+     */
+    private List<UserClientDto> recipients;
+
+    /**
+     * 全员广播只下发给这些客户端类型, 为空时下发给所有端
+     */
+    private List<Integer> clientTypes;
+
 //    /** 用户签名*/
 //    private String userSign;
 
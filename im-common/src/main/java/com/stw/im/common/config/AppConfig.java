@@ -31,6 +31,12 @@ public class AppConfig {
     /** 如果选用一致性hash的话具体hash算法*/
     private Integer consistentHashWay;
 
+    /** 一致性hash每个节点的虚拟节点数*/
+    private Integer consistentHashVirtualNodeSize;
+
+    /** 负载感知路由常用节点的负载容忍倍数, 越大越倾向保持粘性*/
+    private Double routeStickyFactor;
+
     private String callbackUrl;
 
     private boolean modifyUserAfterCallback; //用户资料变更之后回调开关
@@ -63,8 +69,54 @@ public class AppConfig {
 
     private boolean sendMessageBeforeCallback;//发送单聊消息之前
 
+    private Integer callbackTimeoutMillis;//前置回调等待上限(毫秒), 超时按 callbackFailOpen 处理
+
+    private Boolean callbackFailOpen;//前置回调超时/失败/熔断时是否放行, 默认放行
+
+    private Integer callbackBreakerFailures;//连续失败多少次后熔断前置回调
+
+    private Long callbackBreakerOpenMillis;//熔断持续时间(毫秒), 到期后放一个请求探测
+
+    private Integer callbackBatchSize;//后置回调每次请求最多合并的事件数
+
+    private Long callbackBatchIntervalMillis;//后置回调合并发送的间隔(毫秒)
+
+    private Integer callbackQueueSize;//每个app+回调地址的内存队列长度, 满了写入磁盘
+
+    private Integer callbackMaxRetries;//后置回调失败重试次数, 超过后写入磁盘稍后重放
+
+    private Long callbackRetryBackoffMillis;//后置回调首次重试间隔(毫秒), 之后每次翻倍
+
+    private String callbackSpoolDir;//后置回调磁盘暂存目录
+
+    private Long callbackSpoolMaxBytes;//后置回调磁盘暂存上限(字节), 超过后丢弃
+
     private Integer deleteConversationSyncMode;
 
     private Integer offlineMessageCount;//离线消息最大条数
 
+    private Integer orderedLaneSize;//消息有序处理通道数
+
+    private Integer orderedLaneQueueSize;//每个通道的队列长度
+
+    private Integer logicPartitions;//单聊/群聊/用户队列的分区数, 必须与网关 logicPartitions 一致
+
+    private Long logicPartitionHeartbeatMillis;//分区分配的心跳间隔(毫秒), 超过3个间隔没有心跳的实例被移出, 其分区重新分配
+
+    private Integer seqLeaseStep;//序列号每次租用的号段长度, 不大于1时每次直接INCR
+
+    private Integer seqLeaseMillis;//序列号号段租约有效期(毫秒)
+
+    private String offlineMessageFormat;//离线消息引用的存储格式 json/binary
+
+    private Integer groupTimelineThreshold;//群成员数超过该值时离线消息改为群时间线存储, 不大于0关闭
+
+    private Long groupMemberCacheTrustMillis;//本地群成员快照免校验时间(毫秒), 超过后向redis确认版本号
+
+    private Long receiveAckFlushMillis;//累计接收确认合并转发的间隔(毫秒), 不大于0时每次确认立即转发
+
+    private Long readMarkFlushMillis;//已读标记合并写入的间隔(毫秒), 不大于0时每次已读同步写入
+
+    private Integer liveRoomMessageRate;//每个直播间每秒最多转发的消息数, 直播间按roomId分区只由一个实例处理, 超出的直接丢弃
+
 }
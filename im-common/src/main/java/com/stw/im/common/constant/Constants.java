@@ -55,6 +55,41 @@ public class Constants {
 
         public static final String OfflineMessage = "offlineMessage";
 
+        /**
+         * 离线消息共享的消息体，格式： appId + :offlineBody: + messageKey
+         */
+        public static final String OfflineBody = "offlineBody";
+
+        /**
+         * 群成员快照，格式： appId + :groupMember: + groupId
+         */
+        public static final String GroupMember = "groupMember";
+
+        /**
+         * 群成员快照版本号，格式： appId + :groupMemberVersion: + groupId
+         */
+        public static final String GroupMemberVersion = "groupMemberVersion";
+
+        /**
+         * 发送权限快照，格式： appId + :sendPermission: + 类型 + :id
+         */
+        public static final String SendPermission = "sendPermission";
+
+        /**
+         * 有直播间成员的网关，zset，score为网关最后一次心跳时间，格式： appId + :liveRoom: + roomId + :brokers
+         */
+        public static final String LiveRoom = "liveRoom";
+
+        /**
+         * 直播间网关登记的有效期，超过没有心跳的网关视为已下线
+         */
+        public static final long LiveRoomBrokerTtlMillis = 30000L;
+
+        /**
+         * 消费逻辑层分区队列的实例，zset，score为心跳时间
+         */
+        public static final String LogicPartitionMembers = "logicPartitionMembers";
+
         /**
          * seq 前缀
          */
@@ -79,6 +114,12 @@ public class Constants {
     public static final String OFFLINE_MSG_P2P_KEY_PREFIX = "offline:msg:p2p:";
     // 群聊离线消息键（新格式）
     public static final String OFFLINE_MSG_GROUP_KEY_PREFIX = "offline:msg:group:";
+    // 使用时间线存储的大群集合，格式：offline:msg:group:timelines:{appId}
+    public static final String OFFLINE_MSG_GROUP_TIMELINES_PREFIX = "offline:msg:group:timelines:";
+    // 大群成员的时间线游标（入群位置），格式：offline:msg:group:cursor:{appId}:{groupId}
+    public static final String OFFLINE_MSG_GROUP_CURSOR_PREFIX = "offline:msg:group:cursor:";
+    // 全员广播的离线消息（每个app只存一份），格式：offline:msg:broadcast:{appId}
+    public static final String OFFLINE_MSG_BROADCAST_KEY_PREFIX = "offline:msg:broadcast:";
 
     // 消息状态枚举
     public enum MsgStatus {
@@ -110,6 +151,18 @@ public class Constants {
 
         public static final String StoreGroupMessage = "storeGroupMessage";
 
+        /** 批量投递的消息头, 值为条数, 消息体为json数组 */
+        public static final String BatchHeader = "imBatch";
+
+        /** 全员广播的fanout交换机, 每个网关一个队列 */
+        public static final String Broadcast2Im = "broadcast2Pipeline";
+
+        /** 逻辑层处理失败的消息, fanout交换机和同名持久队列, 分区队列拒绝的消息和批量中失败的条目都进入这里 */
+        public static final String LogicDeadLetter = "pipelineDeadLetter";
+
+        /** 死信中记录来源交换机的消息头 */
+        public static final String SourceExchangeHeader = "imSourceExchange";
+
 
 
 
@@ -150,6 +203,9 @@ public class Constants {
 
         public static final String SendMessageBefore = "message.send.before";
 
+        /** 批量后置回调，请求体为 [{"command":..., "data":...}] */
+        public static final String Batch = "callback.batch";
+
     }
 
     public static class SeqConstants {
@@ -17,6 +17,11 @@ public enum ImUrlRouteWayEnum {
      * HASH
      */
     HASH(3,"com.stw.im.common.route.algorithm.consistenthash.ConsistentHashHandle"),
+
+    /**
+     * 负载感知(二选一 + 用户粘性)
+     */
+    LOAD(4,"com.stw.im.common.route.algorithm.load.LoadAwareHandle"),
     ;
 
 
@@ -16,6 +16,12 @@ public enum MessageErrorCode implements ApplicationExceptionEnum {
 
     MESSAGE_IS_RECALLED(50005,"消息已被撤回"),
 
+    MESSAGE_IS_PROCESSING(50006,"消息正在处理中"),
+
+    BATCH_SEND_SIZE_BEYOND(50007,"批量发送消息数量超出上限"),
+
+    MESSAGEID_IS_EMPTY(50008,"messageId不能为空"),
+
     ;
 
     private int code;
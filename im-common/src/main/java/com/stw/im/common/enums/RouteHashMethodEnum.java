@@ -13,6 +13,12 @@ public enum RouteHashMethodEnum {
      */
     CUSTOMER(2,"com.stw.im.common.route.algorithm.consistenthash.xxxx"),
 
+    /**
+     * TreeMap + murmur3 非加密hash
+     */
+    MURMUR3(3,"com.stw.im.common.route.algorithm.consistenthash" +
+            ".Murmur3ConsistentHash"),
+
     ;
 
 
@@ -75,6 +75,15 @@ public enum GroupEventCommand implements Command {
     //群聊消息ack 2047
     GROUP_MSG_ACK(0x7ff),
 
+    //加入直播间 2200，成员关系只保存在连接所在的网关
+    JOIN_LIVE_ROOM(2200),
+
+    //离开直播间 2201
+    LEAVE_LIVE_ROOM(2201),
+
+    //直播间消息 2202，不存储、不写离线消息
+    MSG_LIVE_ROOM(2202),
+
 
     ;
 
@@ -29,6 +29,9 @@ public enum MessageCommand implements Command {
     //消息撤回回报 1051
     MSG_RECALL_ACK(0x41B),
 
+    //全员广播 1108
+    MSG_BROADCAST(1108),
+
     ;
 
     private int command;
@@ -0,0 +1,15 @@
+package com.stw.im.common.model.message;
+
+import lombok.Data;
+
+/**
+ * @description: 直播间消息, 只转发不存储
+ * @author: stw
+ * @version: 1.0
+ */
+@Data
+public class LiveRoomMessageContent extends MessageContent {
+
+    private String roomId;
+
+}
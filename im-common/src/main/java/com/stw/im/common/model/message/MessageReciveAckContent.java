@@ -19,5 +19,14 @@ public class MessageReciveAckContent extends ClientInfo {
 
     private Long messageSequence;
 
+    /**
+     * 累计确认: 为true时表示 conversationId 会话中序列号不大于 messageSequence 的消息都已收到,
+     * messageKey 可以为空; 同一会话短时间内的多次累计确认由服务端合并后只转发序列号最大的一次
+     */
+    private Boolean cumulative;
+
+    private Integer conversationType;
+
+    private String conversationId;
 
 }
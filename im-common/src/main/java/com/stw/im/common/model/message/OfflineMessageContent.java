@@ -2,6 +2,8 @@ package com.stw.im.common.model.message;
 
 import lombok.Data;
 
+import java.util.List;
+
 /**
  * @description:
  * @author: stw
@@ -37,4 +39,7 @@ public class OfflineMessageContent {
 
     private String conversationId;
 
+    /** 全员广播限定的客户端类型, 为空表示所有端 */
+    private List<Integer> clientTypes;
+
 }
@@ -0,0 +1,38 @@
+package com.stw.im.common.route;
+
+import lombok.Data;
+
+/**
+ * @description: 网关注册在zk临时节点上的元数据, 节点名仍为 ip:port
+ * @author: stw
+ * @version: 1.0
+ */
+@Data
+public class NodeInfo {
+
+    /** 网关brokerId */
+    private Integer brokerId;
+
+    private String ip;
+
+    private Integer port;
+
+    /** tcp / web */
+    private String type;
+
+    /** 注册时间 */
+    private Long registerTime;
+
+    /** 当前连接数 */
+    private Integer connectionCount;
+
+    /** io线程(event loop)待处理任务数 */
+    private Integer pendingTasks;
+
+    /** 进程cpu使用率 0~1, 取不到为负数 */
+    private Double cpuLoad;
+
+    /** 负载上报时间 */
+    private Long loadUpdateTime;
+
+}
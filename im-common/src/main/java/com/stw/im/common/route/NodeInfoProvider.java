@@ -0,0 +1,15 @@
+package com.stw.im.common.route;
+
+/**
+ * @description: 按节点名(ip:port)查询节点元数据, 负载感知路由使用
+ * @author: stw
+ * @version: 1.0
+ */
+public interface NodeInfoProvider {
+
+    /**
+     * @param node ip:port
+     * @return 节点元数据, 不存在返回null
+     */
+    NodeInfo getNodeInfo(String node);
+}
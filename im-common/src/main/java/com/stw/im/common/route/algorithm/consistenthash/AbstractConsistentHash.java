@@ -1,69 +1,87 @@
 package com.stw.im.common.route.algorithm.consistenthash;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @description: 一致性hash 抽象类
+ * 哈希环只在节点列表变化时重建, 构建完成后不可变, 路由读取无锁.
+ * 按节点列表缓存多个环(如web节点和tcp节点交替路由时各用各的环), 不会因列表交替而反复重建
  * @author: stw
  * @version: 1.0
  */
 public abstract class AbstractConsistentHash {
 
-    //add
-    protected abstract void add(long key,String value);
+    /** 默认每个节点的虚拟节点数 */
+    public static final int DEFAULT_VIRTUAL_NODE_SIZE = 2;
 
-    //sort
-    protected void sort(){}
+    /** 缓存的环个数上限, 节点列表只有少数几种, 超过说明列表在频繁变化, 清空重建 */
+    private static final int MAX_RINGS = 16;
 
-    //获取节点 get
-    protected abstract String getFirstNodeValue(String value);
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not supported", e);
+        }
+    });
+
+    protected volatile int virtualNodeSize = DEFAULT_VIRTUAL_NODE_SIZE;
+
+    /** 节点列表hashCode -> 哈希环, 命中后仍比较节点列表, hashCode冲突时重建覆盖 */
+    private final Map<Integer, HashRing> rings = new ConcurrentHashMap<>();
+
+    public void setVirtualNodeSize(int virtualNodeSize) {
+        if (virtualNodeSize < 0) {
+            throw new IllegalArgumentException("virtualNodeSize must not be negative");
+        }
+        this.virtualNodeSize = virtualNodeSize;
+        this.rings.clear();
+    }
 
     /**
-     * 处理之前事件
+     * 根据节点列表构建一个不可变的哈希环
+     * @param values 节点列表(副本)
+     * @return
      */
-    protected abstract void processBefore();
+    protected abstract HashRing buildRing(List<String> values);
 
     /**
      * 传入节点列表以及客户端信息获取一个服务节点
+     * 节点列表已有构建好的环时直接复用; 并发重建是幂等的, 后写入者覆盖即可
      * @param values
      * @param key
      * @return
      */
-    public synchronized String process(List<String> values, String key){
-        processBefore();
-        for (String value : values) {
-            add(hash(value), value);
+    public String process(List<String> values, String key){
+        int snapshot = values.hashCode();
+        HashRing current = rings.get(snapshot);
+        if (current == null || !current.builtFrom(values)) {
+            current = buildRing(new ArrayList<>(values));
+            if (rings.size() >= MAX_RINGS) {
+                rings.clear();
+            }
+            rings.put(snapshot, current);
         }
-        sort();
-        return getFirstNodeValue(key) ;
+        return current.locate(hash(key));
     }
 
 
     //hash
     /**
-     * hash 运算
+     * hash 运算, MD5 截取低32位
      * @param value
      * @return
      */
-    public Long hash(String value){
-        MessageDigest md5;
-        try {
-            md5 = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 not supported", e);
-        }
+    public long hash(String value){
+        MessageDigest md5 = MD5.get();
         md5.reset();
-        byte[] keyBytes = null;
-        try {
-            keyBytes = value.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Unknown string :" + value, e);
-        }
-
-        md5.update(keyBytes);
+        md5.update(value.getBytes(StandardCharsets.UTF_8));
         byte[] digest = md5.digest();
 
         // hash code, Truncate to 32-bits
@@ -76,4 +94,27 @@ public abstract class AbstractConsistentHash {
         return truncateHashCode;
     }
 
+    /**
+     * 不可变哈希环
+     */
+    protected abstract static class HashRing {
+
+        private final List<String> nodes;
+
+        protected HashRing(List<String> nodes) {
+            this.nodes = nodes;
+        }
+
+        boolean builtFrom(List<String> values) {
+            return nodes == values || nodes.equals(values);
+        }
+
+        /**
+         * 顺时针找到第一个节点
+         * @param hash key的hash值
+         * @return
+         */
+        protected abstract String locate(long hash);
+    }
+
 }
@@ -0,0 +1,57 @@
+package com.stw.im.common.route.algorithm.consistenthash;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @description: TreeMap 环 + murmur3(32位) hash, 比MD5计算开销小且分布均匀
+ * @author: stw
+ * @version: 1.0
+ */
+public class Murmur3ConsistentHash extends TreeMapConsistentHash {
+
+    private static final int SEED = 0x9747b28c;
+
+    @Override
+    public long hash(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        int length = data.length;
+        int h = SEED;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            int k = (data[i] & 0xff)
+                    | ((data[i + 1] & 0xff) << 8)
+                    | ((data[i + 2] & 0xff) << 16)
+                    | ((data[i + 3] & 0xff) << 24);
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k ^= (data[i + 2] & 0xff) << 16;
+            case 2:
+                k ^= (data[i + 1] & 0xff) << 8;
+            case 1:
+                k ^= (data[i] & 0xff);
+                k *= 0xcc9e2d51;
+                k = Integer.rotateLeft(k, 15);
+                k *= 0x1b873593;
+                h ^= k;
+            default:
+                break;
+        }
+
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0xffffffffL;
+    }
+}
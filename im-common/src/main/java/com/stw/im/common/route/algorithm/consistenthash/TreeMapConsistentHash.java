@@ -3,7 +3,8 @@ package com.stw.im.common.route.algorithm.consistenthash;
 import com.stw.im.common.enums.UserErrorCode;
 import com.stw.im.common.exception.ApplicationException;
 
-import java.util.SortedMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
@@ -13,37 +14,39 @@ import java.util.TreeMap;
  */
 public class TreeMapConsistentHash extends AbstractConsistentHash {
 
-    private TreeMap<Long,String> treeMap = new TreeMap<>();
-
-    private static final int NODE_SIZE = 2;
-
     @Override
-    protected void add(long key, String value) {
-        for (int i = 0; i < NODE_SIZE; i++) {
-            treeMap.put(super.hash("node" + key +i),value);
+    protected HashRing buildRing(List<String> values) {
+        int virtualNodeSize = this.virtualNodeSize;
+        TreeMap<Long, String> treeMap = new TreeMap<>();
+        for (String value : values) {
+            long key = hash(value);
+            for (int i = 0; i < virtualNodeSize; i++) {
+                treeMap.put(hash("node" + key + i), value);
+            }
+            treeMap.put(key, value);
         }
-        treeMap.put(key,value);
+        return new TreeMapRing(values, treeMap);
     }
 
-    
-    @Override
-    protected String getFirstNodeValue(String value) {
+    private static class TreeMapRing extends HashRing {
 
-        Long hash = super.hash(value);
-        SortedMap<Long, String> last = treeMap.tailMap(hash);
-        if(!last.isEmpty()){
-            return last.get(last.firstKey());
-        }
+        private final TreeMap<Long, String> treeMap;
 
-        if (treeMap.size() == 0){
-            throw new ApplicationException(UserErrorCode.SERVER_NOT_AVAILABLE) ;
+        TreeMapRing(List<String> nodes, TreeMap<Long, String> treeMap) {
+            super(nodes);
+            this.treeMap = treeMap;
         }
 
-        return treeMap.firstEntry().getValue();
-    }
-
-    @Override
-    protected void processBefore() {
-        treeMap.clear();
+        @Override
+        protected String locate(long hash) {
+            if (treeMap.isEmpty()) {
+                throw new ApplicationException(UserErrorCode.SERVER_NOT_AVAILABLE);
+            }
+            Map.Entry<Long, String> entry = treeMap.ceilingEntry(hash);
+            if (entry == null) {
+                entry = treeMap.firstEntry();
+            }
+            return entry.getValue();
+        }
     }
 }
@@ -0,0 +1,117 @@
+package com.stw.im.common.route.algorithm.load;
+
+import com.stw.im.common.enums.UserErrorCode;
+import com.stw.im.common.exception.ApplicationException;
+import com.stw.im.common.route.NodeInfo;
+import com.stw.im.common.route.NodeInfoProvider;
+import com.stw.im.common.route.RouteHandle;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @description: 负载感知路由
+ * 用户先按 rendezvous hash 得到自己的"常用节点", 再随机挑一个对比节点(power of two choices),
+ * 常用节点负载不超过对比节点的 stickyFactor 倍就沿用常用节点, 否则改投负载更低的节点.
+ * 新上线的空节点会不断被选为对比节点, 集群无需人工干预即可逐步重新均衡
+ * @author: stw
+ * @version: 1.0
+ */
+public class LoadAwareHandle implements RouteHandle {
+
+    /** 负载数据超过该时间未更新视为未知 */
+    private static final long LOAD_EXPIRE_TIME = 30000L;
+
+    /** 一个待处理任务折算的连接数 */
+    private static final double BACKLOG_WEIGHT = 10D;
+
+    private NodeInfoProvider nodeInfoProvider;
+
+    /** 常用节点的负载容忍倍数, 越大越倾向保持粘性, 由 routeStickyFactor 配置 */
+    private double stickyFactor = 1.25D;
+
+    public void setNodeInfoProvider(NodeInfoProvider nodeInfoProvider) {
+        this.nodeInfoProvider = nodeInfoProvider;
+    }
+
+    public void setStickyFactor(double stickyFactor) {
+        if (stickyFactor < 1) {
+            throw new IllegalArgumentException("stickyFactor must not be less than 1");
+        }
+        this.stickyFactor = stickyFactor;
+    }
+
+    @Override
+    public String routeServer(List<String> values, String key) {
+        int size = values.size();
+        if (size == 0) {
+            throw new ApplicationException(UserErrorCode.SERVER_NOT_AVAILABLE);
+        }
+        if (size == 1) {
+            return values.get(0);
+        }
+
+        int homeIndex = homeIndex(values, key);
+        int otherIndex = ThreadLocalRandom.current().nextInt(size - 1);
+        if (otherIndex >= homeIndex) {
+            otherIndex++;
+        }
+        String home = values.get(homeIndex);
+        String other = values.get(otherIndex);
+
+        double homeScore = score(home);
+        double otherScore = score(other);
+        // 任意一方负载未知时保持粘性
+        if (homeScore < 0 || otherScore < 0) {
+            return home;
+        }
+        return homeScore <= otherScore * stickyFactor + 1 ? home : other;
+    }
+
+    /**
+     * rendezvous hash: 节点增减只影响落在该节点上的用户
+     */
+    private int homeIndex(List<String> values, String key) {
+        int index = 0;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < values.size(); i++) {
+            int weight = mix(key.hashCode() * 31 + values.get(i).hashCode());
+            if (weight > max) {
+                max = weight;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 负载分值: (连接数 + 待处理任务折算) * (1 + cpu), 负载未知返回 -1
+     */
+    private double score(String node) {
+        if (nodeInfoProvider == null) {
+            return -1;
+        }
+        NodeInfo nodeInfo = nodeInfoProvider.getNodeInfo(node);
+        if (nodeInfo == null || nodeInfo.getLoadUpdateTime() == null || nodeInfo.getConnectionCount() == null
+                || System.currentTimeMillis() - nodeInfo.getLoadUpdateTime() > LOAD_EXPIRE_TIME) {
+            return -1;
+        }
+        double load = nodeInfo.getConnectionCount();
+        if (nodeInfo.getPendingTasks() != null) {
+            load += nodeInfo.getPendingTasks() * BACKLOG_WEIGHT;
+        }
+        if (nodeInfo.getCpuLoad() != null && nodeInfo.getCpuLoad() > 0) {
+            load *= 1 + nodeInfo.getCpuLoad();
+        }
+        return load;
+    }
+}
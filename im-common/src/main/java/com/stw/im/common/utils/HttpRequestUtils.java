@@ -166,15 +166,49 @@ public class HttpRequestUtils {
             if (response.getStatusLine().getStatusCode() == 200) {
                 // 返回响应体的内容
                 result = EntityUtils.toString(response.getEntity(), charset);
+            } else {
+                // 读完响应体，连接才能回到连接池
+                EntityUtils.consume(response.getEntity());
             }
 
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
         }
         return result;
     }
 
+    /**
+     * post json 并返回状态码，响应体读完后连接放回连接池
+     * @param url
+     * @param params URL参数
+     * @param jsonBody
+     * @return HTTP状态码
+     * @throws Exception
+     */
+    public int doPostForStatus(String url, Map<String, Object> params, String jsonBody) throws Exception {
+        URIBuilder uriBuilder = new URIBuilder(url);
+        if (params != null) {
+            for (Map.Entry<String, Object> entry : params.entrySet()) {
+                uriBuilder.setParameter(entry.getKey(), entry.getValue().toString());
+            }
+        }
+        HttpPost httpPost = new HttpPost(uriBuilder.build());
+        httpPost.setConfig(requestConfig);
+        StringEntity s = new StringEntity(jsonBody, "utf-8");
+        s.setContentEncoding("utf-8");
+        s.setContentType("application/json");
+        httpPost.setEntity(s);
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
     /**
      * 不带参数post请求
      * @param url
@@ -0,0 +1,57 @@
+package com.stw.im.common.utils;
+
+import com.alibaba.fastjson.JSONObject;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @description: 逻辑层队列分区
+ * 网关和逻辑层共用: 网关按会话算出分区作为路由键, 逻辑层每个分区一个队列 {交换机}.{分区}.
+ * 群消息按群, 直播间消息按直播间, 用户事件按用户, 单聊按两人排序后的组合, 同一会话总落在同一分区, 顺序不变;
+ * 同一直播间只由一个实例消费, 直播间限速在该实例上即是全局的
+ * @author: stw
+ * @version: 1.0
+ */
+public class PartitionUtils {
+
+    public static String queueName(String exchange, int partition) {
+        return exchange + "." + partition;
+    }
+
+    /**
+     * 消息所在的分区, 即投递的路由键
+     * @param messageJson 网关投递的消息体, 含appId和fromId/toId/groupId/userId
+     */
+    public static int partition(JSONObject messageJson, int partitions) {
+        if (partitions <= 1) {
+            return 0;
+        }
+        return partition(partitionKey(messageJson), partitions);
+    }
+
+    public static int partition(String key, int partitions) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % partitions;
+    }
+
+    private static String partitionKey(JSONObject messageJson) {
+        String appId = messageJson.getString("appId");
+        String groupId = messageJson.getString("groupId");
+        if (StringUtils.isNotEmpty(groupId)) {
+            return appId + ":" + groupId;
+        }
+        String roomId = messageJson.getString("roomId");
+        if (StringUtils.isNotEmpty(roomId)) {
+            return appId + ":room:" + roomId;
+        }
+        String userId = messageJson.getString("userId");
+        if (StringUtils.isNotEmpty(userId)) {
+            return appId + ":" + userId;
+        }
+        String fromId = StringUtils.defaultString(messageJson.getString("fromId"));
+        String toId = StringUtils.defaultString(messageJson.getString("toId"));
+        return fromId.compareTo(toId) <= 0
+                ? appId + ":" + fromId + "|" + toId
+                : appId + ":" + toId + "|" + fromId;
+    }
+}
@@ -3,6 +3,15 @@ package com.stw.message.dao.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.stw.message.dao.ImMessageBodyEntity;
 import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
 @Repository
 public interface ImMessageBodyMapper extends BaseMapper<ImMessageBodyEntity> {
+
+    /**
+     * 批量插入（mysql）
+     * @param entityList
+     * @return
+     */
+    Integer insertBatchSomeColumn(Collection<ImMessageBodyEntity> entityList);
 }
@@ -1,6 +1,7 @@
 package com.stw.message.mq;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.model.message.MessageContent;
@@ -22,6 +23,8 @@ import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -69,6 +72,12 @@ public class StoreP2PMessageReceiver {
         // 从消息头中获取投递标签（deliveryTag），用于消息确认
         Long deliveryTag = (Long) headers.get(AmqpHeaders.DELIVERY_TAG);
         try {
+            // 服务端批量发送的消息是一个DTO数组，整批一起入库
+            if (msg.startsWith("[")) {
+                storeMessageService.doStoreP2PMessages(parseBatch(msg));
+                channel.basicAck(deliveryTag, false);
+                return;
+            }
             // 将JSON字符串解析为JSONObject
             JSONObject jsonObject = JSON.parseObject(msg);
             // 将JSON对象转换为单聊消息存储DTO对象
@@ -103,4 +112,19 @@ public class StoreP2PMessageReceiver {
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * 解析批量存储的DTO数组，消息体字段名与单条消息一致
+     */
+    private List<DoStoreP2PMessageDto> parseBatch(String msg) {
+        JSONArray array = JSON.parseArray(msg);
+        List<DoStoreP2PMessageDto> dtos = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            JSONObject jsonObject = array.getJSONObject(i);
+            DoStoreP2PMessageDto dto = jsonObject.toJavaObject(DoStoreP2PMessageDto.class);
+            dto.setImMessageBodyEntity(jsonObject.getObject("messageBody", ImMessageBodyEntity.class));
+            dtos.add(dto);
+        }
+        return dtos;
+    }
+}
@@ -56,6 +56,23 @@ public class StoreMessageService {
     }
 
 
+    /**
+     * 批量存储单聊消息（服务端批量发送）
+     * 消息体和双向历史记录各一条多行insert，整批在同一事务中
+     * @param dtos 单聊消息存储DTO列表
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public void doStoreP2PMessages(List<DoStoreP2PMessageDto> dtos) {
+        List<ImMessageBodyEntity> bodyList = new ArrayList<>(dtos.size());
+        List<ImMessageHistoryEntity> historyList = new ArrayList<>(dtos.size() * 2);
+        for (DoStoreP2PMessageDto dto : dtos) {
+            bodyList.add(dto.getImMessageBodyEntity());
+            historyList.addAll(extractToP2PMessageHistory(dto.getMessageContent(), dto.getImMessageBodyEntity()));
+        }
+        imMessageBodyMapper.insertBatchSomeColumn(bodyList);
+        imMessageHistoryMapper.insertBatchSomeColumn(historyList);
+    }
+
     /**
      * 生成单聊消息的双向历史记录
      * 实现写扩散机制：一条消息同时写入发送方和接收方的历史记录中
@@ -1,12 +1,16 @@
 package com.stw.im.service.config;
 
 import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.ImUrlRouteWayEnum;
 import com.stw.im.common.enums.RouteHashMethodEnum;
+import com.stw.im.common.route.NodeInfoProvider;
 import com.stw.im.common.route.RouteHandle;
 import com.stw.im.common.route.algorithm.consistenthash.AbstractConsistentHash;
 import com.stw.im.service.utils.SnowflakeIdWorker;
+import com.stw.im.service.utils.ZKit;
 import org.I0Itec.zkclient.ZkClient;
+import org.springframework.amqp.core.FanoutExchange;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -31,7 +35,7 @@ public class BeanConfig {
     }
 
     @Bean
-    public RouteHandle routeHandle() throws Exception {
+    public RouteHandle routeHandle(ZKit zKit) throws Exception {
 
         Integer imRouteWay = appConfig.getImRouteWay();
         String routWay = "";
@@ -50,7 +54,18 @@ public class BeanConfig {
             hashWay = hashHandler.getClazz();
             AbstractConsistentHash consistentHash
                     = (AbstractConsistentHash) Class.forName(hashWay).newInstance();
+            if(appConfig.getConsistentHashVirtualNodeSize() != null){
+                consistentHash.setVirtualNodeSize(appConfig.getConsistentHashVirtualNodeSize());
+            }
             setHash.invoke(routeHandle,consistentHash);
+        }else if(handler == ImUrlRouteWayEnum.LOAD){
+            Method setNodeInfoProvider = Class.forName(routWay).getMethod("setNodeInfoProvider",
+                    NodeInfoProvider.class);
+            setNodeInfoProvider.invoke(routeHandle, zKit);
+            if(appConfig.getRouteStickyFactor() != null){
+                Method setStickyFactor = Class.forName(routWay).getMethod("setStickyFactor", double.class);
+                setStickyFactor.invoke(routeHandle, appConfig.getRouteStickyFactor());
+            }
         }
 
         return routeHandle;
@@ -66,5 +81,13 @@ public class BeanConfig {
         return new SnowflakeIdWorker(0);
     }
 
+    /**
+     * 全员广播的fanout交换机, 网关启动时各自绑定队列
+     */
+    @Bean
+    public FanoutExchange broadcastExchange() {
+        return new FanoutExchange(Constants.RabbitConstants.Broadcast2Im, true, false);
+    }
+
 
 }
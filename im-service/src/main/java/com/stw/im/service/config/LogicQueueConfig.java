@@ -0,0 +1,83 @@
+package com.stw.im.service.config;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.utils.PartitionUtils;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description: 逻辑层分区队列声明
+ * 单聊/群聊/用户交换机各声明 logicPartitions 个持久队列 {交换机}.{分区}, 路由键为分区号,
+ * 队列开启 single active consumer: 分区交接时新旧实例短暂同时订阅也只有一个在消费, 分区内顺序不变;
+ * 拒绝(nack)的消息转入 LogicDeadLetter 死信队列;
+ * 分区分配见 LogicQueueConsumers
+ * @author: stw
+ * @version: 1.0
+ */
+@Configuration
+public class LogicQueueConfig {
+
+    /** 按会话分区的交换机 */
+    public static final String[] PARTITIONED_EXCHANGES = {
+            Constants.RabbitConstants.Im2MessageService,
+            Constants.RabbitConstants.Im2GroupService,
+            Constants.RabbitConstants.Im2UserService
+    };
+
+    @Autowired
+    AppConfig appConfig;
+
+    public static int partitions(AppConfig appConfig) {
+        Integer partitions = appConfig.getLogicPartitions();
+        return partitions == null || partitions <= 1 ? 1 : partitions;
+    }
+
+    /**
+     * 本实例的session缓存失效队列, 断开后自动删除
+     */
+    @Bean
+    public AnonymousQueue userSessionCacheQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Declarables logicQueueDeclarables(AnonymousQueue userSessionCacheQueue) {
+        int partitions = partitions(appConfig);
+        List<Declarable> declarables = new ArrayList<>();
+        FanoutExchange deadLetterExchange = new FanoutExchange(Constants.RabbitConstants.LogicDeadLetter, true, false);
+        Queue deadLetterQueue = QueueBuilder.durable(Constants.RabbitConstants.LogicDeadLetter).build();
+        declarables.add(deadLetterExchange);
+        declarables.add(deadLetterQueue);
+        declarables.add(BindingBuilder.bind(deadLetterQueue).to(deadLetterExchange));
+        for (String exchangeName : PARTITIONED_EXCHANGES) {
+            DirectExchange exchange = new DirectExchange(exchangeName, true, false);
+            declarables.add(exchange);
+            for (int i = 0; i < partitions; i++) {
+                Queue queue = QueueBuilder.durable(PartitionUtils.queueName(exchangeName, i))
+                        .withArgument("x-single-active-consumer", true)
+                        .withArgument("x-dead-letter-exchange", Constants.RabbitConstants.LogicDeadLetter)
+                        .build();
+                declarables.add(queue);
+                declarables.add(BindingBuilder.bind(queue).to(exchange).with(String.valueOf(i)));
+                if (Constants.RabbitConstants.Im2UserService.equals(exchangeName)) {
+                    // 上下线事件按所有分区键广播到各实例的缓存失效队列
+                    declarables.add(BindingBuilder.bind(userSessionCacheQueue).to(exchange).with(String.valueOf(i)));
+                }
+            }
+        }
+        return new Declarables(declarables);
+    }
+}
@@ -0,0 +1,208 @@
+package com.stw.im.service.config;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.utils.PartitionUtils;
+import com.stw.im.service.group.mq.GroupChatOperateReceiver;
+import com.stw.im.service.message.mq.ChatOperateReceiver;
+import com.stw.im.service.user.mq.UserOnlineStatusReceiver;
+import com.stw.im.service.user.mq.UserSessionCacheReceiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 逻辑层分区队列的消费者和分区分配
+ * 每个实例定时在 logicPartitionMembers(zset, score为心跳时间) 上心跳, 超过3个心跳间隔没有心跳的实例被移出.
+ * 存活实例按id排序, 分区p归第 p%实例数 个实例; 成员变化时各实例只订阅自己的分区, 取消不再属于自己的分区,
+ * 因此实例滚动重启、错开启动后分区会重新均摊. 每个分区队列一个消费者, 分区之间并行, 分区内串行;
+ * 队列是 single active consumer, 交接期间新旧实例同时订阅也只有一个在消费, 旧实例取消后新实例接管
+ * @author: stw
+ * @version: 1.0
+ */
+@Component
+public class LogicQueueConsumers {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogicQueueConsumers.class);
+
+    @Autowired
+    ConnectionFactory connectionFactory;
+
+    @Autowired
+    RabbitProperties rabbitProperties;
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    AppConfig appConfig;
+
+    @Autowired
+    AnonymousQueue userSessionCacheQueue;
+
+    @Autowired
+    ChatOperateReceiver chatOperateReceiver;
+
+    @Autowired
+    GroupChatOperateReceiver groupChatOperateReceiver;
+
+    @Autowired
+    UserOnlineStatusReceiver userOnlineStatusReceiver;
+
+    @Autowired
+    UserSessionCacheReceiver userSessionCacheReceiver;
+
+    private final String memberId = UUID.randomUUID().toString();
+
+    /** 交换机 -> 该交换机分区队列的消费容器, 按分配结果增减队列 */
+    private final Map<String, DirectMessageListenerContainer> containers = new LinkedHashMap<>();
+
+    private DirectMessageListenerContainer userSessionCacheContainer;
+
+    private Set<Integer> owned = new HashSet<>();
+
+    private ScheduledExecutorService rebalancer;
+
+    /**
+     * 所有bean就绪后再开始消费, 队列和绑定已由RabbitAdmin在建立连接时声明
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        containers.put(Constants.RabbitConstants.Im2MessageService,
+                startContainer(new String[0], chatOperateReceiver::onChatMessage));
+        containers.put(Constants.RabbitConstants.Im2GroupService,
+                startContainer(new String[0], groupChatOperateReceiver::onChatMessage));
+        containers.put(Constants.RabbitConstants.Im2UserService,
+                startContainer(new String[0], userOnlineStatusReceiver::onChatMessage));
+        userSessionCacheContainer = startContainer(new String[]{userSessionCacheQueue.getName()},
+                userSessionCacheReceiver::onUserStatusChange);
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("logic-queue-rebalancer");
+            return thread;
+        });
+        long interval = heartbeatMillis();
+        rebalancer.scheduleWithFixedDelay(this::rebalanceQuietly, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 心跳并按当前存活实例重新分配分区, 定时执行, 也可在实例变化时手动触发
+     */
+    public synchronized void rebalance() {
+        long now = System.currentTimeMillis();
+        String key = Constants.RedisConstants.LogicPartitionMembers;
+        stringRedisTemplate.opsForZSet().add(key, memberId, now);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(key, 0, now - heartbeatMillis() * 3);
+        Set<String> alive = stringRedisTemplate.opsForZSet().range(key, 0, -1);
+        List<String> members = new ArrayList<>(new TreeSet<>(alive == null ? new HashSet<>() : alive));
+        int index = members.indexOf(memberId);
+        if (index < 0) {
+            return;
+        }
+        int partitions = LogicQueueConfig.partitions(appConfig);
+        Set<Integer> assigned = new HashSet<>();
+        for (int i = 0; i < partitions; i++) {
+            if (i % members.size() == index) {
+                assigned.add(i);
+            }
+        }
+        if (assigned.equals(owned)) {
+            return;
+        }
+        for (Map.Entry<String, DirectMessageListenerContainer> entry : containers.entrySet()) {
+            List<String> add = new ArrayList<>();
+            List<String> remove = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                String queue = PartitionUtils.queueName(entry.getKey(), i);
+                if (assigned.contains(i) && !owned.contains(i)) {
+                    add.add(queue);
+                } else if (!assigned.contains(i) && owned.contains(i)) {
+                    remove.add(queue);
+                }
+            }
+            // 先取消再订阅, 交给其它实例的分区尽快由对方接管
+            if (!remove.isEmpty()) {
+                entry.getValue().removeQueueNames(remove.toArray(new String[0]));
+            }
+            if (!add.isEmpty()) {
+                entry.getValue().addQueueNames(add.toArray(new String[0]));
+            }
+        }
+        logger.info("logic queue rebalance, members={}, index={}, partitions {} -> {}", members.size(), index,
+                owned, assigned);
+        owned = assigned;
+    }
+
+    private void rebalanceQuietly() {
+        try {
+            rebalance();
+        } catch (Exception e) {
+            logger.error("logic queue rebalance error", e);
+        }
+    }
+
+    private long heartbeatMillis() {
+        Long interval = appConfig.getLogicPartitionHeartbeatMillis();
+        return interval == null || interval <= 0 ? 3000L : interval;
+    }
+
+    private DirectMessageListenerContainer startContainer(String[] queues, ChannelAwareMessageListener listener) {
+        DirectMessageListenerContainer container = new DirectMessageListenerContainer(connectionFactory);
+        container.setQueueNames(queues);
+        container.setConsumersPerQueue(1);
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        Integer prefetch = rabbitProperties.getListener().getSimple().getPrefetch();
+        if (prefetch != null) {
+            container.setPrefetchCount(prefetch);
+        }
+        container.setMessageListener(listener);
+        container.afterPropertiesSet();
+        container.start();
+        return container;
+    }
+
+    /**
+     * 停机时退出成员列表并取消订阅, 其它实例下次心跳即接管分区
+     */
+    @PreDestroy
+    public void destroy() {
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+        }
+        try {
+            stringRedisTemplate.opsForZSet().remove(Constants.RedisConstants.LogicPartitionMembers, memberId);
+        } catch (Exception e) {
+            logger.warn("leave logic partition members error", e);
+        }
+        for (DirectMessageListenerContainer container : containers.values()) {
+            container.stop();
+        }
+        if (userSessionCacheContainer != null) {
+            userSessionCacheContainer.stop();
+        }
+    }
+}
@@ -2,10 +2,14 @@ package com.stw.im.service.conversation.dao.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.stw.im.service.conversation.dao.ImConversationSetEntity;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 /**
  * @description:
  * @author: stw
@@ -18,6 +22,23 @@ public interface ImConversationSetMapper extends BaseMapper<ImConversationSetEnt
     " where conversation_id = #{conversationId} and app_id = #{appId} AND readed_sequence < #{readedSequence}")
     public void readMark(ImConversationSetEntity imConversationSetEntity);
 
+    /**
+     * 批量已读标记（多行upsert），依赖 (app_id, conversation_id) 唯一键
+     * 已读序列只增不减；序列没有变大的会话不更新 sequence，不触发增量同步
+     */
+    @Insert("<script>" +
+            " insert into im_conversation_set (app_id, conversation_id, conversation_type, from_id, to_id," +
+            " is_mute, is_top, sequence, readed_sequence) values " +
+            " <foreach collection='list' item='item' separator=','> " +
+            " (#{item.appId}, #{item.conversationId}, #{item.conversationType}, #{item.fromId}, #{item.toId}," +
+            " 0, 0, #{item.sequence}, #{item.readedSequence}) " +
+            " </foreach> " +
+            " on duplicate key update " +
+            " sequence = if(values(readed_sequence) > readed_sequence, values(sequence), sequence), " +
+            " readed_sequence = greatest(readed_sequence, values(readed_sequence)) " +
+            "</script>")
+    void batchReadMark(@Param("list") List<ImConversationSetEntity> list);
+
     @Select(" select max(sequence) from im_conversation_set where app_id = #{appId} AND from_id = #{userId} ")
     Long geConversationSetMaxSeq(Integer appId, String userId);
 }
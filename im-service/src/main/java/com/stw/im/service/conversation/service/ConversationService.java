@@ -25,7 +25,10 @@ import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @description:
@@ -50,6 +53,9 @@ public class ConversationService {
     @Autowired
     WriteUserSeq writeUserSeq;
 
+    /** 批量已读标记每条sql的行数 */
+    private static final int READ_MARK_BATCH_SIZE = 500;
+
     public String convertConversationId(Integer type,String fromId,String toId){
         return type + "_" + fromId + "_" + toId;
     }
@@ -87,6 +93,47 @@ public class ConversationService {
         }
     }
 
+    /**
+     * 批量已读标记（合并后的已读事件）
+     * 会话序列号一次pipeline分配，会话表一条多行upsert，每个用户的会话序列号只写一次
+     */
+    public void batchMessageMarkRead(List<MessageReadedContent> contents){
+        if (contents.isEmpty()) {
+            return;
+        }
+        List<String> seqKeys = new ArrayList<>(contents.size());
+        for (MessageReadedContent content : contents) {
+            seqKeys.add(content.getAppId() + ":" + Constants.SeqConstants.Conversation);
+        }
+        long[] seqs = redisSeq.doGetSeqs(seqKeys);
+        List<ImConversationSetEntity> entities = new ArrayList<>(contents.size());
+        Map<String, Long> userSeqs = new HashMap<>();
+        for (int i = 0; i < contents.size(); i++) {
+            MessageReadedContent content = contents.get(i);
+            String toId = content.getConversationType() == ConversationTypeEnum.GROUP.getCode()
+                    ? content.getGroupId() : content.getToId();
+            ImConversationSetEntity entity = new ImConversationSetEntity();
+            entity.setAppId(content.getAppId());
+            entity.setConversationId(convertConversationId(content.getConversationType(), content.getFromId(), toId));
+            entity.setConversationType(content.getConversationType());
+            entity.setFromId(content.getFromId());
+            entity.setToId(toId);
+            entity.setSequence(seqs[i]);
+            entity.setReadedSequence(content.getMessageSequence());
+            entities.add(entity);
+            userSeqs.merge(content.getAppId() + ":" + content.getFromId(), seqs[i], Math::max);
+        }
+        for (int from = 0; from < entities.size(); from += READ_MARK_BATCH_SIZE) {
+            imConversationSetMapper.batchReadMark(entities.subList(from,
+                    Math.min(from + READ_MARK_BATCH_SIZE, entities.size())));
+        }
+        for (Map.Entry<String, Long> entry : userSeqs.entrySet()) {
+            int index = entry.getKey().indexOf(':');
+            writeUserSeq.writeUserSeq(Integer.valueOf(entry.getKey().substring(0, index)),
+                    entry.getKey().substring(index + 1), Constants.SeqConstants.Conversation, entry.getValue());
+        }
+    }
+
     /**
      * @description: 删除会话
      * @param
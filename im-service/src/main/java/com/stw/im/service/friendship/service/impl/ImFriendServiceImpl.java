@@ -27,6 +27,7 @@ import com.stw.im.service.friendship.model.resp.CheckFriendShipResp;
 import com.stw.im.service.friendship.model.resp.ImportFriendShipResp;
 import com.stw.im.service.friendship.service.ImFriendService;
 import com.stw.im.service.friendship.service.ImFriendShipRequestService;
+import com.stw.im.service.message.service.SendPermissionCache;
 import com.stw.im.service.seq.RedisSeq;
 import com.stw.im.service.user.dao.ImUserDataEntity;
 import com.stw.im.service.user.service.ImUserService;
@@ -80,6 +81,9 @@ public class ImFriendServiceImpl implements ImFriendService {
     @Autowired
     WriteUserSeq writeUserSeq;
 
+    @Autowired
+    SendPermissionCache sendPermissionCache;
+
     @Override
     public ResponseVO importFriendShip(ImporFriendShipReq req) {
 
@@ -99,6 +103,7 @@ public class ImFriendServiceImpl implements ImFriendService {
             try {
                 int insert = imFriendShipMapper.insert(entity);
                 if(insert == 1){
+                    sendPermissionCache.invalidateFriendship(req.getAppId(), req.getFromId(), dto.getToId());
                     successId.add(dto.getToId());
                 }else{
                     errorId.add(dto.getToId());
@@ -320,6 +325,8 @@ public class ImFriendServiceImpl implements ImFriendService {
             }
         }
 
+        sendPermissionCache.invalidateFriendship(appId, fromId, dto.getToId());
+
         //发送给from
         AddFriendPack addFriendPack = new AddFriendPack();
         BeanUtils.copyProperties(fromItem,addFriendPack);
@@ -371,6 +378,7 @@ public class ImFriendServiceImpl implements ImFriendService {
                 update.setFriendSequence(seq);
                 update.setStatus(FriendShipStatusEnum.FRIEND_STATUS_DELETE.getCode());
                 imFriendShipMapper.update(update,query);
+                sendPermissionCache.invalidateFriendship(req.getAppId(), req.getFromId(), req.getToId());
                 writeUserSeq.writeUserSeq(req.getAppId(),req.getFromId(),Constants.SeqConstants.Friendship,seq);
                 DeleteFriendPack deleteFriendPack = new DeleteFriendPack();
                 deleteFriendPack.setFromId(req.getFromId());
@@ -405,9 +413,15 @@ public class ImFriendServiceImpl implements ImFriendService {
         query.eq("from_id",req.getFromId());
         query.eq("status",FriendShipStatusEnum.FRIEND_STATUS_NORMAL.getCode());
 
+        //先查出受影响的好友, 更新后让发送权限快照失效
+        List<ImFriendShipEntity> friends = imFriendShipMapper.selectList(query);
+
         ImFriendShipEntity update = new ImFriendShipEntity();
         update.setStatus(FriendShipStatusEnum.FRIEND_STATUS_DELETE.getCode());
         imFriendShipMapper.update(update,query);
+        for (ImFriendShipEntity friend : friends) {
+            sendPermissionCache.invalidateFriendship(req.getAppId(), req.getFromId(), friend.getToId());
+        }
 
         DeleteAllFriendPack deleteFriendPack = new DeleteAllFriendPack();
         deleteFriendPack.setFromId(req.getFromId());
@@ -565,6 +579,8 @@ public class ImFriendServiceImpl implements ImFriendService {
             }
         }
 
+        sendPermissionCache.invalidateFriendship(req.getAppId(), req.getFromId(), req.getToId());
+
         AddFriendBlackPack addFriendBlackPack = new AddFriendBlackPack();
         addFriendBlackPack.setFromId(req.getFromId());
         addFriendBlackPack.setSequence(seq);
@@ -604,6 +620,7 @@ public class ImFriendServiceImpl implements ImFriendService {
         update.setBlack(FriendShipStatusEnum.BLACK_STATUS_NORMAL.getCode());
         int update1 = imFriendShipMapper.update(update, queryFrom);
         if(update1 == 1){
+            sendPermissionCache.invalidateFriendship(req.getAppId(), req.getFromId(), req.getToId());
             writeUserSeq.writeUserSeq(req.getAppId(),req.getFromId(),Constants.SeqConstants.Friendship,seq);
             DeleteBlackPack deleteFriendPack = new DeleteBlackPack();
             deleteFriendPack.setFromId(req.getFromId());
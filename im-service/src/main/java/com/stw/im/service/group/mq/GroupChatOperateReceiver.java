@@ -1,30 +1,24 @@
 package com.stw.im.service.group.mq;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
-import com.alibaba.fastjson.TypeReference;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.command.GroupEventCommand;
 import com.stw.im.common.model.message.GroupChatMessageContent;
+import com.stw.im.common.model.message.LiveRoomMessageContent;
 import com.stw.im.common.model.message.MessageReadedContent;
 import com.stw.im.service.group.service.GroupMessageService;
+import com.stw.im.service.group.service.LiveRoomService;
 import com.stw.im.service.message.service.MessageSyncService;
+import com.stw.im.service.utils.LogicDeadLetterProducer;
 import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.rabbit.annotation.Exchange;
-import org.springframework.amqp.rabbit.annotation.Queue;
-import org.springframework.amqp.rabbit.annotation.QueueBinding;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.messaging.handler.annotation.Headers;
-import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
-
 /**
  * @description:
  * @author: stw
@@ -43,42 +37,67 @@ public class GroupChatOperateReceiver {
     @Autowired
     MessageSyncService messageSyncService;
 
-    @RabbitListener(
-            bindings = @QueueBinding(
-                 value = @Queue(value = Constants.RabbitConstants.Im2GroupService,durable = "true"),
-                 exchange = @Exchange(value = Constants.RabbitConstants.Im2GroupService,durable = "true")
-            ),concurrency = "1"
-    )
-    public void onChatMessage(@Payload Message message,
-                              @Headers Map<String,Object> headers,
-                              Channel channel) throws Exception {
+    @Autowired
+    LiveRoomService liveRoomService;
+
+    @Autowired
+    LogicDeadLetterProducer logicDeadLetterProducer;
+
+    /**
+     * 消费Im2GroupService的分区队列，由LogicQueueConsumers按分区注册
+     */
+    public void onChatMessage(Message message, Channel channel) throws Exception {
         String msg = new String(message.getBody(),"utf-8");
         logger.info("CHAT MSG FORM QUEUE ::: {}", msg);
-        Long deliveryTag = (Long) headers.get(AmqpHeaders.DELIVERY_TAG);
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
         try {
-            JSONObject jsonObject = JSON.parseObject(msg);
-            Integer command = jsonObject.getInteger("command");
-            if(command.equals(GroupEventCommand.MSG_GROUP.getCommand())){
-                //处理消息
-                GroupChatMessageContent messageContent
-                        = jsonObject.toJavaObject(GroupChatMessageContent.class);
-//                p2PMessageService.process(messageContent);
-                groupMessageService.process(messageContent);
-            }else if (command.equals(GroupEventCommand.MSG_GROUP_READED.getCommand())) {
-                MessageReadedContent messageReaded = JSON.parseObject(msg, new TypeReference<MessageReadedContent>() {
-                }.getType());
-                messageSyncService.groupReadMark(messageReaded);
+            if(message.getMessageProperties().getHeaders()
+                    .containsKey(Constants.RabbitConstants.BatchHeader)){
+                //网关批量投递：按顺序逐条处理，单条失败不影响同批其它消息，失败的条目转入死信队列
+                JSONArray batch = JSON.parseArray(msg);
+                JSONArray failed = new JSONArray();
+                for (int i = 0; i < batch.size(); i++) {
+                    JSONObject jsonObject = batch.getJSONObject(i);
+                    try {
+                        handleMessage(jsonObject);
+                    }catch (Exception e){
+                        logger.error("RMQ_CHAT_BATCH_ITEM_ERROR:{}", jsonObject.toJSONString(), e);
+                        failed.add(jsonObject);
+                    }
+                }
+                if(!failed.isEmpty()){
+                    //写入死信失败时走下面的nack，整批进入死信队列
+                    logicDeadLetterProducer.publish(Constants.RabbitConstants.Im2GroupService, failed);
+                }
+            }else{
+                handleMessage(JSON.parseObject(msg));
             }
             channel.basicAck(deliveryTag, false);
         }catch (Exception e){
             logger.error("处理消息出现异常：{}", e.getMessage());
             logger.error("RMQ_CHAT_TRAN_ERROR", e);
             logger.error("NACK_MSG:{}", msg);
-            //第一个false 表示不批量拒绝，第二个false表示不重回队列
+            //第一个false 表示不批量拒绝，第二个false表示不重回队列，转入死信队列
             channel.basicNack(deliveryTag, false, false);
         }
 
     }
 
+    private void handleMessage(JSONObject jsonObject) {
+        Integer command = jsonObject.getInteger("command");
+        if(command.equals(GroupEventCommand.MSG_GROUP.getCommand())){
+            //处理消息
+            GroupChatMessageContent messageContent
+                    = jsonObject.toJavaObject(GroupChatMessageContent.class);
+            groupMessageService.process(messageContent);
+        }else if (command.equals(GroupEventCommand.MSG_GROUP_READED.getCommand())) {
+            MessageReadedContent messageReaded = jsonObject.toJavaObject(MessageReadedContent.class);
+            messageSyncService.groupReadMark(messageReaded);
+        }else if (command.equals(GroupEventCommand.MSG_LIVE_ROOM.getCommand())) {
+            //直播间消息只转发，不存储
+            LiveRoomMessageContent messageContent = jsonObject.toJavaObject(LiveRoomMessageContent.class);
+            liveRoomService.send(messageContent);
+        }
+    }
 
 }
@@ -0,0 +1,245 @@
+package com.stw.im.service.group.service;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.enums.GroupMemberRoleEnum;
+import com.stw.im.service.group.dao.mapper.ImGroupMemberMapper;
+import com.stw.im.service.group.model.req.GroupMemberDto;
+import com.stw.im.service.utils.LocalLruCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @description: 群成员缓存
+ * redis上每个群一个hash(memberId -> role), 字段 __v 记录该快照对应的版本; 版本号单独一个key, 每次成员变更都自增.
+ * 加人/踢人在脚本里原子地 自增版本 + 修改hash, hash不是上一个版本的快照时直接删除等下次从数据库重建;
+ * 改角色、转让群主、解散群只让快照失效.
+ * 本地缓存按版本号保存快照, groupMemberCacheTrustMillis 内直接使用, 超过后只GET一次版本号确认, 热点群发消息不查数据库
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class GroupMemberCache {
+
+    private static final String VERSION_FIELD = "__v";
+
+    /** 快照过期时间, 冷门群的快照自然淘汰 */
+    private static final long SNAPSHOT_TTL_SECONDS = 24 * 3600L;
+
+    private static final long LOCAL_TTL_MILLIS = 10 * 60 * 1000L;
+
+    private static final int LOCAL_MAX_SIZE = 20000;
+
+    /**
+     * KEYS[1] 版本号 KEYS[2] 成员hash
+     * ARGV[1] add/del/clear ARGV[2] memberId ARGV[3] role
+     */
+    private static final RedisScript<Long> PATCH_SCRIPT = new DefaultRedisScript<>(
+            "local old = redis.call('GET', KEYS[1]) or '0' " +
+            "local v = redis.call('INCR', KEYS[1]) " +
+            "if ARGV[1] ~= 'clear' and redis.call('HGET', KEYS[2], '" + VERSION_FIELD + "') == old then " +
+            "  if ARGV[1] == 'add' then redis.call('HSET', KEYS[2], ARGV[2], ARGV[3]) " +
+            "  else redis.call('HDEL', KEYS[2], ARGV[2]) end " +
+            "  redis.call('HSET', KEYS[2], '" + VERSION_FIELD + "', v) " +
+            "else redis.call('DEL', KEYS[2]) end " +
+            "return v", Long.class);
+
+    /**
+     * KEYS[1] 版本号 KEYS[2] 成员hash
+     * ARGV[1] 读数据库前的版本号 ARGV[2] 过期时间 ARGV[3..] memberId, role
+     * 读数据库期间版本变化说明有并发修改, 不写入
+     */
+    private static final RedisScript<Long> LOAD_SCRIPT = new DefaultRedisScript<>(
+            "local v = redis.call('GET', KEYS[1]) or '0' " +
+            "if v ~= ARGV[1] then return 0 end " +
+            "redis.call('DEL', KEYS[2]) " +
+            "for i = 3, #ARGV, 2 do redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('HSET', KEYS[2], '" + VERSION_FIELD + "', v) " +
+            "redis.call('EXPIRE', KEYS[2], ARGV[2]) " +
+            "return 1", Long.class);
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    ImGroupMemberMapper imGroupMemberMapper;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private final LocalLruCache<String, Snapshot> local = new LocalLruCache<>(LOCAL_MAX_SIZE, LOCAL_TTL_MILLIS);
+
+    /**
+     * 群内成员id(不含已退群), 返回的列表不可修改
+     */
+    public List<String> getMemberIds(Integer appId, String groupId) {
+        return snapshot(appId, groupId).memberIds;
+    }
+
+    /**
+     * 群主和管理员, 返回的列表不可修改
+     */
+    public List<GroupMemberDto> getManagers(Integer appId, String groupId) {
+        return snapshot(appId, groupId).managers;
+    }
+
+    /**
+     * 与 getGroupMemberId 的 role != 3 一致, 没有角色(NULL)的成员不算群成员
+     */
+    public void addMember(Integer appId, String groupId, String memberId, Integer role) {
+        if (role == null || role == GroupMemberRoleEnum.LEAVE.getCode()) {
+            removeMember(appId, groupId, memberId);
+            return;
+        }
+        afterCommit(() -> patch(appId, groupId, "add", memberId, String.valueOf(role)));
+    }
+
+    public void removeMember(Integer appId, String groupId, String memberId) {
+        afterCommit(() -> patch(appId, groupId, "del", memberId, ""));
+    }
+
+    /**
+     * 角色变化、转让群主、解散群等, 快照整体失效
+     */
+    public void invalidate(Integer appId, String groupId) {
+        afterCommit(() -> patch(appId, groupId, "clear", "", ""));
+    }
+
+    public Map<String, Object> getMetrics() {
+        return local.getMetrics();
+    }
+
+    private Snapshot snapshot(Integer appId, String groupId) {
+        String cacheKey = appId + ":" + groupId;
+        long now = System.currentTimeMillis();
+        Snapshot snapshot = local.get(cacheKey);
+        if (snapshot != null && now - snapshot.checkTime < trustMillis()) {
+            return snapshot;
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.get(versionKey(appId, groupId).getBytes(StandardCharsets.UTF_8));
+            connection.hGetAll(hashKey(appId, groupId).getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        String version = results.get(0) == null ? "0" : results.get(0).toString();
+        if (snapshot != null && snapshot.version.equals(version)) {
+            snapshot.checkTime = now;
+            return snapshot;
+        }
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> hash = (Map<Object, Object>) results.get(1);
+        if (hash != null && version.equals(hash.get(VERSION_FIELD))) {
+            Map<String, Integer> roles = new HashMap<>(hash.size());
+            for (Map.Entry<Object, Object> entry : hash.entrySet()) {
+                if (!VERSION_FIELD.equals(entry.getKey())) {
+                    roles.put(entry.getKey().toString(), Integer.valueOf(entry.getValue().toString()));
+                }
+            }
+            snapshot = new Snapshot(version, roles, now);
+        } else {
+            snapshot = new Snapshot(version, load(appId, groupId, version), now);
+        }
+        local.put(cacheKey, snapshot);
+        return snapshot;
+    }
+
+    private Map<String, Integer> load(Integer appId, String groupId, String version) {
+        Map<String, Integer> roles = new HashMap<>();
+        List<String> args = new ArrayList<>();
+        args.add(version);
+        args.add(String.valueOf(SNAPSHOT_TTL_SECONDS));
+        for (GroupMemberDto member : imGroupMemberMapper.getGroupMember(appId, groupId)) {
+            // 与 getGroupMemberId 的 role != 3 一致, 角色为NULL的行也不算群成员
+            if (member.getRole() == null || member.getRole() == GroupMemberRoleEnum.LEAVE.getCode()) {
+                continue;
+            }
+            int role = member.getRole();
+            roles.put(member.getMemberId(), role);
+            args.add(member.getMemberId());
+            args.add(String.valueOf(role));
+        }
+        stringRedisTemplate.execute(LOAD_SCRIPT, Arrays.asList(versionKey(appId, groupId), hashKey(appId, groupId)),
+                args.toArray());
+        return roles;
+    }
+
+    private void patch(Integer appId, String groupId, String op, String memberId, String role) {
+        stringRedisTemplate.execute(PATCH_SCRIPT, Arrays.asList(versionKey(appId, groupId), hashKey(appId, groupId)),
+                op, memberId, role);
+        // 本实例立即失效, 其它实例在信任时间过后通过版本号发现变化
+        local.remove(appId + ":" + groupId);
+    }
+
+    /**
+     * 在事务中调用时等提交后再修改缓存, 避免回滚后缓存里留下未生效的成员
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private long trustMillis() {
+        Long trust = appConfig.getGroupMemberCacheTrustMillis();
+        return trust == null ? 1000L : trust;
+    }
+
+    private String versionKey(Integer appId, String groupId) {
+        return appId + ":" + Constants.RedisConstants.GroupMemberVersion + ":" + groupId;
+    }
+
+    private String hashKey(Integer appId, String groupId) {
+        return appId + ":" + Constants.RedisConstants.GroupMember + ":" + groupId;
+    }
+
+    private static class Snapshot {
+
+        private final String version;
+
+        private final List<String> memberIds;
+
+        private final List<GroupMemberDto> managers;
+
+        private volatile long checkTime;
+
+        Snapshot(String version, Map<String, Integer> roles, long checkTime) {
+            this.version = version;
+            this.checkTime = checkTime;
+            List<String> memberIds = new ArrayList<>(roles.size());
+            List<GroupMemberDto> managers = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : roles.entrySet()) {
+                memberIds.add(entry.getKey());
+                int role = entry.getValue();
+                if (role == GroupMemberRoleEnum.OWNER.getCode() || role == GroupMemberRoleEnum.MAMAGER.getCode()) {
+                    GroupMemberDto manager = new GroupMemberDto();
+                    manager.setMemberId(entry.getKey());
+                    manager.setRole(role);
+                    managers.add(manager);
+                }
+            }
+            this.memberIds = Collections.unmodifiableList(memberIds);
+            this.managers = Collections.unmodifiableList(managers);
+        }
+    }
+}
@@ -14,16 +14,13 @@ import com.stw.im.service.message.service.CheckSendMessageService;
 import com.stw.im.service.message.service.DbMessageStoreService;
 import com.stw.im.service.seq.RedisSeq;
 import com.stw.im.service.utils.MessageProducer;
+import com.stw.im.service.utils.OrderedThreadPool;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @description:
@@ -48,76 +45,64 @@ public class GroupMessageService {
     @Autowired
     RedisSeq redisSeq;
 
-    private final ThreadPoolExecutor threadPoolExecutor;
-
-    {
-        AtomicInteger num = new AtomicInteger(0);
-        threadPoolExecutor = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(1000), new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r);
-                thread.setDaemon(true);
-                thread.setName("message-group-thread-" + num.getAndIncrement());
-                return thread;
-            }
-        });
-    }
+    @Autowired
+    OrderedThreadPool orderedThreadPool;
 
+    /**
+     * 同一个群的消息hash到同一个有序通道, 生成序列号、存储、分发严格按到达顺序执行
+     */
     public void process(GroupChatMessageContent messageContent){
-        String fromId = messageContent.getFromId();
-        String groupId = messageContent.getGroupId();
-        Integer appId = messageContent.getAppId();
+        orderedThreadPool.execute(messageContent.getAppId() + ":" + messageContent.getGroupId(),
+                () -> doProcess(messageContent));
+    }
+
+    private void doProcess(GroupChatMessageContent messageContent){
         //前置校验
         //这个用户是否被禁言 是否被禁用
         //发送方和接收方是否是好友
         GroupChatMessageContent messageFromMessageIdCache = messageStoreService.getMessageFromMessageIdCache(messageContent.getAppId(),
                 messageContent.getMessageId(), GroupChatMessageContent.class);
         if(messageFromMessageIdCache != null){
-            threadPoolExecutor.execute(() ->{
-                //1.回ack成功给自己
-                ack(messageContent,ResponseVO.successResponse());
-                //2.发消息给同步在线端
-                syncToSender(messageContent,messageContent);
-                //3.发消息给对方在线端
-                dispatchMessage(messageContent);
-            });
+            //重发的消息已处理过, 只回ack, 不再生成序列号、存储和分发
+            ack(messageContent,ResponseVO.successResponse());
+            return;
         }
         long seq = redisSeq.doGetSeq(messageContent.getAppId() + ":" + Constants.SeqConstants.GroupMessage
                 + messageContent.getGroupId());
         messageContent.setMessageSequence(seq);
-            threadPoolExecutor.execute(() ->{
-                messageStoreService.storeGroupMessage(messageContent);
-
-                List<String> groupMemberId = imGroupMemberService.getGroupMemberId(messageContent.getGroupId(),
-                        messageContent.getAppId());
-                messageContent.setMemberId(groupMemberId);
-
-                OfflineMessageContent offlineMessageContent = new OfflineMessageContent();
-                BeanUtils.copyProperties(messageContent,offlineMessageContent);
-                offlineMessageContent.setToId(messageContent.getGroupId());
-                messageStoreService.storeGroupOfflineMessage(offlineMessageContent,groupMemberId);
-
-                //1.回ack成功给自己
-                ack(messageContent,ResponseVO.successResponse());
-                //2.发消息给同步在线端
-                syncToSender(messageContent,messageContent);
-                //3.发消息给对方在线端
-                dispatchMessage(messageContent);
-
-                messageStoreService.setMessageFromMessageIdCache(messageContent.getAppId(),
-                        messageContent.getMessageId(),messageContent);
-            });
+
+        messageStoreService.storeGroupMessage(messageContent);
+
+        List<String> groupMemberId = imGroupMemberService.getGroupMemberId(messageContent.getGroupId(),
+                messageContent.getAppId());
+        messageContent.setMemberId(groupMemberId);
+
+        OfflineMessageContent offlineMessageContent = new OfflineMessageContent();
+        BeanUtils.copyProperties(messageContent,offlineMessageContent);
+        offlineMessageContent.setToId(messageContent.getGroupId());
+        messageStoreService.storeGroupOfflineMessage(offlineMessageContent,groupMemberId);
+
+        //1.回ack成功给自己
+        ack(messageContent,ResponseVO.successResponse());
+        //2.发消息给同步在线端
+        syncToSender(messageContent,messageContent);
+        //3.发消息给对方在线端
+        dispatchMessage(messageContent);
+
+        messageStoreService.setMessageFromMessageIdCache(messageContent.getAppId(),
+                messageContent.getMessageId(),messageContent);
     }
 
     private void dispatchMessage(GroupChatMessageContent messageContent){
+        //消息只编码一次, 成员列表不下发给客户端; 按网关批量下发
+        MessageProducer.Payload payload = messageProducer.encode(messageContent, "memberId");
+        List<String> toIds = new ArrayList<>(messageContent.getMemberId().size());
         for (String memberId : messageContent.getMemberId()) {
             if(!memberId.equals(messageContent.getFromId())){
-                messageProducer.sendToUser(memberId,
-                        GroupEventCommand.MSG_GROUP,
-                        messageContent,messageContent.getAppId());
+                toIds.add(memberId);
             }
         }
+        messageProducer.sendToUsers(toIds, GroupEventCommand.MSG_GROUP, payload, messageContent.getAppId());
     }
 
     private void ack(MessageContent messageContent,ResponseVO responseVO){
@@ -133,7 +118,7 @@ public class GroupMessageService {
 
     private void syncToSender(GroupChatMessageContent messageContent, ClientInfo clientInfo){
         messageProducer.sendToUserExceptClient(messageContent.getFromId(),
-                GroupEventCommand.MSG_GROUP,messageContent,messageContent);
+                GroupEventCommand.MSG_GROUP,messageProducer.encode(messageContent, "memberId"),messageContent);
     }
 
     private ResponseVO imServerPermissionCheck(String fromId, String toId,Integer appId){
@@ -0,0 +1,136 @@
+package com.stw.im.service.group.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.enums.command.GroupEventCommand;
+import com.stw.im.common.model.message.LiveRoomMessageContent;
+import com.stw.im.service.utils.LocalLruCache;
+import com.stw.im.service.utils.MessageProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description: 直播间消息(不存储)
+ * 成员只记录在连接所在的网关, 逻辑层不查成员: 每条消息按 appId:liveRoom:roomId:brokers 每个网关发一次,
+ * 只取 LiveRoomBrokerTtlMillis 内有心跳的网关, 宕机网关的登记不再收到消息.
+ * 不写消息体、历史和离线消息, 不分配序列号; 每个直播间按 liveRoomMessageRate 限速, 超出的直接丢弃.
+ * 网关按roomId选分区, 同一直播间的消息只由一个实例消费, 本地令牌桶即是该直播间的全局限速
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class LiveRoomService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveRoomService.class);
+
+    /** 网关列表本地缓存时间, 新网关最多延迟这么久收到消息 */
+    private static final long BROKERS_TTL_MILLIS = 1000L;
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    MessageProducer messageProducer;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private final LocalLruCache<String, Set<String>> brokers = new LocalLruCache<>(10000, BROKERS_TTL_MILLIS);
+
+    private final LocalLruCache<String, TokenBucket> buckets = new LocalLruCache<>(10000, 10 * 60 * 1000L);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * 转发直播间消息
+     * @return 超过限速被丢弃时返回false
+     */
+    public boolean send(LiveRoomMessageContent content) {
+        String roomKey = content.getAppId() + ":" + content.getRoomId();
+        if (!bucket(roomKey).tryAcquire()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (content.getMessageTime() == null) {
+            content.setMessageTime(System.currentTimeMillis());
+        }
+        MessagePack<LiveRoomMessageContent> pack = new MessagePack<>();
+        pack.setAppId(content.getAppId());
+        pack.setToId(content.getRoomId());
+        pack.setCommand(GroupEventCommand.MSG_LIVE_ROOM.getCommand());
+        pack.setData(content);
+        String json = JSONObject.toJSONString(pack);
+        for (String brokerId : getBrokers(content.getAppId(), content.getRoomId())) {
+            messageProducer.sendMessage(Integer.valueOf(brokerId), json);
+        }
+        return true;
+    }
+
+    /**
+     * 因限速丢弃的消息数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private Set<String> getBrokers(Integer appId, String roomId) {
+        String key = appId + ":" + Constants.RedisConstants.LiveRoom + ":" + roomId + ":brokers";
+        Set<String> result = brokers.get(key);
+        if (result == null) {
+            result = stringRedisTemplate.opsForZSet().rangeByScore(key,
+                    System.currentTimeMillis() - Constants.RedisConstants.LiveRoomBrokerTtlMillis, Double.MAX_VALUE);
+            if (result == null) {
+                result = Collections.emptySet();
+            }
+            brokers.put(key, result);
+        }
+        return result;
+    }
+
+    private TokenBucket bucket(String roomKey) {
+        TokenBucket bucket = buckets.get(roomKey);
+        if (bucket == null) {
+            Integer rate = appConfig.getLiveRoomMessageRate();
+            bucket = new TokenBucket(rate == null || rate <= 0 ? 50 : rate);
+            buckets.put(roomKey, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * 令牌桶, 容量为一秒的速率, 允许短时突发
+     */
+    private static class TokenBucket {
+
+        private final int rate;
+
+        private double tokens;
+
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(int rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.stw.im.service.group.model.callback.AddMemberAfterCallback;
 import com.stw.im.service.group.model.req.*;
 import com.stw.im.service.group.model.resp.AddMemberResp;
 import com.stw.im.service.group.model.resp.GetRoleInGroupResp;
+import com.stw.im.service.group.service.GroupMemberCache;
 import com.stw.im.service.group.service.ImGroupMemberService;
 import com.stw.im.service.group.service.ImGroupService;
 import com.stw.im.service.user.dao.ImUserDataEntity;
@@ -36,6 +37,8 @@ import com.stw.im.service.utils.GroupMessageProducer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
+import com.stw.im.service.message.service.GroupTimelineService;
+import com.stw.im.service.message.service.SendPermissionCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -72,6 +75,15 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
     @Autowired
     GroupMessageProducer groupMessageProducer;
 
+    @Autowired
+    GroupTimelineService groupTimelineService;
+
+    @Autowired
+    GroupMemberCache groupMemberCache;
+
+    @Autowired
+    SendPermissionCache sendPermissionCache;
+
     @Override
     public ResponseVO importGroupMember(ImportGroupMemberReq req) {
 
@@ -148,6 +160,9 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
             memberDto.setJoinTime(now);
             int insert = imGroupMemberMapper.insert(memberDto);
             if (insert == 1) {
+                groupTimelineService.join(appId, groupId, dto.getMemberId(), now);
+                groupMemberCache.addMember(appId, groupId, dto.getMemberId(), dto.getRole());
+                sendPermissionCache.invalidateMember(appId, groupId, dto.getMemberId());
                 return ResponseVO.successResponse();
             }
             return ResponseVO.errorResponse(GroupErrorCode.USER_JOIN_GROUP_ERROR);
@@ -158,6 +173,9 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
             memberDto.setJoinTime(now);
             int update = imGroupMemberMapper.update(memberDto, query);
             if (update == 1) {
+                groupTimelineService.join(appId, groupId, dto.getMemberId(), now);
+                groupMemberCache.addMember(appId, groupId, dto.getMemberId(), dto.getRole());
+                sendPermissionCache.invalidateMember(appId, groupId, dto.getMemberId());
                 return ResponseVO.successResponse();
             }
             return ResponseVO.errorResponse(GroupErrorCode.USER_JOIN_GROUP_ERROR);
@@ -192,6 +210,9 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
         imGroupMemberEntity.setLeaveTime(System.currentTimeMillis());
         imGroupMemberEntity.setGroupMemberId(data.getGroupMemberId());
         imGroupMemberMapper.updateById(imGroupMemberEntity);
+        groupTimelineService.leave(appId, groupId, memberId);
+        groupMemberCache.removeMember(appId, groupId, memberId);
+        sendPermissionCache.invalidateMember(appId, groupId, memberId);
         return ResponseVO.successResponse();
     }
 
@@ -421,12 +442,12 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
 
     @Override
     public List<String> getGroupMemberId(String groupId, Integer appId) {
-        return imGroupMemberMapper.getGroupMemberId(appId, groupId);
+        return groupMemberCache.getMemberIds(appId, groupId);
     }
 
     @Override
     public List<GroupMemberDto> getGroupManager(String groupId, Integer appId) {
-        return imGroupMemberMapper.getGroupManager(groupId, appId);
+        return groupMemberCache.getManagers(appId, groupId);
     }
 
     @Override
@@ -507,6 +528,10 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
         objectUpdateWrapper.eq("member_id", req.getMemberId());
         objectUpdateWrapper.eq("group_id", req.getGroupId());
         imGroupMemberMapper.update(update, objectUpdateWrapper);
+        if (update.getRole() != null) {
+            groupMemberCache.invalidate(req.getAppId(), req.getGroupId());
+            sendPermissionCache.invalidateMember(req.getAppId(), req.getGroupId(), req.getMemberId());
+        }
 
         UpdateGroupMemberPack pack = new UpdateGroupMemberPack();
         BeanUtils.copyProperties(req, pack);
@@ -520,6 +545,14 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
     @Transactional
     public ResponseVO transferGroupMember(String owner, String groupId, Integer appId) {
 
+        //旧群主和新群主的发送权限快照失效
+        for (GroupMemberDto manager : groupMemberCache.getManagers(appId, groupId)) {
+            if (manager.getRole() == GroupMemberRoleEnum.OWNER.getCode()) {
+                sendPermissionCache.invalidateMember(appId, groupId, manager.getMemberId());
+            }
+        }
+        sendPermissionCache.invalidateMember(appId, groupId, owner);
+
         //更新旧群主
         ImGroupMemberEntity imGroupMemberEntity = new ImGroupMemberEntity();
         imGroupMemberEntity.setRole(GroupMemberRoleEnum.ORDINARY.getCode());
@@ -537,6 +570,7 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
         ownerWrapper.eq("group_id", groupId);
         ownerWrapper.eq("member_id", owner);
         imGroupMemberMapper.update(newOwner, ownerWrapper);
+        groupMemberCache.invalidate(appId, groupId);
 
         return ResponseVO.successResponse();
     }
@@ -608,6 +642,7 @@ public class ImGroupMemberServiceImpl implements ImGroupMemberService {
 
         int i = imGroupMemberMapper.updateById(imGroupMemberEntity);
         if(i == 1){
+            sendPermissionCache.invalidateMember(req.getAppId(), req.getGroupId(), req.getMemberId());
             GroupMemberSpeakPack pack = new GroupMemberSpeakPack();
             BeanUtils.copyProperties(req,pack);
             groupMessageProducer.producer(req.getOperater(),GroupEventCommand.SPEAK_GOUP_MEMBER,pack,
@@ -26,7 +26,10 @@ import com.stw.im.service.group.model.req.*;
 import com.stw.im.service.group.model.resp.GetGroupResp;
 import com.stw.im.service.group.model.resp.GetJoinedGroupResp;
 import com.stw.im.service.group.model.resp.GetRoleInGroupResp;
+import com.stw.im.service.group.service.GroupMemberCache;
 import com.stw.im.service.group.service.ImGroupMemberService;
+import com.stw.im.service.message.service.GroupTimelineService;
+import com.stw.im.service.message.service.SendPermissionCache;
 import com.stw.im.service.group.service.ImGroupService;
 import com.stw.im.service.seq.RedisSeq;
 import com.stw.im.service.utils.CallbackService;
@@ -68,6 +71,15 @@ public class ImGroupServiceImpl implements ImGroupService {
     @Autowired
     RedisSeq redisSeq;
 
+    @Autowired
+    GroupMemberCache groupMemberCache;
+
+    @Autowired
+    SendPermissionCache sendPermissionCache;
+
+    @Autowired
+    GroupTimelineService groupTimelineService;
+
     @Override
     public ResponseVO importGroup(ImportGroupReq req) {
 
@@ -101,6 +113,7 @@ public class ImGroupServiceImpl implements ImGroupService {
         if (insert != 1) {
             throw new ApplicationException(GroupErrorCode.IMPORT_GROUP_ERROR);
         }
+        sendPermissionCache.invalidateGroup(req.getAppId(), req.getGroupId());
 
         return ResponseVO.successResponse();
     }
@@ -140,6 +153,7 @@ public class ImGroupServiceImpl implements ImGroupService {
         imGroupEntity.setStatus(GroupStatusEnum.NORMAL.getCode());
         BeanUtils.copyProperties(req, imGroupEntity);
         int insert = imGroupDataMapper.insert(imGroupEntity);
+        sendPermissionCache.invalidateGroup(req.getAppId(), req.getGroupId());
 
         GroupMemberDto groupMemberDto = new GroupMemberDto();
         groupMemberDto.setMemberId(req.getOwnerId());
@@ -334,6 +348,8 @@ public class ImGroupServiceImpl implements ImGroupService {
         pack.setGroupId(req.getGroupId());
         groupMessageProducer.producer(req.getOperater(),
                 GroupEventCommand.DESTROY_GROUP, pack, new ClientInfo(req.getAppId(), req.getClientType(), req.getImei()));
+        groupMemberCache.invalidate(req.getAppId(), req.getGroupId());
+        groupTimelineService.destroy(req.getAppId(), req.getGroupId());
 
         return ResponseVO.successResponse();
     }
@@ -451,6 +467,7 @@ public class ImGroupServiceImpl implements ImGroupService {
         wrapper.eq("group_id",req.getGroupId());
         wrapper.eq("app_id",req.getAppId());
         imGroupDataMapper.update(update,wrapper);
+        sendPermissionCache.invalidateGroup(req.getAppId(), req.getGroupId());
 
         return ResponseVO.successResponse();
     }
@@ -3,7 +3,11 @@ package com.stw.im.service.message.controller;
 import com.stw.im.common.ResponseVO;
 import com.stw.im.common.model.SyncReq;
 import com.stw.im.common.model.message.CheckSendMessageReq;
+import com.stw.im.service.message.model.req.BatchSendMessageReq;
+import com.stw.im.service.message.model.req.BroadcastMessageReq;
 import com.stw.im.service.message.model.req.SendMessageReq;
+import com.stw.im.service.message.service.BatchMessageService;
+import com.stw.im.service.message.service.BroadcastMessageService;
 import com.stw.im.service.message.service.MessageSyncService;
 import com.stw.im.service.message.service.P2PMessageService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,6 +41,19 @@ public class MessageController {
     @Autowired
     MessageSyncService messageSyncService;
 
+    /**
+     * 注入批量消息服务
+     * 负责服务端批量发送单聊消息
+     */
+    @Autowired
+    BatchMessageService batchMessageService;
+
+    /**
+     * 注入全员广播服务
+     */
+    @Autowired
+    BroadcastMessageService broadcastMessageService;
+
     /**
      * 发送单聊消息接口
      * 接收客户端发送的单聊消息请求，转发给业务层处理并返回结果
@@ -52,6 +69,32 @@ public class MessageController {
         return ResponseVO.successResponse(p2PMessageService.send(req));
     }
 
+    /**
+     * 服务端批量发送单聊消息接口
+     * 支持多条 (发送方, 接收方, 内容) 或同一内容发给多个接收方, 逐条返回发送结果
+     * @param req 批量发送请求参数
+     * @param appId 应用ID，用于多租户隔离
+     * @return 响应结果，包含每条消息的messageKey、发送时间或错误码
+     */
+    @RequestMapping("/batchSend")
+    public ResponseVO batchSend(@RequestBody @Validated BatchSendMessageReq req, Integer appId)  {
+        req.setAppId(appId);
+        return ResponseVO.successResponse(batchMessageService.send(req));
+    }
+
+    /**
+     * 全员广播接口
+     * 发给该应用的所有在线用户（可按客户端类型过滤），离线用户上线后通过离线消息同步
+     * @param req 广播请求参数，包含发送方、消息内容、客户端类型过滤等
+     * @param appId 应用ID，用于多租户隔离
+     * @return 响应结果，包含消息唯一标识（messageKey）和发送时间
+     */
+    @RequestMapping("/broadcast")
+    public ResponseVO broadcast(@RequestBody @Validated BroadcastMessageReq req, Integer appId)  {
+        req.setAppId(appId);
+        return ResponseVO.successResponse(broadcastMessageService.broadcast(req));
+    }
+
     /**
      * 消息发送权限校验接口
      * 校验发送方是否有权限向接收方发送消息（如检查是否为好友、是否被禁言等）
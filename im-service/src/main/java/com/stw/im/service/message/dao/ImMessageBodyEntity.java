@@ -19,9 +19,11 @@ public class ImMessageBodyEntity extends BaseEntity { // 继承BaseEntity
 
     private Long messageTime;
 
+    /** 扩展字段, BaseEntity中没有, 离线消息从库中补齐消息体时需要 */
+    private String extra;
+
     // 以下字段已在BaseEntity中定义，无需重复
     // private Integer appId;
     // private Long createTime;
-    // private String extra;
     // private Integer delFlag;
 }
\ No newline at end of file
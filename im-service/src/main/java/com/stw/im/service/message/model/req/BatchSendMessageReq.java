@@ -0,0 +1,32 @@
+package com.stw.im.service.message.model.req;
+
+import com.stw.im.common.model.RequestBase;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * @author: stw
+ * @description: 服务端批量发送单聊消息
+ * 两种用法二选一:
+ * 1. items: 多条 (fromId, toId, messageBody) 消息
+ * 2. fromId + messageBody + toIds: 同一内容发给多个接收方, 每个接收方的messageId为 messageId-toId
+ * messageId用于幂等, 两种用法都必填(items中每条各自的messageId)
+ **/
+@Data
+public class BatchSendMessageReq extends RequestBase {
+
+    private List<SendMessageReq> items;
+
+    //客户端传的messageId, 同一内容发给多人时作为前缀
+    private String messageId;
+
+    private String fromId;
+
+    private List<String> toIds;
+
+    private String messageBody;
+
+    private String extra;
+
+}
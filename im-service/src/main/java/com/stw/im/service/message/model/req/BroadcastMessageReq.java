@@ -0,0 +1,32 @@
+package com.stw.im.service.message.model.req;
+
+import com.stw.im.common.model.RequestBase;
+import lombok.Data;
+
+import javax.validation.constraints.NotBlank;
+import java.util.List;
+
+/**
+ * @author: stw
+ * @description: 全员广播, 发给该app的所有在线用户, 离线用户上线后同步
+ **/
+@Data
+public class BroadcastMessageReq extends RequestBase {
+
+    //客户端传的messageId
+    @NotBlank(message = "messageId不能为空")
+    private String messageId;
+
+    //发送方, 一般为系统账号
+    @NotBlank(message = "fromId不能为空")
+    private String fromId;
+
+    @NotBlank(message = "messageBody不能为空")
+    private String messageBody;
+
+    private String extra;
+
+    //只下发给这些客户端类型, 为空时下发给所有端
+    private List<Integer> clientTypes;
+
+}
@@ -0,0 +1,36 @@
+package com.stw.im.service.message.model.resp;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description: 批量发送结果, 与请求中的消息一一对应
+ * @author: stw
+ * @version: 1.0
+ */
+@Data
+public class BatchSendMessageResp {
+
+    private List<Item> results = new ArrayList<>();
+
+    @Data
+    public static class Item {
+
+        private String messageId;
+
+        private String fromId;
+
+        private String toId;
+
+        private Long messageKey;
+
+        private Long messageTime;
+
+        //200 成功, 其它为错误码
+        private int code;
+
+        private String msg;
+    }
+}
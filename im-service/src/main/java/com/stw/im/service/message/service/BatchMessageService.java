@@ -0,0 +1,229 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.ResponseVO;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.enums.ConversationTypeEnum;
+import com.stw.im.common.enums.MessageErrorCode;
+import com.stw.im.common.enums.command.MessageCommand;
+import com.stw.im.common.exception.ApplicationException;
+import com.stw.im.common.model.ClientInfo;
+import com.stw.im.common.model.message.MessageContent;
+import com.stw.im.common.model.message.OfflineMessageContent;
+import com.stw.im.service.message.model.req.BatchSendMessageReq;
+import com.stw.im.service.message.model.req.SendMessageReq;
+import com.stw.im.service.message.model.resp.BatchSendMessageResp;
+import com.stw.im.service.seq.RedisSeq;
+import com.stw.im.service.utils.ConversationIdGenerate;
+import com.stw.im.service.utils.MessageProducer;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @description: 服务端批量发送单聊消息(系统通知等)
+ * 与 P2PMessageService.send 的流程一致, 但每一步都按整批处理:
+ * 幂等状态一次脚本抢占, 序列号一次pipeline分配, 存储按批合并成一条mq消息,
+ * 下发按网关分组, 离线消息一次pipeline写入, 结果按请求顺序逐条返回
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class BatchMessageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchMessageService.class);
+
+    /** 单次请求最多的消息数 */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    @Autowired
+    MessageIdempotentService messageIdempotentService;
+
+    @Autowired
+    DbMessageStoreService messageStoreService;
+
+    @Autowired
+    RedisSeq redisSeq;
+
+    @Autowired
+    MessageProducer messageProducer;
+
+    public BatchSendMessageResp send(BatchSendMessageReq req) {
+        Integer appId = req.getAppId();
+        List<MessageContent> messages = expand(req);
+        if (messages.size() > MAX_BATCH_SIZE) {
+            throw new ApplicationException(MessageErrorCode.BATCH_SEND_SIZE_BEYOND);
+        }
+        BatchSendMessageResp resp = new BatchSendMessageResp();
+        if (messages.isEmpty()) {
+            return resp;
+        }
+
+        List<String> fromIds = new ArrayList<>(messages.size());
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (MessageContent message : messages) {
+            fromIds.add(message.getFromId());
+            messageIds.add(message.getMessageId());
+        }
+
+        // 1. 重复发送校验, 一次脚本调用
+        List<MessageIdempotentService.ClaimResult> claims = messageIdempotentService.claimAll(appId, fromIds, messageIds);
+        List<MessageContent> claimed = new ArrayList<>();
+        List<BatchSendMessageResp.Item> claimedItems = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            MessageContent message = messages.get(i);
+            BatchSendMessageResp.Item item = new BatchSendMessageResp.Item();
+            item.setMessageId(message.getMessageId());
+            item.setFromId(message.getFromId());
+            item.setToId(message.getToId());
+            resp.getResults().add(item);
+            MessageIdempotentService.ClaimResult claim = claims.get(i);
+            if (claim == MessageIdempotentService.ClaimResult.PROCESSING) {
+                item.setCode(MessageErrorCode.MESSAGE_IS_PROCESSING.getCode());
+                item.setMsg(MessageErrorCode.MESSAGE_IS_PROCESSING.getError());
+            } else if (claim == MessageIdempotentService.ClaimResult.SUCCESS) {
+                MessageContent cachedMsg = messageStoreService.getMessageFromMessageIdCache(
+                        appId, message.getMessageId(), MessageContent.class);
+                if (cachedMsg != null) {
+                    item.setMessageKey(cachedMsg.getMessageKey());
+                    item.setMessageTime(cachedMsg.getMessageTime());
+                }
+                item.setCode(ResponseVO.successResponse().getCode());
+            } else {
+                claimed.add(message);
+                claimedItems.add(item);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return resp;
+        }
+
+        try {
+            doSend(req, claimed);
+            for (int i = 0; i < claimed.size(); i++) {
+                claimedItems.get(i).setMessageKey(claimed.get(i).getMessageKey());
+                claimedItems.get(i).setMessageTime(claimed.get(i).getMessageTime());
+                claimedItems.get(i).setCode(ResponseVO.successResponse().getCode());
+            }
+        } catch (Exception e) {
+            logger.error("消息批量发送异常，条数：{}", claimed.size(), e);
+            ResponseVO error = ResponseVO.errorResponse("消息发送失败");
+            for (int i = 0; i < claimed.size(); i++) {
+                releaseQuietly(claimed.get(i));
+                claimedItems.get(i).setCode(error.getCode());
+                claimedItems.get(i).setMsg(error.getMsg());
+            }
+        }
+        return resp;
+    }
+
+    private void doSend(BatchSendMessageReq req, List<MessageContent> messages) {
+        Integer appId = req.getAppId();
+
+        // 2. 序列号一次pipeline分配
+        List<String> seqKeys = new ArrayList<>(messages.size());
+        for (MessageContent message : messages) {
+            seqKeys.add(appId + ":" + Constants.SeqConstants.Message + ":" +
+                    ConversationIdGenerate.generateP2PId(message.getFromId(), message.getToId()));
+        }
+        long[] seqs = redisSeq.doGetSeqs(seqKeys);
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).setMessageSequence(seqs[i]);
+        }
+
+        // 3. 存储, 每批合并成一条mq消息
+        messageStoreService.storeP2PMessages(messages);
+
+        // 4. 同步到发送者的其他端和分发到接收者, 都按网关分组发送
+        List<String> fromIds = new ArrayList<>(messages.size());
+        List<String> toIds = new ArrayList<>(messages.size());
+        for (MessageContent message : messages) {
+            fromIds.add(message.getFromId());
+            toIds.add(message.getToId());
+        }
+        ClientInfo exclude = null;
+        if (req.getClientType() != null && StringUtils.isNotBlank(req.getImei())) {
+            exclude = new ClientInfo(appId, req.getClientType(), req.getImei());
+        }
+        messageProducer.sendEach(appId, MessageCommand.MSG_P2P, fromIds, messages, exclude);
+        Set<String> online = messageProducer.sendEach(appId, MessageCommand.MSG_P2P, toIds, messages, null);
+
+        // 5. 接收方离线的写入离线消息
+        List<OfflineMessageContent> offlineMessages = new ArrayList<>();
+        for (MessageContent message : messages) {
+            if (!online.contains(message.getToId())) {
+                OfflineMessageContent offlineMsg = new OfflineMessageContent();
+                BeanUtils.copyProperties(message, offlineMsg);
+                offlineMsg.setConversationType(ConversationTypeEnum.P2P.getCode());
+                offlineMessages.add(offlineMsg);
+            }
+        }
+        if (!offlineMessages.isEmpty()) {
+            messageStoreService.storeOfflineMessages(offlineMessages);
+        }
+
+        // 6. 缓存消息并标记发送成功
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (MessageContent message : messages) {
+            messageIds.add(message.getMessageId());
+        }
+        messageStoreService.setMessageFromMessageIdCaches(appId, messages);
+        messageIdempotentService.successAll(appId, fromIds, messageIds);
+    }
+
+    /**
+     * 展开为逐条消息: items 原样使用, 同一内容发给多人时messageId为 messageId-toId
+     * messageId是幂等键, 两种用法都必须传, 缺失时整批拒绝
+     */
+    private List<MessageContent> expand(BatchSendMessageReq req) {
+        List<MessageContent> messages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        if (req.getItems() != null) {
+            for (SendMessageReq item : req.getItems()) {
+                if (item == null || StringUtils.isBlank(item.getMessageId())) {
+                    throw new ApplicationException(MessageErrorCode.MESSAGEID_IS_EMPTY);
+                }
+                MessageContent message = new MessageContent();
+                BeanUtils.copyProperties(item, message);
+                message.setAppId(req.getAppId());
+                message.setClientType(req.getClientType());
+                message.setImei(req.getImei());
+                message.setMessageTime(now);
+                messages.add(message);
+            }
+        }
+        if (req.getToIds() != null && !req.getToIds().isEmpty()) {
+            if (StringUtils.isBlank(req.getMessageId())) {
+                throw new ApplicationException(MessageErrorCode.MESSAGEID_IS_EMPTY);
+            }
+            for (String toId : req.getToIds()) {
+                MessageContent message = new MessageContent();
+                message.setAppId(req.getAppId());
+                message.setClientType(req.getClientType());
+                message.setImei(req.getImei());
+                message.setMessageId(req.getMessageId() + "-" + toId);
+                message.setFromId(req.getFromId());
+                message.setToId(toId);
+                message.setMessageBody(req.getMessageBody());
+                message.setExtra(req.getExtra());
+                message.setMessageTime(now);
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private void releaseQuietly(MessageContent message) {
+        try {
+            messageIdempotentService.release(message.getAppId(), message.getFromId(), message.getMessageId());
+        } catch (Exception e) {
+            logger.error("释放消息处理状态异常，msgId：{}", message.getMessageId(), e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.stw.im.service.message.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.enums.ConversationTypeEnum;
+import com.stw.im.common.enums.MessageErrorCode;
+import com.stw.im.common.enums.command.MessageCommand;
+import com.stw.im.common.exception.ApplicationException;
+import com.stw.im.common.model.message.ImMessageBody;
+import com.stw.im.common.model.message.MessageContent;
+import com.stw.im.common.model.message.OfflineMessageContent;
+import com.stw.im.service.conversation.service.ConversationService;
+import com.stw.im.service.message.dao.ImMessageBodyEntity;
+import com.stw.im.service.message.dao.mapper.ImMessageBodyMapper;
+import com.stw.im.service.message.model.req.BroadcastMessageReq;
+import com.stw.im.service.message.model.resp.SendMessageResp;
+import com.stw.im.service.utils.OfflineMessageCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @description: 全员广播
+ * 逻辑层只向fanout交换机发一条消息, 各网关遍历自己的本地连接分批写出, 不逐个用户查session.
+ * 只持久化一条记录: 消息体入库一次, 离线消息在 offline:msg:broadcast:{appId} 存一份,
+ * 同步离线消息时按用户补上接收方和会话id后合并.
+ * 限定了 clientTypes 的广播在离线记录中一并保存, 同步时只返回给这些类型的客户端(未传clientType的同步不过滤)
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class BroadcastMessageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastMessageService.class);
+
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    MessageIdempotentService messageIdempotentService;
+
+    @Autowired
+    DbMessageStoreService messageStoreService;
+
+    @Autowired
+    ImMessageBodyMapper imMessageBodyMapper;
+
+    @Autowired
+    OfflineMessageStore offlineMessageStore;
+
+    @Autowired
+    ConversationService conversationService;
+
+    public SendMessageResp broadcast(BroadcastMessageReq req) {
+        SendMessageResp resp = new SendMessageResp();
+        Integer appId = req.getAppId();
+        String messageId = req.getMessageId();
+        MessageIdempotentService.ClaimResult claim = messageIdempotentService.claim(appId, req.getFromId(), messageId);
+        if (claim == MessageIdempotentService.ClaimResult.PROCESSING) {
+            throw new ApplicationException(MessageErrorCode.MESSAGE_IS_PROCESSING);
+        }
+        if (claim == MessageIdempotentService.ClaimResult.SUCCESS) {
+            MessageContent cachedMsg = messageStoreService.getMessageFromMessageIdCache(
+                    appId, messageId, MessageContent.class);
+            if (cachedMsg != null) {
+                resp.setMessageKey(cachedMsg.getMessageKey());
+                resp.setMessageTime(cachedMsg.getMessageTime());
+            }
+            return resp;
+        }
+
+        try {
+            MessageContent message = new MessageContent();
+            message.setAppId(appId);
+            message.setMessageId(messageId);
+            message.setFromId(req.getFromId());
+            message.setMessageBody(req.getMessageBody());
+            message.setExtra(req.getExtra());
+            message.setMessageTime(System.currentTimeMillis());
+
+            // 消息体只存一条
+            ImMessageBody body = messageStoreService.extractMessageBody(message);
+            ImMessageBodyEntity entity = new ImMessageBodyEntity();
+            BeanUtils.copyProperties(body, entity);
+            imMessageBodyMapper.insert(entity);
+            message.setMessageKey(body.getMessageKey());
+
+            // 离线消息只存一份，超过离线消息条数的旧广播裁掉
+            OfflineMessageContent offlineMsg = new OfflineMessageContent();
+            BeanUtils.copyProperties(message, offlineMsg);
+            offlineMsg.setConversationType(ConversationTypeEnum.P2P.getCode());
+            offlineMsg.setClientTypes(req.getClientTypes());
+            offlineMessageStore.append(broadcastKey(appId), offlineMsg, message.getMessageKey());
+
+            // 每个网关一份
+            MessagePack<MessageContent> pack = new MessagePack<>();
+            pack.setAppId(appId);
+            pack.setCommand(MessageCommand.MSG_BROADCAST.getCommand());
+            pack.setData(message);
+            pack.setClientTypes(req.getClientTypes());
+            rabbitTemplate.convertAndSend(Constants.RabbitConstants.Broadcast2Im, "", JSONObject.toJSONString(pack));
+
+            resp.setMessageKey(message.getMessageKey());
+            resp.setMessageTime(message.getMessageTime());
+            messageStoreService.setMessageFromMessageIdCache(appId, messageId, message);
+            messageIdempotentService.success(appId, req.getFromId(), messageId);
+        } catch (Exception e) {
+            logger.error("全员广播异常，msgId：{}", messageId, e);
+            messageIdempotentService.release(appId, req.getFromId(), messageId);
+            throw new RuntimeException("全员广播失败", e);
+        }
+        return resp;
+    }
+
+    /**
+     * 读取用户可见的广播离线消息, 接收方和会话id按用户补齐
+     * 跳过不发给该客户端类型的广播, 不足limit条时继续往后读, 离线广播有条数上限, 最多读完整个zset
+     * @param clientType 同步的客户端类型, 为空时不过滤
+     * @param lastSequence 客户端已同步到的位置(messageKey)
+     */
+    public List<ZSetOperations.TypedTuple<OfflineMessageContent>> read(Integer appId, String userId,
+                                                                      Integer clientType, long lastSequence,
+                                                                      int limit) {
+        List<ZSetOperations.TypedTuple<OfflineMessageContent>> result = new ArrayList<>();
+        double min = lastSequence;
+        while (result.size() < limit) {
+            List<ZSetOperations.TypedTuple<OfflineMessageContent>> tuples = offlineMessageStore.range(appId,
+                    broadcastKey(appId), min, Double.POSITIVE_INFINITY, limit);
+            for (ZSetOperations.TypedTuple<OfflineMessageContent> tuple : tuples) {
+                OfflineMessageContent content = tuple.getValue();
+                if (!visible(content, clientType) || result.size() >= limit) {
+                    continue;
+                }
+                content.setToId(userId);
+                content.setConversationId(conversationService.convertConversationId(
+                        ConversationTypeEnum.P2P.getCode(), userId, content.getFromId()));
+                result.add(tuple);
+            }
+            if (tuples.size() < limit) {
+                break;
+            }
+            // score为messageKey, 从最后一条之后继续
+            min = tuples.get(tuples.size() - 1).getScore() + 1;
+        }
+        return result;
+    }
+
+    /**
+     * 该客户端类型可见的最新广播的位置, 没有广播返回0
+     */
+    public long maxSequence(Integer appId, Integer clientType) {
+        byte[] key = broadcastKey(appId).getBytes(StandardCharsets.UTF_8);
+        int page = 100;
+        for (long start = 0; ; start += page) {
+            long from = start;
+            Set<RedisZSetCommands.Tuple> latest = stringRedisTemplate.execute(
+                    (RedisCallback<Set<RedisZSetCommands.Tuple>>) connection ->
+                            connection.zRevRangeWithScores(key, from, from + page - 1));
+            if (latest == null || latest.isEmpty()) {
+                return 0L;
+            }
+            for (RedisZSetCommands.Tuple tuple : latest) {
+                if (clientType == null || visible(OfflineMessageCodec.decode(tuple.getValue(), appId), clientType)) {
+                    return tuple.getScore().longValue();
+                }
+            }
+            if (latest.size() < page) {
+                return 0L;
+            }
+        }
+    }
+
+    private boolean visible(OfflineMessageContent content, Integer clientType) {
+        return clientType == null || content.getClientTypes() == null || content.getClientTypes().isEmpty()
+                || content.getClientTypes().contains(clientType);
+    }
+
+    private String broadcastKey(Integer appId) {
+        return Constants.OFFLINE_MSG_BROADCAST_KEY_PREFIX + appId;
+    }
+}
@@ -3,15 +3,7 @@ package com.stw.im.service.message.service;
 import com.stw.im.common.ResponseVO;
 import com.stw.im.common.config.AppConfig;
 import com.stw.im.common.enums.*;
-import com.stw.im.service.friendship.dao.ImFriendShipEntity;
-import com.stw.im.service.friendship.model.req.GetRelationReq;
-import com.stw.im.service.friendship.service.ImFriendService;
-import com.stw.im.service.group.dao.ImGroupEntity;
 import com.stw.im.service.group.model.resp.GetRoleInGroupResp;
-import com.stw.im.service.group.service.ImGroupMemberService;
-import com.stw.im.service.group.service.ImGroupService;
-import com.stw.im.service.user.dao.ImUserDataEntity;
-import com.stw.im.service.user.service.ImUserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -28,16 +20,7 @@ import org.springframework.stereotype.Service;
 public class CheckSendMessageService {
 
     @Autowired
-    private ImUserService imUserService; // 用户信息服务，用于查询用户状态
-
-    @Autowired
-    private ImFriendService imFriendService; // 好友关系服务，用于校验好友关系
-
-    @Autowired
-    private ImGroupService imGroupService; // 群组服务，用于查询群组信息
-
-    @Autowired
-    private ImGroupMemberService imGroupMemberService; // 群成员服务，用于查询群成员角色
+    private SendPermissionCache sendPermissionCache; // 发送权限快照缓存，稳定状态下校验不查数据库
 
     @Autowired
     private AppConfig appConfig; // 应用配置，包含消息校验相关的开关配置
@@ -50,20 +33,18 @@ public class CheckSendMessageService {
      * @return 校验结果：成功则返回success，失败则返回对应的错误码
      */
     public ResponseVO checkSenderForvidAndMute(String fromId, Integer appId) {
-        // 查询发送者的用户信息
-        ResponseVO<ImUserDataEntity> singleUserInfo = imUserService.getSingleUserInfo(fromId, appId);
-        if (!singleUserInfo.isOk()) {
-            // 用户信息查询失败，直接返回错误结果
-            return singleUserInfo;
+        // 查询发送者的封禁、禁言标记
+        int[] user = sendPermissionCache.getUser(appId, fromId);
+        if (user == null) {
+            return ResponseVO.errorResponse(UserErrorCode.USER_IS_NOT_EXIST);
         }
 
-        ImUserDataEntity user = singleUserInfo.getData();
         // 校验用户是否被封禁
-        if (user.getForbiddenFlag() == UserForbiddenFlagEnum.FORBIBBEN.getCode()) {
+        if (user[0] == UserForbiddenFlagEnum.FORBIBBEN.getCode()) {
             return ResponseVO.errorResponse(MessageErrorCode.FROMER_IS_FORBIBBEN);
         }
         // 校验用户是否被禁言
-        else if (user.getSilentFlag() == UserSilentFlagEnum.MUTE.getCode()) {
+        else if (user[1] == UserSilentFlagEnum.MUTE.getCode()) {
             return ResponseVO.errorResponse(MessageErrorCode.FROMER_IS_MUTE);
         }
 
@@ -81,44 +62,34 @@ public class CheckSendMessageService {
     public ResponseVO checkFriendShip(String fromId, String toId, Integer appId) {
         // 若配置开启了好友关系校验
         if (appConfig.isSendMessageCheckFriend()) {
-            // 构建发送者到接收者的关系查询请求
-            GetRelationReq fromReq = new GetRelationReq();
-            fromReq.setFromId(fromId);
-            fromReq.setToId(toId);
-            fromReq.setAppId(appId);
-            ResponseVO<ImFriendShipEntity> fromRelation = imFriendService.getRelation(fromReq);
-            if (!fromRelation.isOk()) {
-                // 关系查询失败，返回错误结果
-                return fromRelation;
+            // 发送者到接收者的关系 {status, black}
+            int[] fromRelation = sendPermissionCache.getFriendship(appId, fromId, toId);
+            if (fromRelation == null) {
+                return ResponseVO.errorResponse(FriendShipErrorCode.REPEATSHIP_IS_NOT_EXIST);
             }
 
-            // 构建接收者到发送者的关系查询请求（双向校验）
-            GetRelationReq toReq = new GetRelationReq();
-            toReq.setFromId(toId);
-            toReq.setToId(fromId);
-            toReq.setAppId(appId);
-            ResponseVO<ImFriendShipEntity> toRelation = imFriendService.getRelation(toReq);
-            if (!toRelation.isOk()) {
-                // 关系查询失败，返回错误结果
-                return toRelation;
+            // 接收者到发送者的关系（双向校验）
+            int[] toRelation = sendPermissionCache.getFriendship(appId, toId, fromId);
+            if (toRelation == null) {
+                return ResponseVO.errorResponse(FriendShipErrorCode.REPEATSHIP_IS_NOT_EXIST);
             }
 
             // 校验双方好友关系是否为正常状态
-            if (FriendShipStatusEnum.FRIEND_STATUS_NORMAL.getCode() != fromRelation.getData().getStatus()) {
+            if (FriendShipStatusEnum.FRIEND_STATUS_NORMAL.getCode() != fromRelation[0]) {
                 return ResponseVO.errorResponse(FriendShipErrorCode.FRIEND_IS_DELETED);
             }
-            if (FriendShipStatusEnum.FRIEND_STATUS_NORMAL.getCode() != toRelation.getData().getStatus()) {
+            if (FriendShipStatusEnum.FRIEND_STATUS_NORMAL.getCode() != toRelation[0]) {
                 return ResponseVO.errorResponse(FriendShipErrorCode.FRIEND_IS_DELETED);
             }
 
             // 若配置开启了黑名单校验
             if (appConfig.isSendMessageCheckBlack()) {
                 // 校验发送者是否将接收者加入黑名单
-                if (FriendShipStatusEnum.BLACK_STATUS_NORMAL.getCode() != fromRelation.getData().getBlack()) {
+                if (FriendShipStatusEnum.BLACK_STATUS_NORMAL.getCode() != fromRelation[1]) {
                     return ResponseVO.errorResponse(FriendShipErrorCode.FRIEND_IS_BLACK);
                 }
                 // 校验接收者是否将发送者加入黑名单
-                if (FriendShipStatusEnum.BLACK_STATUS_NORMAL.getCode() != toRelation.getData().getBlack()) {
+                if (FriendShipStatusEnum.BLACK_STATUS_NORMAL.getCode() != toRelation[1]) {
                     return ResponseVO.errorResponse(FriendShipErrorCode.TARGET_IS_BLACK_YOU);
                 }
             }
@@ -142,22 +113,20 @@ public class CheckSendMessageService {
             return responseVO;
         }
 
-        // 校验群组是否存在且状态正常
-        ResponseVO<ImGroupEntity> group = imGroupService.getGroup(groupId, appId);
-        if (!group.isOk()) {
-            return group;
+        // 校验群组是否存在
+        int[] group = sendPermissionCache.getGroup(appId, groupId);
+        if (group == null) {
+            return ResponseVO.errorResponse(GroupErrorCode.GROUP_IS_NOT_EXIST);
         }
 
         // 校验发送者是否为群成员
-        ResponseVO<GetRoleInGroupResp> roleInGroupOne = imGroupMemberService.getRoleInGroupOne(groupId, fromId, appId);
-        if (!roleInGroupOne.isOk()) {
-            return roleInGroupOne;
+        GetRoleInGroupResp memberRole = sendPermissionCache.getMember(appId, groupId, fromId);
+        if (memberRole == null) {
+            return ResponseVO.errorResponse(GroupErrorCode.MEMBER_IS_NOT_JOINED_GROUP);
         }
-        GetRoleInGroupResp memberRole = roleInGroupOne.getData();
 
         // 校验群组是否被禁言（仅管理员和群主可发言）
-        ImGroupEntity groupData = group.getData();
-        if (groupData.getMute() == GroupMuteTypeEnum.MUTE.getCode()
+        if (group[0] == GroupMuteTypeEnum.MUTE.getCode()
                 && !(memberRole.getRole() == GroupMemberRoleEnum.MAMAGER.getCode()
                 || memberRole.getRole() == GroupMemberRoleEnum.OWNER.getCode())) {
             return ResponseVO.errorResponse(GroupErrorCode.THIS_GROUP_IS_MUTE);
@@ -171,4 +140,4 @@ public class CheckSendMessageService {
         // 校验通过
         return ResponseVO.successResponse();
     }
-}
\ No newline at end of file
+}
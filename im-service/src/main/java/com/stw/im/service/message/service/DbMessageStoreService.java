@@ -1,6 +1,8 @@
 package com.stw.im.service.message.service;
 
 import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.Feature;
+import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.stw.im.common.config.AppConfig;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.ConversationTypeEnum;
@@ -13,18 +15,25 @@ import com.stw.im.service.message.dao.ImMessageBodyEntity;
 import com.stw.im.service.message.dao.ImMessageHistoryEntity;
 import com.stw.im.service.message.dao.mapper.ImMessageBodyMapper;
 import com.stw.im.service.message.dao.mapper.ImMessageHistoryMapper;
+import com.stw.im.service.utils.LocalLruCache;
 import com.stw.im.service.utils.SnowflakeIdWorker;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @description: 消息存储核心服务类
@@ -59,6 +68,25 @@ public class DbMessageStoreService {
     @Autowired
     AppConfig appConfig; // 应用配置，包含离线消息数量限制等
 
+    @Autowired
+    GroupTimelineService groupTimelineService; // 大群离线消息时间线
+
+    @Autowired
+    OfflineMessageStore offlineMessageStore; // 离线消息追加裁剪
+
+    /** 已处理消息在Redis中的缓存时间，覆盖客户端的重发时间 */
+    private static final long MESSAGE_CACHE_REDIS_SECONDS = 30 * 60;
+
+    /** 已处理消息的本地缓存，重发一般很快到达，本地只保留短时间 */
+    private final LocalLruCache<String, String> messageIdLocalCache = new LocalLruCache<>(10000, 5 * 60 * 1000L);
+
+    private final AtomicLong messageIdRedisHit = new AtomicLong();
+
+    private final AtomicLong messageIdRedisMiss = new AtomicLong();
+
+    /** 批量存储时每条mq消息携带的消息数 */
+    private static final int STORE_BATCH_SIZE = 200;
+
     /**
      * 存储单聊消息（异步方式）
      * 核心逻辑：生成消息体 -> 封装DTO -> 发送到RabbitMQ队列，由消息存储服务异步处理持久化
@@ -80,6 +108,31 @@ public class DbMessageStoreService {
                 JSONObject.toJSONString(dto));
     }
 
+    /**
+     * 批量存储单聊消息（服务端批量发送）
+     * 每批最多 STORE_BATCH_SIZE 条合并成一个DTO数组发送，由存储服务多行insert
+     */
+    public void storeP2PMessages(List<MessageContent> messageContents){
+        List<DoStoreP2PMessageDto> batch = new ArrayList<>(Math.min(messageContents.size(), STORE_BATCH_SIZE));
+        for (MessageContent messageContent : messageContents) {
+            ImMessageBody imMessageBodyEntity = extractMessageBody(messageContent);
+            DoStoreP2PMessageDto dto = new DoStoreP2PMessageDto();
+            dto.setMessageContent(messageContent);
+            dto.setMessageBody(imMessageBodyEntity);
+            messageContent.setMessageKey(imMessageBodyEntity.getMessageKey());
+            batch.add(dto);
+            if (batch.size() >= STORE_BATCH_SIZE) {
+                rabbitTemplate.convertAndSend(Constants.RabbitConstants.StoreP2PMessage, "",
+                        JSONObject.toJSONString(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            rabbitTemplate.convertAndSend(Constants.RabbitConstants.StoreP2PMessage, "",
+                    JSONObject.toJSONString(batch));
+        }
+    }
+
     /**
      * 提取消息体实体
      * 将消息内容转换为可持久化的消息体对象，生成唯一messageKey
@@ -155,79 +208,148 @@ public class DbMessageStoreService {
     }
 
     /**
-     * 缓存消息到Redis（按messageId）
-     * 用于消息去重和快速查询（未实现具体缓存逻辑）
+     * 缓存已处理的消息（按messageId），两级缓存：本地LRU + Redis
+     * 用于重发消息直接回复结果，不再生成序列号、存储和分发
+     * 序列化使用字段数组格式（BeanToArray），不带字段名；群消息不缓存成员列表
      */
     public void setMessageFromMessageIdCache(Integer appId,String messageId,Object messageContent){
-        // 缓存键格式：appid:cache:message:messageId
+        // 缓存键格式：appid:cacheMessage:messageId
         String key =appId + ":" + Constants.RedisConstants.cacheMessage + ":" + messageId;
-        // TODO: 实际项目中需添加缓存逻辑，如stringRedisTemplate.opsForValue().set(key, JSONObject.toJSONString(messageContent));
+        Object cacheValue = messageContent;
+        if (messageContent instanceof GroupChatMessageContent) {
+            GroupChatMessageContent groupContent = new GroupChatMessageContent();
+            BeanUtils.copyProperties(messageContent, groupContent);
+            groupContent.setMemberId(null);
+            cacheValue = groupContent;
+        }
+        String value = JSONObject.toJSONString(cacheValue, SerializerFeature.BeanToArray);
+        messageIdLocalCache.put(key, value);
+        stringRedisTemplate.opsForValue().set(key, value, MESSAGE_CACHE_REDIS_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
-     * 从Redis缓存获取消息（按messageId）
+     * 批量缓存已处理的消息，Redis写入一次pipeline发送
+     */
+    public void setMessageFromMessageIdCaches(Integer appId, List<MessageContent> messageContents){
+        Map<String, String> values = new LinkedHashMap<>(messageContents.size() * 2);
+        for (MessageContent messageContent : messageContents) {
+            String key = appId + ":" + Constants.RedisConstants.cacheMessage + ":" + messageContent.getMessageId();
+            String value = JSONObject.toJSONString(messageContent, SerializerFeature.BeanToArray);
+            messageIdLocalCache.put(key, value);
+            values.put(key, value);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                connection.setEx(entry.getKey().getBytes(StandardCharsets.UTF_8), MESSAGE_CACHE_REDIS_SECONDS,
+                        entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从缓存获取已处理的消息（按messageId），先查本地再查Redis
      * 用于消息去重校验（避免重复处理）
      */
     public <T> T getMessageFromMessageIdCache(Integer appId,
                                               String messageId,Class<T> clazz){
         String key = appId + ":" + Constants.RedisConstants.cacheMessage + ":" + messageId;
-        String msg = stringRedisTemplate.opsForValue().get(key);
-        if(StringUtils.isBlank(msg)){
+        String msg = messageIdLocalCache.get(key);
+        if (msg == null) {
+            msg = stringRedisTemplate.opsForValue().get(key);
+            if(StringUtils.isBlank(msg)){
+                messageIdRedisMiss.incrementAndGet();
+                return null;
+            }
+            messageIdRedisHit.incrementAndGet();
+            messageIdLocalCache.put(key, msg);
+        }
+        try {
+            return JSONObject.parseObject(msg, clazz, Feature.SupportArrayToBean); // 反序列化为指定类型
+        } catch (Exception e) {
+            // 字段变更后旧格式无法解析，按未命中处理
+            messageIdLocalCache.remove(key);
             return null;
         }
-        return JSONObject.parseObject(msg, clazz); // 反序列化为指定类型
+    }
+
+    /**
+     * 消息缓存的命中、淘汰情况
+     */
+    public Map<String, Object> getMessageIdCacheMetrics() {
+        Map<String, Object> metrics = new HashMap<>(messageIdLocalCache.getMetrics());
+        metrics.put("redisHits", messageIdRedisHit.get());
+        metrics.put("redisMisses", messageIdRedisMiss.get());
+        return metrics;
     }
 
     /**
      * 存储单聊离线消息到Redis
-     * 当接收方离线时，将消息存入ZSet（按messageSeq排序，便于同步）
+     * 当接收方离线时，将消息存入接收方的离线消息ZSet（与同步接口读取的键一致，按messageKey排序）
      */
     public void storeOfflineMessage(OfflineMessageContent offlineMessage){
 
-        Integer appId = offlineMessage.getAppId();
-        String receiverId = offlineMessage.getToId();
-        // 新键格式：offline:msg:p2p:{appId}:{receiverId}
-        String toKey = Constants.OFFLINE_MSG_P2P_KEY_PREFIX + appId + ":" + receiverId;
-
-        ZSetOperations<String, String> operations = stringRedisTemplate.opsForZSet();
-        // 用messageSequence作为score（确保按发送顺序排序）
-        double score = offlineMessage.getMessageSequence();
-        // 存储消息
-        operations.add(toKey, JSONObject.toJSONString(offlineMessage), score);
-
-        // 超过离线消息限制时，移除最早的消息（按score排序）
-        if (operations.zCard(toKey) > appConfig.getOfflineMessageCount()) {
-            operations.removeRange(toKey, 0, 0); // 移除score最小的元素
+        // 键格式：{appId}:offlineMessage:{receiverId}
+        String toKey = offlineMessage.getAppId() + ":" +
+                Constants.RedisConstants.OfflineMessage + ":" +
+                offlineMessage.getToId();
+        if (offlineMessage.getConversationId() == null) {
+            // 接收方视角的会话ID
+            offlineMessage.setConversationId(conversationService.convertConversationId(
+                    ConversationTypeEnum.P2P.getCode(), offlineMessage.getToId(), offlineMessage.getFromId()));
         }
+        // 追加并裁剪到离线消息条数上限（原子操作）
+        offlineMessageStore.append(toKey, offlineMessage, offlineMessage.getMessageKey());
     }
 
+    /**
+     * 批量存储单聊离线消息（服务端批量发送给离线用户），所有接收方一次pipeline写入
+     */
+    public void storeOfflineMessages(List<OfflineMessageContent> offlineMessages){
+        List<String> keys = new ArrayList<>(offlineMessages.size());
+        for (OfflineMessageContent offlineMessage : offlineMessages) {
+            keys.add(offlineMessage.getAppId() + ":" +
+                    Constants.RedisConstants.OfflineMessage + ":" +
+                    offlineMessage.getToId());
+            if (offlineMessage.getConversationId() == null) {
+                offlineMessage.setConversationId(conversationService.convertConversationId(
+                        ConversationTypeEnum.P2P.getCode(), offlineMessage.getToId(), offlineMessage.getFromId()));
+            }
+        }
+        offlineMessageStore.appendEach(keys, offlineMessages);
+    }
 
     /**
      * 存储群聊离线消息到Redis
-     * 为群内每个成员（除发送方）存储离线消息
+     * 小群为每个群成员写一份（会话ID按成员生成），所有成员的写入一次pipeline批量发送
      */
     public void storeGroupOfflineMessage(OfflineMessageContent offlineMessage
             ,List<String> memberIds){
 
-        ZSetOperations<String, String> operations = stringRedisTemplate.opsForZSet();
         offlineMessage.setConversationType(ConversationTypeEnum.GROUP.getCode()); // 标记为群聊消息
 
+        // 大群只写一份群时间线，成员同步时按游标读取（会话ID在同步时按成员生成）
+        if (groupTimelineService.useTimeline(memberIds.size())) {
+            groupTimelineService.store(offlineMessage, offlineMessage.getToId(), offlineMessage.getMessageKey());
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(memberIds.size());
+        List<OfflineMessageContent> values = new ArrayList<>(memberIds.size());
         for (String memberId : memberIds) {
             // 每个群成员的离线消息队列键
-            String toKey = offlineMessage.getAppId() + ":" +
+            keys.add(offlineMessage.getAppId() + ":" +
                     Constants.RedisConstants.OfflineMessage + ":" +
-                    memberId;
-            // 设置会话ID（群聊会话ID格式）
-            offlineMessage.setConversationId(conversationService.convertConversationId(
+                    memberId);
+            // 每个成员只是会话ID不同（群聊会话ID格式），消息体只存一份
+            OfflineMessageContent memberMessage = new OfflineMessageContent();
+            BeanUtils.copyProperties(offlineMessage, memberMessage);
+            memberMessage.setConversationId(conversationService.convertConversationId(
                     ConversationTypeEnum.GROUP.getCode(),memberId,offlineMessage.getToId()
             ));
-            // 超过限制时移除最早消息
-            if(operations.zCard(toKey) > appConfig.getOfflineMessageCount()){
-                operations.removeRange(toKey,0,0);
-            }
-            // 存入ZSet
-            operations.add(toKey,JSONObject.toJSONString(offlineMessage),
-                    offlineMessage.getMessageKey());
+            values.add(memberMessage);
         }
+        // 追加并裁剪（超过限制时移除最早消息）
+        offlineMessageStore.appendAll(keys, values, offlineMessage.getMessageKey());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,151 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.model.message.OfflineMessageContent;
+import com.stw.im.service.utils.SnowflakeIdWorker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * @description: 大群离线消息时间线(读扩散)
+ * 成员数超过 groupTimelineThreshold 的群, 离线消息只在群时间线里存一份(score为messageKey),
+ * 每个成员只记录入群位置作为游标, 同步离线消息时从 max(客户端同步位置, 入群位置) 开始读取.
+ * 群解散后移出大群集合并删除时间线和游标
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class GroupTimelineService {
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    AppConfig appConfig;
+
+    @Autowired
+    OfflineMessageStore offlineMessageStore;
+
+    /**
+     * 该群是否使用时间线存储
+     */
+    public boolean useTimeline(int memberCount) {
+        Integer threshold = appConfig.getGroupTimelineThreshold();
+        return threshold != null && threshold > 0 && memberCount > threshold;
+    }
+
+    /**
+     * 写入群时间线, 超过离线消息条数的旧消息裁掉
+     * @param score 时间线位置, 普通消息为messageKey, 撤回标记使用新生成的id
+     */
+    public void store(OfflineMessageContent offlineMessage, String groupId, long score) {
+        Integer appId = offlineMessage.getAppId();
+        offlineMessageStore.append(timelineKey(appId, groupId), offlineMessage, score);
+        stringRedisTemplate.opsForSet().add(Constants.OFFLINE_MSG_GROUP_TIMELINES_PREFIX + appId, groupId);
+    }
+
+    /**
+     * 成员入群时记录游标, 入群前的时间线消息不会同步给该成员
+     */
+    public void join(Integer appId, String groupId, String memberId, long joinTime) {
+        stringRedisTemplate.opsForHash().put(cursorKey(appId, groupId), memberId,
+                String.valueOf(SnowflakeIdWorker.minIdOf(joinTime)));
+    }
+
+    /**
+     * 成员退群删除游标
+     */
+    public void leave(Integer appId, String groupId, String memberId) {
+        stringRedisTemplate.opsForHash().delete(cursorKey(appId, groupId), memberId);
+    }
+
+    /**
+     * 群解散: 移出大群集合, 删除时间线和游标; 在事务中调用时提交后再删除
+     */
+    public void destroy(Integer appId, String groupId) {
+        Runnable action = () -> {
+            stringRedisTemplate.opsForSet().remove(Constants.OFFLINE_MSG_GROUP_TIMELINES_PREFIX + appId, groupId);
+            stringRedisTemplate.delete(Arrays.asList(timelineKey(appId, groupId), cursorKey(appId, groupId)));
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * 用户所在群中使用时间线存储的群
+     */
+    public List<String> getTimelineGroups(Integer appId, Supplier<Collection<String>> joinedGroups) {
+        Set<String> timelineGroups = stringRedisTemplate.opsForSet()
+                .members(Constants.OFFLINE_MSG_GROUP_TIMELINES_PREFIX + appId);
+        if (timelineGroups == null || timelineGroups.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 没有大群时不用查询用户加入的群
+        Collection<String> joinedGroupIds = joinedGroups.get();
+        if (joinedGroupIds == null || joinedGroupIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        for (String groupId : joinedGroupIds) {
+            if (timelineGroups.contains(groupId)) {
+                result.add(groupId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取成员可见的时间线消息(只有引用, 消息体由调用方批量补齐)
+     * @param lastSequence 客户端已同步到的位置(messageKey)
+     */
+    public List<ZSetOperations.TypedTuple<OfflineMessageContent>> read(Integer appId, String groupId, String memberId,
+                                                       long lastSequence, int limit) {
+        Object cursor = stringRedisTemplate.opsForHash().get(cursorKey(appId, groupId), memberId);
+        long from = lastSequence;
+        if (cursor != null) {
+            from = Math.max(from, Long.parseLong(cursor.toString()));
+        }
+        return offlineMessageStore.range(appId, timelineKey(appId, groupId), from, Double.POSITIVE_INFINITY, limit);
+    }
+
+    /**
+     * 时间线中最新消息的位置, 没有消息返回0
+     */
+    public long maxSequence(Integer appId, String groupId) {
+        Set<ZSetOperations.TypedTuple<String>> latest = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(timelineKey(appId, groupId), 0, 0);
+        if (latest == null || latest.isEmpty()) {
+            return 0L;
+        }
+        return latest.iterator().next().getScore().longValue();
+    }
+
+    private String timelineKey(Integer appId, String groupId) {
+        return Constants.OFFLINE_MSG_GROUP_KEY_PREFIX + appId + ":" + groupId;
+    }
+
+    private String cursorKey(Integer appId, String groupId) {
+        return Constants.OFFLINE_MSG_GROUP_CURSOR_PREFIX + appId + ":" + groupId;
+    }
+}
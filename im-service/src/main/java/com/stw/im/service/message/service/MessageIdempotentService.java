@@ -0,0 +1,214 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.constant.Constants;
+import com.stw.im.service.utils.LocalLruCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @description: 消息幂等校验
+ * 一次脚本调用完成 查状态 + 抢占处理权, 不再每条消息 GET + GET + SET.
+ * redis上按 发送方 + 小时窗口 存一个hash(field=messageId), 代替每条消息一个key:
+ * 小hash是紧凑编码, 整个窗口随key一起过期. 校验时同时查当前和上一个窗口, 保证窗口边界上的重发也能识别.
+ * 本地LRU缓存最近处理成功的messageId, 重发命中时不访问redis
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class MessageIdempotentService {
+
+    /** 时间窗口长度, 重发一般在秒级到分钟级, 保留1~2个窗口足够 */
+    private static final long WINDOW_MILLIS = 3600 * 1000L;
+
+    /** 处理中状态超过该时间视为处理方已失败, 允许重新处理 */
+    private static final long PROCESSING_TIMEOUT = 5 * 60 * 1000L;
+
+    /**
+     * KEYS[1] 当前窗口 KEYS[2] 上一窗口
+     * ARGV[1] messageId ARGV[2] 当前时间 ARGV[3] 处理中超时时间 ARGV[4] 窗口key过期时间
+     * 返回 0 抢占成功 1 处理中 2 已处理成功
+     */
+    private static final RedisScript<Long> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, 2 do " +
+            "  local v = redis.call('HGET', KEYS[i], ARGV[1]) " +
+            "  if v then " +
+            "    if v == 'S' then return 2 end " +
+            "    if string.sub(v, 1, 1) == 'P' and tonumber(string.sub(v, 2)) > tonumber(ARGV[2]) then return 1 end " +
+            "  end " +
+            "end " +
+            "redis.call('HSET', KEYS[1], ARGV[1], 'P' .. (tonumber(ARGV[2]) + tonumber(ARGV[3]))) " +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[4]) " +
+            "return 0", Long.class);
+
+    private static final RedisScript<Long> SUCCESS_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HSET', KEYS[1], ARGV[1], 'S') " +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HDEL', KEYS[1], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[2], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * 批量抢占, 每条消息占用两个key(当前窗口、上一窗口)
+     * KEYS[2j-1] KEYS[2j] 第j条消息的窗口 ARGV[1] 当前时间 ARGV[2] 处理中超时时间 ARGV[3] 窗口key过期时间
+     * ARGV[3+j] 第j条消息的messageId, 返回每条消息的结果
+     */
+    private static final RedisScript<List> CLAIM_ALL_SCRIPT = new DefaultRedisScript<>(
+            "local result = {} " +
+            "for j = 1, #ARGV - 3 do " +
+            "  local id = ARGV[3 + j] " +
+            "  local code = 0 " +
+            "  for i = 2 * j - 1, 2 * j do " +
+            "    local v = redis.call('HGET', KEYS[i], id) " +
+            "    if v == 'S' then code = 2 break end " +
+            "    if v and string.sub(v, 1, 1) == 'P' and tonumber(string.sub(v, 2)) > tonumber(ARGV[1]) then code = 1 break end " +
+            "  end " +
+            "  if code == 0 then " +
+            "    redis.call('HSET', KEYS[2 * j - 1], id, 'P' .. (tonumber(ARGV[1]) + tonumber(ARGV[2]))) " +
+            "    redis.call('PEXPIRE', KEYS[2 * j - 1], ARGV[3]) " +
+            "  end " +
+            "  result[j] = code " +
+            "end " +
+            "return result", List.class);
+
+    /**
+     * KEYS[j] 第j条消息的当前窗口 ARGV[1] 窗口key过期时间 ARGV[1+j] 第j条消息的messageId
+     */
+    private static final RedisScript<Long> SUCCESS_ALL_SCRIPT = new DefaultRedisScript<>(
+            "for j = 1, #KEYS do " +
+            "  redis.call('HSET', KEYS[j], ARGV[1 + j], 'S') " +
+            "  redis.call('PEXPIRE', KEYS[j], ARGV[1]) " +
+            "end " +
+            "return #KEYS", Long.class);
+
+    public enum ClaimResult {
+        /** 抢占成功, 由当前调用方处理 */
+        CLAIMED,
+        /** 其它线程/实例正在处理 */
+        PROCESSING,
+        /** 已处理成功 */
+        SUCCESS
+    }
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    private final LocalLruCache<String, Boolean> completed = new LocalLruCache<>(100000, WINDOW_MILLIS);
+
+    /**
+     * 查状态并抢占处理权
+     */
+    public ClaimResult claim(Integer appId, String fromId, String messageId) {
+        if (completed.get(localKey(appId, fromId, messageId)) != null) {
+            return ClaimResult.SUCCESS;
+        }
+        long now = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(CLAIM_SCRIPT, windowKeys(appId, fromId, now), messageId,
+                String.valueOf(now), String.valueOf(PROCESSING_TIMEOUT), String.valueOf(WINDOW_MILLIS * 2));
+        if (result != null && result == 2) {
+            completed.put(localKey(appId, fromId, messageId), Boolean.TRUE);
+            return ClaimResult.SUCCESS;
+        }
+        return result != null && result == 1 ? ClaimResult.PROCESSING : ClaimResult.CLAIMED;
+    }
+
+    /**
+     * 批量查状态并抢占处理权, 一次脚本调用, 结果与入参一一对应
+     */
+    public List<ClaimResult> claimAll(Integer appId, List<String> fromIds, List<String> messageIds) {
+        ClaimResult[] results = new ClaimResult[messageIds.size()];
+        List<Integer> remote = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(now));
+        args.add(String.valueOf(PROCESSING_TIMEOUT));
+        args.add(String.valueOf(WINDOW_MILLIS * 2));
+        for (int i = 0; i < messageIds.size(); i++) {
+            if (completed.get(localKey(appId, fromIds.get(i), messageIds.get(i))) != null) {
+                results[i] = ClaimResult.SUCCESS;
+                continue;
+            }
+            remote.add(i);
+            keys.addAll(windowKeys(appId, fromIds.get(i), now));
+            args.add(messageIds.get(i));
+        }
+        if (!remote.isEmpty()) {
+            List codes = stringRedisTemplate.execute(CLAIM_ALL_SCRIPT, keys, args.toArray());
+            for (int j = 0; j < remote.size(); j++) {
+                int i = remote.get(j);
+                long code = codes == null ? 0 : ((Number) codes.get(j)).longValue();
+                if (code == 2) {
+                    completed.put(localKey(appId, fromIds.get(i), messageIds.get(i)), Boolean.TRUE);
+                    results[i] = ClaimResult.SUCCESS;
+                } else {
+                    results[i] = code == 1 ? ClaimResult.PROCESSING : ClaimResult.CLAIMED;
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 批量标记处理成功
+     */
+    public void successAll(Integer appId, List<String> fromIds, List<String> messageIds) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(messageIds.size());
+        List<String> args = new ArrayList<>(messageIds.size() + 1);
+        args.add(String.valueOf(WINDOW_MILLIS * 2));
+        for (int i = 0; i < messageIds.size(); i++) {
+            keys.add(windowKeys(appId, fromIds.get(i), now).get(0));
+            args.add(messageIds.get(i));
+        }
+        stringRedisTemplate.execute(SUCCESS_ALL_SCRIPT, keys, args.toArray());
+        for (int i = 0; i < messageIds.size(); i++) {
+            completed.put(localKey(appId, fromIds.get(i), messageIds.get(i)), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 标记处理成功
+     */
+    public void success(Integer appId, String fromId, String messageId) {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.execute(SUCCESS_SCRIPT, windowKeys(appId, fromId, now).subList(0, 1), messageId,
+                String.valueOf(WINDOW_MILLIS * 2));
+        completed.put(localKey(appId, fromId, messageId), Boolean.TRUE);
+    }
+
+    /**
+     * 处理失败, 释放处理权允许客户端重发后再次处理
+     */
+    public void release(Integer appId, String fromId, String messageId) {
+        stringRedisTemplate.execute(RELEASE_SCRIPT, windowKeys(appId, fromId, System.currentTimeMillis()),
+                messageId);
+    }
+
+    public Map<String, Object> getMetrics() {
+        return completed.getMetrics();
+    }
+
+    private List<String> windowKeys(Integer appId, String fromId, long now) {
+        long window = now / WINDOW_MILLIS;
+        String prefix = Constants.MSG_STATUS_KEY_PREFIX + appId + ":" + fromId + ":";
+        return Arrays.asList(prefix + window, prefix + (window - 1));
+    }
+
+    private String localKey(Integer appId, String fromId, String messageId) {
+        return appId + ":" + fromId + ":" + messageId;
+    }
+}
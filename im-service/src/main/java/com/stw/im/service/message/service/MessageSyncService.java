@@ -1,6 +1,5 @@
 package com.stw.im.service.message.service;
 
-import com.alibaba.fastjson.JSONObject;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.core.toolkit.CollectionUtils;
 import com.stw.im.codec.pack.message.MessageReadedPack;
@@ -37,6 +36,8 @@ import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 
@@ -75,6 +76,21 @@ public class MessageSyncService {
     @Autowired
     private GroupMessageProducer groupMessageProducer;  // 群聊消息生产者
 
+    @Autowired
+    private GroupTimelineService groupTimelineService;  // 大群离线消息时间线
+
+    @Autowired
+    private BroadcastMessageService broadcastMessageService;  // 全员广播
+
+    @Autowired
+    private ReceiveAckAggregator receiveAckAggregator;  // 累计接收确认合并转发
+
+    @Autowired
+    private ReadMarkAggregator readMarkAggregator;  // 已读标记合并写入
+
+    @Autowired
+    private OfflineMessageStore offlineMessageStore;  // 离线消息追加裁剪
+
 
     /**
      * 处理消息接收确认
@@ -82,6 +98,11 @@ public class MessageSyncService {
      * @param messageReciveAckContent 消息接收确认内容，包含发送方、接收方等信息
      */
     public void receiveMark(MessageReciveAckContent messageReciveAckContent) {
+        // 累计确认先合并，窗口结束后每个会话只转发一次
+        if (Boolean.TRUE.equals(messageReciveAckContent.getCumulative()) && receiveAckAggregator.isEnable()) {
+            receiveAckAggregator.offer(messageReciveAckContent);
+            return;
+        }
         // 发送接收确认指令给消息接收方
         messageProducer.sendToUser(
                 messageReciveAckContent.getToId(),
@@ -99,9 +120,20 @@ public class MessageSyncService {
      * @param messageContent 消息已读内容，包含会话类型、消息序号等信息
      */
     public void readMark(MessageReadedContent messageContent) {
+        // 开启合并时只保留序列号最大的一次，批量写入后再通知
+        if (readMarkAggregator.isEnable()) {
+            readMarkAggregator.offer(messageContent, this::notifyReadMark);
+            return;
+        }
         // 更新会话的已读状态
         conversationService.messageMarkRead(messageContent);
+        notifyReadMark(messageContent);
+    }
 
+    /**
+     * 单聊已读通知：同步到当前用户的其他端，并向消息发送方发送已读回执
+     */
+    private void notifyReadMark(MessageReadedContent messageContent) {
         // 转换为已读通知包
         MessageReadedPack messageReadedPack = new MessageReadedPack();
         BeanUtils.copyProperties(messageContent, messageReadedPack);
@@ -142,9 +174,19 @@ public class MessageSyncService {
      * @param messageReaded 群聊消息已读内容
      */
     public void groupReadMark(MessageReadedContent messageReaded) {
+        if (readMarkAggregator.isEnable()) {
+            readMarkAggregator.offer(messageReaded, this::notifyGroupReadMark);
+            return;
+        }
         // 更新群会话的已读状态
         conversationService.messageMarkRead(messageReaded);
+        notifyGroupReadMark(messageReaded);
+    }
 
+    /**
+     * 群聊已读通知：同步到当前用户的其他端，非自己发送的消息向发送方发送已读回执
+     */
+    private void notifyGroupReadMark(MessageReadedContent messageReaded) {
         // 转换为已读通知包
         MessageReadedPack messageReadedPack = new MessageReadedPack();
         BeanUtils.copyProperties(messageReaded, messageReadedPack);
@@ -184,28 +226,48 @@ public class MessageSyncService {
         }
         resp.setMaxSequence(maxSeq);
 
-        // 查询指定范围的离线消息（lastSequence ~ maxSeq，最多maxLimit条）
-        Set<ZSetOperations.TypedTuple<String>> querySet = zSetOperations.rangeByScoreWithScores(
-                key,
-                req.getLastSequence(),
-                maxSeq,
-                0,
-                req.getMaxLimit()
-        );
+        // 查询指定范围的离线消息引用（lastSequence ~ maxSeq，最多maxLimit条）
+        List<ZSetOperations.TypedTuple<OfflineMessageContent>> tuples = offlineMessageStore.range(
+                req.getAppId(), key, req.getLastSequence(), maxSeq, req.getMaxLimit());
+
+        // 合并大群时间线和全员广播中的消息（读扩散），按score排序后取前maxLimit条
+        List<String> timelineGroups = groupTimelineService.getTimelineGroups(req.getAppId(),
+                () -> imGroupMemberService.syncMemberJoinedGroup(req.getOperater(), req.getAppId()).getData());
+        List<ZSetOperations.TypedTuple<OfflineMessageContent>> broadcasts = broadcastMessageService.read(
+                req.getAppId(), req.getOperater(), req.getClientType(), req.getLastSequence(), req.getMaxLimit());
+        if (!timelineGroups.isEmpty() || !broadcasts.isEmpty()) {
+            tuples = new ArrayList<>(tuples);
+            tuples.addAll(broadcasts);
+            maxSeq = Math.max(maxSeq, broadcastMessageService.maxSequence(req.getAppId(), req.getClientType()));
+            for (String groupId : timelineGroups) {
+                maxSeq = Math.max(maxSeq, groupTimelineService.maxSequence(req.getAppId(), groupId));
+                String conversationId = conversationService.convertConversationId(
+                        ConversationTypeEnum.GROUP.getCode(), req.getOperater(), groupId);
+                for (ZSetOperations.TypedTuple<OfflineMessageContent> typedTuple : groupTimelineService.read(
+                        req.getAppId(), groupId, req.getOperater(), req.getLastSequence(), req.getMaxLimit())) {
+                    typedTuple.getValue().setConversationId(conversationId);
+                    tuples.add(typedTuple);
+                }
+            }
+            tuples.sort(Comparator.comparing(ZSetOperations.TypedTuple::getScore));
+            if (tuples.size() > req.getMaxLimit()) {
+                tuples = tuples.subList(0, req.getMaxLimit());
+            }
+            resp.setMaxSequence(maxSeq);
+        }
 
-        // 解析消息并封装结果
-        List<OfflineMessageContent> respList = new ArrayList<>();
-        for (ZSetOperations.TypedTuple<String> typedTuple : querySet) {
-            String msgJson = typedTuple.getValue();
-            OfflineMessageContent offlineMsg = JSONObject.parseObject(msgJson, OfflineMessageContent.class);
-            respList.add(offlineMsg);
+        // 批量补齐消息体（共享消息体缓存 + 数据库兜底）
+        List<OfflineMessageContent> respList = new ArrayList<>(tuples.size());
+        for (ZSetOperations.TypedTuple<OfflineMessageContent> typedTuple : tuples) {
+            respList.add(typedTuple.getValue());
         }
+        offlineMessageStore.hydrate(req.getAppId(), respList);
         resp.setDataList(respList);
 
         // 判断是否已同步完成（最后一条消息的序号是否达到最大序号）
         if (!CollectionUtils.isEmpty(respList)) {
-            OfflineMessageContent lastMsg = respList.get(respList.size() - 1);
-            resp.setCompleted(maxSeq <= lastMsg.getMessageKey());
+            // 撤回标记的score与messageKey不同，按score判断
+            resp.setCompleted(maxSeq <= tuples.get(tuples.size() - 1).getScore().longValue());
         }
 
         return ResponseVO.successResponse(resp);
@@ -286,7 +348,7 @@ public class MessageSyncService {
                 content.getFromId(),
                 content.getToId()
         ));
-        offlineMsg.setMessageBody(msgBody.getMessageBody());
+        // 不带消息体，同步时按messageKey从共享消息体补齐
 
         // 生成消息序号并设置
         long seq = redisSeq.doGetSeq(
@@ -297,8 +359,14 @@ public class MessageSyncService {
 
         // 生成消息唯一标识并写入Redis（标记为已撤回）
         long messageKey = SnowflakeIdWorker.nextId();
-        redisTemplate.opsForZSet().add(fromKey, JSONObject.toJSONString(offlineMsg), messageKey);
-        redisTemplate.opsForZSet().add(toKey, JSONObject.toJSONString(offlineMsg), messageKey);
+        OfflineMessageContent toMsg = new OfflineMessageContent();
+        BeanUtils.copyProperties(offlineMsg, toMsg);
+        toMsg.setConversationId(conversationService.convertConversationId(
+                ConversationTypeEnum.P2P.getCode(),
+                content.getToId(),
+                content.getFromId()
+        ));
+        offlineMessageStore.appendAll(Arrays.asList(fromKey, toKey), Arrays.asList(offlineMsg, toMsg), messageKey);
 
         // 发送撤回成功ACK
         recallAck(notifyPack, ResponseVO.successResponse(), content);
@@ -344,27 +412,36 @@ public class MessageSyncService {
                 content
         );
 
-        // 向所有群成员的离线消息队列添加撤回标记，并发送通知
-        for (String memberId : groupMemberIds) {
-            String toKey = content.getAppId() + ":" + Constants.SeqConstants.Message + ":" + memberId;
-
-            OfflineMessageContent offlineMsg = new OfflineMessageContent();
-            offlineMsg.setDelFlag(DelFlagEnum.DELETE.getCode());
-            BeanUtils.copyProperties(content, offlineMsg);
-            offlineMsg.setConversationType(ConversationTypeEnum.GROUP.getCode());
-            offlineMsg.setConversationId(conversationService.convertConversationId(
-                    ConversationTypeEnum.GROUP.getCode(),
-                    content.getFromId(),
-                    content.getToId()
-            ));
-            offlineMsg.setMessageBody(msgBody.getMessageBody());
-            offlineMsg.setMessageSequence(seq);
-
-            // 写入Redis标记撤回
-            redisTemplate.opsForZSet().add(toKey, JSONObject.toJSONString(offlineMsg), seq);
-            // 发送撤回通知给群成员
-            groupMessageProducer.producer(content.getFromId(), MessageCommand.MSG_RECALL_NOTIFY, notifyPack, content);
+        // 撤回标记，不带消息体，同步时按messageKey从共享消息体补齐
+        OfflineMessageContent offlineMsg = new OfflineMessageContent();
+        BeanUtils.copyProperties(content, offlineMsg);
+        offlineMsg.setDelFlag(DelFlagEnum.DELETE.getCode());
+        offlineMsg.setConversationType(ConversationTypeEnum.GROUP.getCode());
+        offlineMsg.setMessageSequence(seq);
+        long messageKey = SnowflakeIdWorker.nextId();
+
+        if (groupTimelineService.useTimeline(groupMemberIds.size())) {
+            // 大群只在群时间线写一条撤回标记
+            groupTimelineService.store(offlineMsg, content.getToId(), messageKey);
+        } else {
+            // 所有成员的撤回标记一次pipeline写入
+            List<String> keys = new ArrayList<>(groupMemberIds.size());
+            List<OfflineMessageContent> values = new ArrayList<>(groupMemberIds.size());
+            for (String memberId : groupMemberIds) {
+                keys.add(content.getAppId() + ":" + Constants.RedisConstants.OfflineMessage + ":" + memberId);
+                OfflineMessageContent memberMsg = new OfflineMessageContent();
+                BeanUtils.copyProperties(offlineMsg, memberMsg);
+                memberMsg.setConversationId(conversationService.convertConversationId(
+                        ConversationTypeEnum.GROUP.getCode(),
+                        memberId,
+                        content.getToId()
+                ));
+                values.add(memberMsg);
+            }
+            offlineMessageStore.appendAll(keys, values, messageKey);
         }
+        // 发送撤回通知给群成员（内部按成员分发，只调用一次）
+        groupMessageProducer.producer(content.getFromId(), MessageCommand.MSG_RECALL_NOTIFY, notifyPack, content);
     }
 
     /**
@@ -0,0 +1,248 @@
+package com.stw.im.service.message.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.model.message.OfflineMessageContent;
+import com.stw.im.service.message.dao.ImMessageBodyEntity;
+import com.stw.im.service.message.dao.mapper.ImMessageBodyMapper;
+import com.stw.im.service.utils.OfflineMessageCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 离线消息读写
+ * 追加和裁剪在一个lua脚本里原子完成: ZADD 后超过 offlineMessageCount 的最早消息一次全部裁掉.
+ * 多个接收方的写入用pipeline批量发送, 脚本用 EVALSHA 调用, redis重启丢失脚本(NOSCRIPT)时重新加载后重试.
+ * zset里只存消息引用(见 OfflineMessageCodec), 消息体按messageKey在 appId:offlineBody:messageKey 存一份,
+ * 同步时批量MGET补齐, 缓存过期的从数据库查询
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class OfflineMessageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(OfflineMessageStore.class);
+
+    /**
+     * KEYS[1] 离线消息zset ARGV[1] 消息 ARGV[2] score ARGV[3] 最大条数
+     */
+    private static final String APPEND_SCRIPT =
+            "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1]) " +
+            "local n = redis.call('ZCARD', KEYS[1]) " +
+            "local max = tonumber(ARGV[3]) " +
+            "if n > max then redis.call('ZREMRANGEBYRANK', KEYS[1], 0, n - max - 1) end " +
+            "return n";
+
+    /** 共享消息体缓存时间, 过期后同步时从数据库读取 */
+    private static final long BODY_TTL_SECONDS = 7 * 24 * 3600L;
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    ImMessageBodyMapper imMessageBodyMapper;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private volatile String appendSha;
+
+    /**
+     * 写入一条离线消息
+     */
+    public void append(String key, OfflineMessageContent content, long score) {
+        appendAll(Collections.singletonList(key), Collections.singletonList(content), score);
+    }
+
+    /**
+     * 批量写入离线消息, keys 和 contents 一一对应, 使用同一个score; 所有条目应引用同一条消息
+     */
+    public void appendAll(List<String> keys, List<OfflineMessageContent> contents, long score) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<byte[]> scores = Collections.nCopies(keys.size(), String.valueOf(score).getBytes(StandardCharsets.UTF_8));
+        doAppend(keys, contents, scores, Collections.singletonList(contents.get(0)));
+    }
+
+    /**
+     * 批量写入各不相同的离线消息(服务端批量发送), keys 和 contents 一一对应,
+     * 每条按自己的messageKey排序, 消息体各存一份
+     */
+    public void appendEach(List<String> keys, List<OfflineMessageContent> contents) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<byte[]> scores = new ArrayList<>(contents.size());
+        for (OfflineMessageContent content : contents) {
+            scores.add(String.valueOf(content.getMessageKey()).getBytes(StandardCharsets.UTF_8));
+        }
+        doAppend(keys, contents, scores, contents);
+    }
+
+    private void doAppend(List<String> keys, List<OfflineMessageContent> contents, List<byte[]> scores,
+                          List<OfflineMessageContent> bodyContents) {
+        String format = appConfig.getOfflineMessageFormat();
+        List<byte[]> values = new ArrayList<>(contents.size());
+        for (OfflineMessageContent content : contents) {
+            values.add(OfflineMessageCodec.encode(content, format));
+        }
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        for (OfflineMessageContent content : bodyContents) {
+            if (content.getMessageBody() != null && content.getMessageKey() != null) {
+                bodies.put(bodyKey(content.getAppId(), content.getMessageKey()),
+                        encodeBody(content).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (appendSha == null) {
+            loadScript();
+        }
+        try {
+            pipelineAppend(keys, values, scores, bodies);
+        } catch (Exception e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // 脚本缓存被清空, 重新加载后重试; ZADD相同成员幂等, 已写入的不会重复
+            logger.warn("offline append script not found, reload and retry");
+            loadScript();
+            pipelineAppend(keys, values, scores, bodies);
+        }
+    }
+
+    /**
+     * 按score范围读取离线消息引用, 消息体需要调用 hydrate 补齐
+     */
+    public List<ZSetOperations.TypedTuple<OfflineMessageContent>> range(Integer appId, String key,
+                                                                       double min, double max, int limit) {
+        Set<RedisZSetCommands.Tuple> tuples = stringRedisTemplate.execute((RedisCallback<Set<RedisZSetCommands.Tuple>>)
+                connection -> connection.zRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8),
+                        RedisZSetCommands.Range.range().gte(min).lte(max),
+                        RedisZSetCommands.Limit.limit().offset(0).count(limit)));
+        List<ZSetOperations.TypedTuple<OfflineMessageContent>> result = new ArrayList<>();
+        if (tuples == null) {
+            return result;
+        }
+        for (RedisZSetCommands.Tuple tuple : tuples) {
+            result.add(new DefaultTypedTuple<>(OfflineMessageCodec.decode(tuple.getValue(), appId),
+                    tuple.getScore()));
+        }
+        return result;
+    }
+
+    /**
+     * 补齐消息体: 先批量读共享的消息体缓存, 未命中的从数据库查询后回填缓存
+     */
+    public void hydrate(Integer appId, List<OfflineMessageContent> contents) {
+        Map<Long, List<OfflineMessageContent>> missing = new LinkedHashMap<>();
+        for (OfflineMessageContent content : contents) {
+            if (content.getMessageBody() == null && content.getMessageKey() != null) {
+                missing.computeIfAbsent(content.getMessageKey(), k -> new ArrayList<>()).add(content);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        List<Long> messageKeys = new ArrayList<>(missing.keySet());
+        List<String> bodyKeys = new ArrayList<>(messageKeys.size());
+        for (Long messageKey : messageKeys) {
+            bodyKeys.add(bodyKey(appId, messageKey));
+        }
+        List<String> bodies = stringRedisTemplate.opsForValue().multiGet(bodyKeys);
+        List<Long> dbKeys = new ArrayList<>();
+        for (int i = 0; i < messageKeys.size(); i++) {
+            String body = bodies == null ? null : bodies.get(i);
+            if (body == null) {
+                dbKeys.add(messageKeys.get(i));
+                continue;
+            }
+            JSONObject json = JSONObject.parseObject(body);
+            for (OfflineMessageContent content : missing.get(messageKeys.get(i))) {
+                content.setMessageBody(json.getString("b"));
+                content.setMessageTime(json.getLong("m"));
+                content.setExtra(json.getString("e"));
+            }
+        }
+        if (dbKeys.isEmpty()) {
+            return;
+        }
+        QueryWrapper<ImMessageBodyEntity> query = new QueryWrapper<>();
+        query.eq("app_id", appId).in("message_key", dbKeys);
+        for (ImMessageBodyEntity entity : imMessageBodyMapper.selectList(query)) {
+            List<OfflineMessageContent> targets = missing.get(entity.getMessageKey());
+            if (targets == null) {
+                continue;
+            }
+            for (OfflineMessageContent content : targets) {
+                content.setMessageBody(entity.getMessageBody());
+                content.setMessageTime(entity.getMessageTime());
+                content.setExtra(entity.getExtra());
+            }
+            stringRedisTemplate.opsForValue().set(bodyKey(appId, entity.getMessageKey()),
+                    encodeBody(targets.get(0)), BODY_TTL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private String encodeBody(OfflineMessageContent content) {
+        JSONObject json = new JSONObject(true);
+        json.put("b", content.getMessageBody());
+        json.put("m", content.getMessageTime());
+        json.put("e", content.getExtra());
+        return json.toJSONString();
+    }
+
+    private String bodyKey(Integer appId, Long messageKey) {
+        return appId + ":" + Constants.RedisConstants.OfflineBody + ":" + messageKey;
+    }
+
+    private void pipelineAppend(List<String> keys, List<byte[]> values, List<byte[]> scores,
+                                Map<String, byte[]> bodies) {
+        String sha = appendSha;
+        byte[] maxBytes = String.valueOf(appConfig.getOfflineMessageCount()).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> body : bodies.entrySet()) {
+                connection.setEx(body.getKey().getBytes(StandardCharsets.UTF_8), BODY_TTL_SECONDS, body.getValue());
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                connection.evalSha(sha, ReturnType.INTEGER, 1,
+                        keys.get(i).getBytes(StandardCharsets.UTF_8),
+                        values.get(i), scores.get(i), maxBytes);
+            }
+            return null;
+        });
+    }
+
+    private synchronized void loadScript() {
+        appendSha = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptLoad(APPEND_SCRIPT.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean isNoScript(Throwable e) {
+        while (e != null) {
+            if (e.getMessage() != null && e.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+}
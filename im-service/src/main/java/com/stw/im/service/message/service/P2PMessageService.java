@@ -8,7 +8,9 @@ import com.stw.im.common.config.AppConfig;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.ConversationTypeEnum;
 import com.stw.im.common.enums.ImConnectStatusEnum;
+import com.stw.im.common.enums.MessageErrorCode;
 import com.stw.im.common.enums.command.MessageCommand;
+import com.stw.im.common.exception.ApplicationException;
 import com.stw.im.common.model.ClientInfo;
 import com.stw.im.common.model.UserSession;
 import com.stw.im.common.model.message.MessageContent;
@@ -19,6 +21,7 @@ import com.stw.im.service.seq.RedisSeq;
 import com.stw.im.service.utils.CallbackService;
 import com.stw.im.service.utils.ConversationIdGenerate;
 import com.stw.im.service.utils.MessageProducer;
+import com.stw.im.service.utils.OrderedThreadPool;
 import com.stw.im.tcp.utils.SessionSocketHolder;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import org.slf4j.Logger;
@@ -32,9 +35,8 @@ import org.springframework.stereotype.Service;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @description: 点对点消息服务类，负责处理个人之间的消息发送、存储、同步等核心业务逻辑
@@ -46,9 +48,6 @@ public class P2PMessageService {
 
     private static final Logger logger = LoggerFactory.getLogger(P2PMessageService.class);
 
-    // 本地锁容器：key=messageId，value=锁对象（确保同一messageId串行处理）
-    private final ConcurrentHashMap<String, ReentrantLock> groupMessageLocks = new ConcurrentHashMap<>();
-
     /** 消息发送前置校验服务 */
     @Autowired
     private CheckSendMessageService checkSendMessageService;
@@ -73,35 +72,19 @@ public class P2PMessageService {
     @Autowired
     private CallbackService callbackService;
 
-    /** 线程池，用于异步处理消息相关操作，避免阻塞主线程 */
-    private final ThreadPoolExecutor threadPoolExecutor;
+    /** 消息幂等校验服务 */
+    @Autowired
+    private MessageIdempotentService messageIdempotentService;
+
+    /** 会话有序线程池：同一会话的消息在同一通道串行处理，保证顺序 */
+    @Autowired
+    private OrderedThreadPool orderedThreadPool;
 
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
-    /**
-     * 静态代码块初始化线程池
-     * 核心线程数8，最大线程数8，空闲时间60秒，使用有界队列(容量1000)
-     * 线程命名规则：message-process-thread-自增序号，设置为守护线程
-     * 增加拒绝策略：当队列满时让提交任务的线程执行，避免任务丢失
-     */
-    {
-        final AtomicInteger num = new AtomicInteger(0);
-        threadPoolExecutor = new ThreadPoolExecutor(
-                8, 8, 60, TimeUnit.SECONDS,
-                new LinkedBlockingDeque<>(1000),
-                new ThreadFactory() {
-                    @Override
-                    public Thread newThread(Runnable r) {
-                        Thread thread = new Thread(r);
-                        thread.setDaemon(true); // 守护线程，随主线程退出
-                        thread.setName("message-process-thread-" + num.getAndIncrement());
-                        return thread;
-                    }
-                },
-                new ThreadPoolExecutor.CallerRunsPolicy() // 拒绝策略：调用者线程执行
-        );
-    }
+    /** 会话key -> 该会话最后一条等待前置回调的消息，后来的消息排在它之后回到通道 */
+    private final Map<String, CompletableFuture<Void>> callbackTails = new ConcurrentHashMap<>();
 
     /**
      * 处理点对点消息的核心方法
@@ -109,95 +92,135 @@ public class P2PMessageService {
      * @param messageContent 消息内容对象，包含发送者、接收者、消息体等信息
      */
     public void process(MessageContent messageContent) {
+        String conversationKey = messageContent.getAppId() + ":"
+                + ConversationIdGenerate.generateP2PId(messageContent.getFromId(), messageContent.getToId());
+        orderedThreadPool.execute(conversationKey, () -> doProcess(conversationKey, messageContent));
+    }
+
+    /**
+     * 在会话通道内执行，同一messageId的重复消息也落在同一通道，无需加锁
+     */
+    private void doProcess(String conversationKey, MessageContent messageContent) {
         String messageId = messageContent.getMessageId();
         logger.info("消息开始处理：{}", messageId);
         String fromId = messageContent.getFromId();
-        String toId = messageContent.getToId();
         Integer appId = messageContent.getAppId();
-        ReentrantLock lock = null;
-
-        String statusKey = Constants.MSG_STATUS_KEY_PREFIX + messageId;
 
         try {
-            // 1. 获取本地锁（确保同一消息串行处理）
-            lock = groupMessageLocks.computeIfAbsent(messageId, k -> new ReentrantLock());
-            lock.lock();
-
-            // 2. 检查消息是否已处理过（Redis状态+本地缓存双重校验）
-            String status = stringRedisTemplate.opsForValue().get(statusKey);
-            MessageContent cachedMessage = messageStoreService.getMessageFromMessageIdCache(
-                    appId, messageId, MessageContent.class);
-
-            if (Constants.MsgStatus.SUCCESS.getStatus().equals(status) && cachedMessage != null) {
-                logger.info("消息已处理，直接分发：{}", messageId);
-                // 已处理过的消息，异步执行分发流程
-                threadPoolExecutor.execute(() -> handleProcessedMessage(cachedMessage));
+            // 1. 查状态并抢占处理权（本地缓存 + 一次redis脚本调用）
+            MessageIdempotentService.ClaimResult claim = messageIdempotentService.claim(appId, fromId, messageId);
+            if (claim == MessageIdempotentService.ClaimResult.PROCESSING) {
+                // 正在处理中，等处理完成后的ACK，客户端超时后会再次重发
+                logger.info("消息正在处理中，忽略重复消息：{}", messageId);
                 return;
             }
-
-            // 3. 设置 processing 状态，标记消息正在处理
-            stringRedisTemplate.opsForValue().set(statusKey, Constants.MsgStatus.PROCESSING.getStatus(), 5, TimeUnit.MINUTES);
-
-            // 4. 消息发送前置回调（若配置开启）
-            ResponseVO callbackResp = ResponseVO.successResponse();
-            if (appConfig.isSendMessageAfterCallback()) {
-                callbackResp = callbackService.beforeCallback(
-                        appId,
-                        Constants.CallbackCommand.SendMessageBefore,
-                        JSONObject.toJSONString(messageContent)
-                );
+            if (claim == MessageIdempotentService.ClaimResult.SUCCESS) {
+                MessageContent cachedMessage = messageStoreService.getMessageFromMessageIdCache(
+                        appId, messageId, MessageContent.class);
+                if (cachedMessage != null) {
+                    logger.info("消息已处理，重放ACK：{}", messageId);
+                    handleProcessedMessage(messageContent, cachedMessage);
+                } else {
+                    // 消息缓存已失效，只回复成功ACK，不再重复处理
+                    logger.info("消息已处理，回复ACK：{}", messageId);
+                    ack(messageContent, ResponseVO.successResponse());
+                }
+                return;
             }
 
-            // 5. 前置回调失败则回复错误ACK
-            if (!callbackResp.isOk()) {
-                logger.warn("消息前置回调失败：{}，msgId：{}", callbackResp.getMsg(), messageId);
-                ack(messageContent, callbackResp);
+            // 2. 消息发送前置回调（若配置开启），通道不等待回调结果，结果返回后再回到本会话通道继续
+            if (appConfig.isSendMessageBeforeCallback()) {
+                beforeCallback(conversationKey, messageContent);
                 return;
             }
-
-            // 6. 生成消息序列号（用于消息排序和同步）
-            long seq = redisSeq.doGetSeq(
-                    appId + ":" + Constants.SeqConstants.Message + ":" +
-                            ConversationIdGenerate.generateP2PId(fromId, toId)
-            );
-            messageContent.setMessageSequence(seq);
-            logger.info("消息生成序列号：{}，msgId：{}", seq, messageId);
-
-            // 7. 异步执行消息存储和分发逻辑
-            threadPoolExecutor.execute(() -> asyncProcess(messageContent, statusKey));
+            afterBeforeCallback(messageContent, ResponseVO.successResponse());
 
         } catch (Exception e) {
             logger.error("消息处理主流程异常，msgId：{}", messageId, e);
+            releaseQuietly(messageContent);
             ack(messageContent, ResponseVO.errorResponse("消息处理失败"));
-        } finally {
-            // 确保锁释放，避免死锁
-            if (lock != null && lock.isHeldByCurrentThread()) {
-                lock.unlock();
-                logger.info("消息处理锁释放：{}", messageId);
-            }
         }
     }
 
     /**
-     * 处理已完成的消息（分发和同步）
+     * 发起前置回调，回调结果按本会话的提交顺序依次重新放回会话通道：
+     * 每条消息的续处理接在上一条之后，回调并行执行但消息不会乱序
      */
-    private void handleProcessedMessage(MessageContent messageContent) {
-        try {
-            ack(messageContent, ResponseVO.successResponse());
-            syncToSender(messageContent);
-            List<ClientInfo> clientInfos = dispatchMessage(messageContent);
-            if (clientInfos.isEmpty()) {
-                reciverAck(messageContent);
+    private void beforeCallback(String conversationKey, MessageContent messageContent) {
+        CompletableFuture<ResponseVO> callback = callbackService.beforeCallbackAsync(
+                messageContent.getAppId(),
+                Constants.CallbackCommand.SendMessageBefore,
+                JSONObject.toJSONString(messageContent)
+        );
+        // 只有本会话通道线程写入该key，get/put之间不会被其他消息插入
+        CompletableFuture<Void> previous = callbackTails.get(conversationKey);
+        CompletableFuture<ResponseVO> ordered = previous == null ? callback
+                : previous.handle((v, e) -> null).thenCombine(callback, (v, resp) -> resp);
+        CompletableFuture<Void> next = ordered.thenAccept(resp -> {
+            try {
+                orderedThreadPool.execute(conversationKey, () -> onBeforeCallback(messageContent, resp));
+            } catch (Exception e) {
+                logger.error("前置回调结果提交异常，msgId：{}", messageContent.getMessageId(), e);
+                releaseQuietly(messageContent);
             }
+        });
+        callbackTails.put(conversationKey, next);
+        next.whenComplete((v, e) -> callbackTails.remove(conversationKey, next));
+    }
+
+    private void onBeforeCallback(MessageContent messageContent, ResponseVO callbackResp) {
+        try {
+            afterBeforeCallback(messageContent, callbackResp);
         } catch (Exception e) {
-            logger.error("处理已完成消息异常，msgId：{}", messageContent.getMessageId(), e);
+            logger.error("消息处理主流程异常，msgId：{}", messageContent.getMessageId(), e);
+            releaseQuietly(messageContent);
+            ack(messageContent, ResponseVO.errorResponse("消息处理失败"));
         }
     }
 
     /**
-     * 异步处理消息存储和分发
+     * 前置回调之后的流程，在会话通道内执行
      */
-    private void asyncProcess(MessageContent messageContent, String statusKey) {
+    private void afterBeforeCallback(MessageContent messageContent, ResponseVO callbackResp) {
+        String messageId = messageContent.getMessageId();
+        String fromId = messageContent.getFromId();
+        String toId = messageContent.getToId();
+        Integer appId = messageContent.getAppId();
+
+        // 3. 前置回调失败则回复错误ACK
+        if (!callbackResp.isOk()) {
+            logger.warn("消息前置回调失败：{}，msgId：{}", callbackResp.getMsg(), messageId);
+            messageIdempotentService.release(appId, fromId, messageId);
+            ack(messageContent, callbackResp);
+            return;
+        }
+
+        // 4. 生成消息序列号（用于消息排序和同步）
+        long seq = redisSeq.doGetSeq(
+                appId + ":" + Constants.SeqConstants.Message + ":" +
+                        ConversationIdGenerate.generateP2PId(fromId, toId)
+        );
+        messageContent.setMessageSequence(seq);
+        logger.info("消息生成序列号：{}，msgId：{}", seq, messageId);
+
+        // 5. 存储和分发（仍在会话通道内，保证顺序）
+        asyncProcess(messageContent);
+    }
+
+    /**
+     * 重发的已处理消息：只按缓存的结果回复ACK，不再生成序列号、存储和分发
+     */
+    private void handleProcessedMessage(MessageContent messageContent, MessageContent cachedMessage) {
+        messageContent.setMessageSequence(cachedMessage.getMessageSequence());
+        messageContent.setMessageKey(cachedMessage.getMessageKey());
+        messageContent.setMessageTime(cachedMessage.getMessageTime());
+        ack(messageContent, ResponseVO.successResponse());
+    }
+
+    /**
+     * 处理消息存储和分发
+     */
+    private void asyncProcess(MessageContent messageContent) {
         try {
             // 5.1 存储点对点消息到数据库
             messageStoreService.storeP2PMessage(messageContent);
@@ -248,16 +271,27 @@ public class P2PMessageService {
             }
 
             // 5.9 标记消息处理成功
-            stringRedisTemplate.opsForValue().set(statusKey, Constants.MsgStatus.SUCCESS.getStatus(),
-                    24, TimeUnit.HOURS); // 缓存24小时
+            messageIdempotentService.success(messageContent.getAppId(), messageContent.getFromId(),
+                    messageContent.getMessageId());
 
             logger.info("消息处理完成：{}", messageContent.getMessageId());
 
         } catch (Exception e) {
             logger.error("消息异步处理异常，msgId：{}", messageContent.getMessageId(), e);
-            // 标记消息处理失败
-            stringRedisTemplate.opsForValue().set(statusKey, Constants.MsgStatus.FAILED.getStatus(),
-                    1, TimeUnit.HOURS);
+            // 释放处理权，允许客户端重发
+            releaseQuietly(messageContent);
+        }
+    }
+
+    private void releaseQuietly(MessageContent messageContent) {
+        releaseQuietly(messageContent.getAppId(), messageContent.getFromId(), messageContent.getMessageId());
+    }
+
+    private void releaseQuietly(Integer appId, String fromId, String messageId) {
+        try {
+            messageIdempotentService.release(appId, fromId, messageId);
+        } catch (Exception e) {
+            logger.error("释放消息处理状态异常，msgId：{}", messageId, e);
         }
     }
 
@@ -379,16 +413,19 @@ public class P2PMessageService {
         String messageId = req.getMessageId();
         try {
             // 重复发送校验
-            String statusKey = Constants.MSG_STATUS_KEY_PREFIX + messageId;
-            String status = stringRedisTemplate.opsForValue().get(statusKey);
-            if (Constants.MsgStatus.SUCCESS.getStatus().equals(status)) {
+            MessageIdempotentService.ClaimResult claim = messageIdempotentService.claim(
+                    req.getAppId(), req.getFromId(), messageId);
+            if (claim == MessageIdempotentService.ClaimResult.PROCESSING) {
+                throw new ApplicationException(MessageErrorCode.MESSAGE_IS_PROCESSING);
+            }
+            if (claim == MessageIdempotentService.ClaimResult.SUCCESS) {
                 MessageContent cachedMsg = messageStoreService.getMessageFromMessageIdCache(
                         req.getAppId(), messageId, MessageContent.class);
                 if (cachedMsg != null) {
                     resp.setMessageKey(cachedMsg.getMessageKey());
                     resp.setMessageTime(cachedMsg.getMessageTime());
-                    return resp;
                 }
+                return resp;
             }
 
             // 转换请求为消息内容
@@ -407,12 +444,15 @@ public class P2PMessageService {
             syncToSender(message);
             dispatchMessage(message);
 
-            // 标记发送成功
-            stringRedisTemplate.opsForValue().set(statusKey, Constants.MsgStatus.SUCCESS.getStatus(),
-                    24, TimeUnit.HOURS);
+            // 缓存消息并标记发送成功
+            messageStoreService.setMessageFromMessageIdCache(message.getAppId(), messageId, message);
+            messageIdempotentService.success(message.getAppId(), message.getFromId(), messageId);
 
+        } catch (ApplicationException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("消息发送接口异常，msgId：{}", messageId, e);
+            releaseQuietly(req.getAppId(), req.getFromId(), messageId);
             throw new RuntimeException("消息发送失败", e);
         }
         return resp;
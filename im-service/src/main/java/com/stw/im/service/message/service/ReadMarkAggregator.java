@@ -0,0 +1,111 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.model.message.MessageReadedContent;
+import com.stw.im.service.conversation.service.ConversationService;
+import com.stw.im.service.utils.KeyedCoalescer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @description: 已读标记合并
+ * 同一用户同一会话在一个刷新周期内的多次已读只保留序列号最大的一次,
+ * 每 readMarkFlushMillis 批量写入会话表(多行upsert), 写入后每个会话只发一次已读通知/回执.
+ * 批量写入失败时整批放回待写入(同一会话仍保留序列号最大的一次), 下个周期重试.
+ * readMarkFlushMillis 不大于0时不合并, 仍按每次已读同步处理;
+ * 批量upsert依赖会话表 (app_id, conversation_id) 唯一键, 默认关闭, 建好唯一键后再开启
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class ReadMarkAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadMarkAggregator.class);
+
+    @Autowired
+    ConversationService conversationService;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private final KeyedCoalescer<Pending> coalescer = new KeyedCoalescer<>("read-mark",
+            ReadMarkAggregator::key, ReadMarkAggregator::newer, this::write);
+
+    @PostConstruct
+    public void init() {
+        if (isEnable()) {
+            coalescer.start(appConfig.getReadMarkFlushMillis());
+        }
+    }
+
+    public boolean isEnable() {
+        Long interval = appConfig.getReadMarkFlushMillis();
+        return interval != null && interval > 0;
+    }
+
+    /**
+     * 加入待写入的已读标记
+     * @param notifier 写入后发送通知/回执, 只用序列号最大的那次已读调用
+     */
+    public void offer(MessageReadedContent content, Consumer<MessageReadedContent> notifier) {
+        coalescer.offer(new Pending(content, notifier));
+    }
+
+    private static String key(Pending item) {
+        MessageReadedContent content = item.content;
+        return content.getAppId() + ":" + content.getConversationType() + ":" + content.getFromId() + ":"
+                + (content.getGroupId() != null ? content.getGroupId() : content.getToId());
+    }
+
+    private static Pending newer(Pending old, Pending latest) {
+        return latest.content.getMessageSequence() >= old.content.getMessageSequence() ? latest : old;
+    }
+
+    /**
+     * 批量写入失败时抛出异常, 整批重试; 通知失败不重试
+     */
+    private List<Pending> write(List<Pending> batch) {
+        List<MessageReadedContent> contents = new ArrayList<>(batch.size());
+        for (Pending item : batch) {
+            contents.add(item.content);
+        }
+        conversationService.batchMessageMarkRead(contents);
+        for (Pending item : batch) {
+            try {
+                item.notifier.accept(item.content);
+            } catch (Exception e) {
+                logger.error("read mark notify error, fromId={}", item.content.getFromId(), e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * 停机前写入剩余的已读标记
+     */
+    @PreDestroy
+    public void destroy() {
+        coalescer.shutdown();
+    }
+
+    private static class Pending {
+
+        private final MessageReadedContent content;
+
+        private final Consumer<MessageReadedContent> notifier;
+
+        Pending(MessageReadedContent content, Consumer<MessageReadedContent> notifier) {
+            this.content = content;
+            this.notifier = notifier;
+        }
+    }
+}
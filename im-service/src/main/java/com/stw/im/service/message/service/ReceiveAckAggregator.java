@@ -0,0 +1,93 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.enums.command.MessageCommand;
+import com.stw.im.common.model.message.MessageReciveAckContent;
+import com.stw.im.service.utils.KeyedCoalescer;
+import com.stw.im.service.utils.MessageProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description: 累计接收确认合并
+ * 客户端的累计确认(cumulative=true)表示会话中序列号不大于 messageSequence 的消息都已收到,
+ * 同一接收方同一会话在一个窗口内的多次确认只保留序列号最大的一次, 每 receiveAckFlushMillis 转发给发送方的各端.
+ * 转发失败的确认放回, 下个窗口与新的确认合并后重试. 逐条确认不合并, 仍立即转发
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class ReceiveAckAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReceiveAckAggregator.class);
+
+    @Autowired
+    MessageProducer messageProducer;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private final KeyedCoalescer<MessageReciveAckContent> coalescer = new KeyedCoalescer<>("receive-ack",
+            ReceiveAckAggregator::key, ReceiveAckAggregator::newer, this::relay);
+
+    @PostConstruct
+    public void init() {
+        if (isEnable()) {
+            coalescer.start(appConfig.getReceiveAckFlushMillis());
+        }
+    }
+
+    public boolean isEnable() {
+        Long interval = appConfig.getReceiveAckFlushMillis();
+        return interval != null && interval > 0;
+    }
+
+    public void offer(MessageReciveAckContent content) {
+        coalescer.offer(content);
+    }
+
+    private static String key(MessageReciveAckContent content) {
+        return content.getAppId() + ":" + content.getFromId() + ":" + content.getToId() + ":"
+                + content.getConversationId();
+    }
+
+    private static MessageReciveAckContent newer(MessageReciveAckContent old, MessageReciveAckContent latest) {
+        return sequence(latest) >= sequence(old) ? latest : old;
+    }
+
+    private static long sequence(MessageReciveAckContent content) {
+        return content.getMessageSequence() == null ? 0L : content.getMessageSequence();
+    }
+
+    /**
+     * 逐条转发, 返回转发失败的确认
+     */
+    private List<MessageReciveAckContent> relay(List<MessageReciveAckContent> batch) {
+        List<MessageReciveAckContent> failed = new ArrayList<>();
+        for (MessageReciveAckContent content : batch) {
+            try {
+                messageProducer.sendToUser(content.getToId(), MessageCommand.MSG_RECIVE_ACK, content,
+                        content.getAppId());
+            } catch (Exception e) {
+                logger.error("receive ack relay error, toId={}", content.getToId(), e);
+                failed.add(content);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * 停机前转发剩余的确认
+     */
+    @PreDestroy
+    public void destroy() {
+        coalescer.shutdown();
+    }
+}
@@ -0,0 +1,292 @@
+package com.stw.im.service.message.service;
+
+import com.stw.im.common.ResponseVO;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.service.friendship.dao.ImFriendShipEntity;
+import com.stw.im.service.friendship.model.req.GetRelationReq;
+import com.stw.im.service.friendship.service.ImFriendService;
+import com.stw.im.service.group.dao.ImGroupEntity;
+import com.stw.im.service.group.model.resp.GetRoleInGroupResp;
+import com.stw.im.service.group.service.ImGroupMemberService;
+import com.stw.im.service.group.service.ImGroupService;
+import com.stw.im.service.user.dao.ImUserDataEntity;
+import com.stw.im.service.user.service.ImUserService;
+import com.stw.im.service.utils.LocalLruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * @description: 发送权限快照缓存
+ * 发消息前的校验只用到 用户封禁/禁言标记、双向好友状态/黑名单、群禁言、成员角色/禁言时间,
+ * 这些字段压缩成短字符串按 本地LRU -> redis -> 数据库 三级读取, 查不到的也缓存一个 "-" 避免反复查库.
+ * 写入路径(用户、好友、群、群成员)修改后自增快照的版本号并删除redis快照, 再通过redis发布订阅通知各实例删除本地快照,
+ * 本地快照另有较短的过期时间兜底.
+ * 读库回填redis时带上读库前的版本号, 期间有失效(版本变化)就不写入, 避免把旧权限写回缓存;
+ * 本地快照同理, 读取期间本实例收到过失效通知就不放入本地
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class SendPermissionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SendPermissionCache.class);
+
+    private static final String NONE = "-";
+
+    private static final String CHANNEL = "sendPermissionInvalidate";
+
+    private static final long LOCAL_TTL_MILLIS = 60 * 1000L;
+
+    private static final int LOCAL_MAX_SIZE = 100000;
+
+    private static final long REDIS_TTL_SECONDS = 30 * 60L;
+
+    private static final String VERSION_SUFFIX = ":v";
+
+    /**
+     * KEYS[1] 快照 KEYS[2] 版本号 ARGV[1] 读库前的版本号(不存在为空串) ARGV[2] 快照 ARGV[3] 过期秒数
+     */
+    private static final RedisScript<Long> SET_SCRIPT = new DefaultRedisScript<>(
+            "local v = redis.call('GET', KEYS[2]) or '' " +
+            "if v ~= ARGV[1] then return 0 end " +
+            "redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3]) " +
+            "return 1", Long.class);
+
+    /**
+     * KEYS[1] 快照 KEYS[2] 版本号 ARGV[1] 版本号过期秒数(长于快照, 覆盖读库中的请求)
+     */
+    private static final RedisScript<Long> INVALIDATE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('INCR', KEYS[2]) " +
+            "redis.call('EXPIRE', KEYS[2], ARGV[1]) " +
+            "redis.call('DEL', KEYS[1]) " +
+            "return 1", Long.class);
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    ImUserService imUserService;
+
+    @Autowired
+    ImFriendService imFriendService;
+
+    @Autowired
+    ImGroupService imGroupService;
+
+    @Autowired
+    ImGroupMemberService imGroupMemberService;
+
+    private final LocalLruCache<String, String> local = new LocalLruCache<>(LOCAL_MAX_SIZE, LOCAL_TTL_MILLIS);
+
+    /** 本实例收到的失效次数, 读取前后不同说明期间有失效, 结果不放入本地 */
+    private final AtomicLong localGeneration = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(Message message, byte[] pattern) {
+                localGeneration.incrementAndGet();
+                local.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            }
+        }, new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 用户封禁和禁言标记 {forbiddenFlag, silentFlag}, 用户不存在返回null
+     */
+    public int[] getUser(Integer appId, String userId) {
+        String value = get(userKey(appId, userId), () -> {
+            ResponseVO<ImUserDataEntity> resp = imUserService.getSingleUserInfo(userId, appId);
+            if (!resp.isOk()) {
+                return NONE;
+            }
+            ImUserDataEntity user = resp.getData();
+            return intOf(user.getForbiddenFlag()) + "," + intOf(user.getSilentFlag());
+        });
+        return parse(value);
+    }
+
+    /**
+     * fromId 到 toId 的好友关系 {status, black}, 没有关系链返回null
+     */
+    public int[] getFriendship(Integer appId, String fromId, String toId) {
+        String value = get(friendKey(appId, fromId, toId), () -> {
+            GetRelationReq req = new GetRelationReq();
+            req.setFromId(fromId);
+            req.setToId(toId);
+            req.setAppId(appId);
+            ResponseVO<ImFriendShipEntity> resp = imFriendService.getRelation(req);
+            if (!resp.isOk()) {
+                return NONE;
+            }
+            return intOf(resp.getData().getStatus()) + "," + intOf(resp.getData().getBlack());
+        });
+        return parse(value);
+    }
+
+    /**
+     * 群禁言状态 {mute}, 群不存在返回null
+     */
+    public int[] getGroup(Integer appId, String groupId) {
+        String value = get(groupKey(appId, groupId), () -> {
+            ResponseVO<ImGroupEntity> resp = imGroupService.getGroup(groupId, appId);
+            if (!resp.isOk()) {
+                return NONE;
+            }
+            return String.valueOf(intOf(resp.getData().getMute()));
+        });
+        return parse(value);
+    }
+
+    /**
+     * 成员在群内的角色和禁言截止时间, 不在群内返回null
+     */
+    public GetRoleInGroupResp getMember(Integer appId, String groupId, String memberId) {
+        String value = get(memberKey(appId, groupId, memberId), () -> {
+            ResponseVO<GetRoleInGroupResp> resp = imGroupMemberService.getRoleInGroupOne(groupId, memberId, appId);
+            if (!resp.isOk()) {
+                return NONE;
+            }
+            Long speakDate = resp.getData().getSpeakDate();
+            return resp.getData().getRole() + "," + (speakDate == null ? "" : speakDate);
+        });
+        if (NONE.equals(value)) {
+            return null;
+        }
+        String[] parts = value.split(",", -1);
+        GetRoleInGroupResp member = new GetRoleInGroupResp();
+        member.setMemberId(memberId);
+        member.setRole(Integer.valueOf(parts[0]));
+        member.setSpeakDate(parts[1].isEmpty() ? null : Long.valueOf(parts[1]));
+        return member;
+    }
+
+    public void invalidateUser(Integer appId, String userId) {
+        invalidate(userKey(appId, userId));
+    }
+
+    /**
+     * 好友关系双向都会参与校验, 两个方向一起失效
+     */
+    public void invalidateFriendship(Integer appId, String fromId, String toId) {
+        invalidate(friendKey(appId, fromId, toId));
+        invalidate(friendKey(appId, toId, fromId));
+    }
+
+    public void invalidateGroup(Integer appId, String groupId) {
+        invalidate(groupKey(appId, groupId));
+    }
+
+    public void invalidateMember(Integer appId, String groupId, String memberId) {
+        invalidate(memberKey(appId, groupId, memberId));
+    }
+
+    public Map<String, Object> getMetrics() {
+        return local.getMetrics();
+    }
+
+    private String get(String key, Supplier<String> loader) {
+        String value = local.get(key);
+        if (value != null) {
+            return value;
+        }
+        long generation = localGeneration.get();
+        List<String> cached = stringRedisTemplate.opsForValue().multiGet(Arrays.asList(key, key + VERSION_SUFFIX));
+        value = cached == null ? null : cached.get(0);
+        boolean cacheable = true;
+        if (value == null) {
+            String version = cached == null || cached.get(1) == null ? "" : cached.get(1);
+            value = loader.get();
+            Long set = stringRedisTemplate.execute(SET_SCRIPT, Arrays.asList(key, key + VERSION_SUFFIX),
+                    version, value, String.valueOf(REDIS_TTL_SECONDS));
+            cacheable = set != null && set == 1;
+        }
+        if (cacheable && generation == localGeneration.get()) {
+            local.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 在事务中调用时等提交后再失效, 避免提交前被其它请求用旧数据重新加载
+     */
+    private void invalidate(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doInvalidate(key);
+                }
+            });
+        } else {
+            doInvalidate(key);
+        }
+    }
+
+    private void doInvalidate(String key) {
+        localGeneration.incrementAndGet();
+        local.remove(key);
+        try {
+            stringRedisTemplate.execute(INVALIDATE_SCRIPT, Arrays.asList(key, key + VERSION_SUFFIX),
+                    String.valueOf(REDIS_TTL_SECONDS * 2));
+            stringRedisTemplate.convertAndSend(CHANNEL, key);
+        } catch (Exception e) {
+            logger.error("send permission cache invalidate error, key={}", key, e);
+        }
+    }
+
+    private int[] parse(String value) {
+        if (NONE.equals(value)) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i]);
+        }
+        return result;
+    }
+
+    private int intOf(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    private String userKey(Integer appId, String userId) {
+        return appId + ":" + Constants.RedisConstants.SendPermission + ":u:" + userId;
+    }
+
+    private String friendKey(Integer appId, String fromId, String toId) {
+        return appId + ":" + Constants.RedisConstants.SendPermission + ":f:" + fromId + ":" + toId;
+    }
+
+    private String groupKey(Integer appId, String groupId) {
+        return appId + ":" + Constants.RedisConstants.SendPermission + ":g:" + groupId;
+    }
+
+    private String memberKey(Integer appId, String groupId, String memberId) {
+        return appId + ":" + Constants.RedisConstants.SendPermission + ":m:" + groupId + ":" + memberId;
+    }
+}
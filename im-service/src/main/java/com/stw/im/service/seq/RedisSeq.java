@@ -1,23 +1,277 @@
 package com.stw.im.service.seq;
 
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
- * @description:
+ * @description: 序列号生成
+ * 开启号段租约(seqLeaseStep > 1)后, 每个key向redis一次租一段号码在本地发放, 不再每条消息INCR一次.
+ * 为了多实例下仍然单调递增, 同一时刻一个key只有一个实例持有租约:
+ * 1. 租约记录在 key:lease 上, 带过期时间; 本地只在租约有效期内发放号码
+ * 2. 其它实例需要该key时登记为等待者, 本次不等待直接INCR取号(大于持有者号段内的所有号码, 不会重复);
+ *    持有者至少取到一个号段后, 下次续约时才把租约让给等待者, 避免租约在两个实例之间来回移交却都取不到号,
+ *    等待者最多一个租约周期后拿到租约. 取号在消息的有序通道线程上执行, 因此从不睡眠等待
+ * 3. 新持有者从计数器INCRBY出新号段, 一定大于之前任何实例发放过的号码
+ * 只有单聊/群聊消息序列号使用租约; 会话、好友、群等app级计数器所有实例都在递增, 仍直接INCR.
+ * 冷门会话(上次取号已超过租约时长)没有其它实例持有租约时直接INCR, 不租号段;
+ * 连续取号时号段长度从2开始, 用完翻倍(不超过 seqLeaseStep), 过期未用完减半, 减少浪费的号码
  * @author: stw
  * @version: 1.0
  */
 @Service
 public class RedisSeq {
 
+    private static final Logger logger = LoggerFactory.getLogger(RedisSeq.class);
+
+    private static final String LEASE_SUFFIX = ":lease";
+
+    /**
+     * KEYS[1] 计数器 KEYS[2] 租约
+     * ARGV[1] 实例id ARGV[2] 号段长度 ARGV[3] 租约毫秒
+     * 返回 {1, 号段最大值} 或 {0, 租约剩余毫秒}
+     * served 表示当前持有者是否已取到过号段, 移交给等待者时置0, 新持有者取号后才能再移交
+     */
+    private static final RedisScript<List> LEASE_SCRIPT = new DefaultRedisScript<>(
+            "local owner = redis.call('HGET', KEYS[2], 'owner') " +
+            "if owner and owner ~= ARGV[1] then " +
+            "  redis.call('HSET', KEYS[2], 'waiter', ARGV[1]) " +
+            "  return {0, redis.call('PTTL', KEYS[2])} " +
+            "end " +
+            "local waiter = redis.call('HGET', KEYS[2], 'waiter') " +
+            "if owner and waiter and waiter ~= ARGV[1] and redis.call('HGET', KEYS[2], 'served') == '1' then " +
+            "  redis.call('DEL', KEYS[2]) " +
+            "  redis.call('HSET', KEYS[2], 'owner', waiter, 'served', '0') " +
+            "  redis.call('PEXPIRE', KEYS[2], ARGV[3]) " +
+            "  return {0, 0} " +
+            "end " +
+            "local max = redis.call('INCRBY', KEYS[1], ARGV[2]) " +
+            "redis.call('HSET', KEYS[2], 'owner', ARGV[1], 'served', '1') " +
+            "redis.call('PEXPIRE', KEYS[2], ARGV[3]) " +
+            "return {1, max}", List.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HGET', KEYS[1], 'owner') == ARGV[1] then " +
+            "  return redis.call('DEL', KEYS[1]) " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 冷门key和批量取号时没有本地号段的key: 没有实例持有租约才直接INCR(一定大于之前发放过的号码),
+     * 否则返回负数由调用方走租约流程. KEYS[1] 计数器 KEYS[2] 租约 ARGV[1] 实例id
+     */
+    private static final byte[] BATCH_INCR_SCRIPT = (
+            "local owner = redis.call('HGET', KEYS[2], 'owner') " +
+            "if owner then return -1 end " +
+            "return redis.call('INCR', KEYS[1])").getBytes(StandardCharsets.UTF_8);
+
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    AppConfig appConfig;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService cleaner;
+
+    @PostConstruct
+    public void init() {
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("seq-segment-cleaner");
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::cleanExpiredSegments, 60, 60, TimeUnit.SECONDS);
+    }
+
     public long doGetSeq(String key){
-        return stringRedisTemplate.opsForValue().increment(key);
+        Integer step = appConfig.getSeqLeaseStep();
+        if (step == null || step <= 1 || !leasable(key)) {
+            return stringRedisTemplate.opsForValue().increment(key);
+        }
+        Segment segment = segments.computeIfAbsent(key, k -> new Segment());
+        synchronized (segment) {
+            long now = System.currentTimeMillis();
+            if (segment.next <= segment.max && now < segment.deadline) {
+                return segment.next++;
+            }
+            boolean hot = now - segment.lastRequest < leaseMillis();
+            segment.lastRequest = now;
+            if (!hot) {
+                Long value = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.eval(
+                        BATCH_INCR_SCRIPT, ReturnType.INTEGER, 2, key.getBytes(StandardCharsets.UTF_8),
+                        (key + LEASE_SUFFIX).getBytes(StandardCharsets.UTF_8),
+                        instanceId.getBytes(StandardCharsets.UTF_8)));
+                if (value != null && value >= 0) {
+                    return value;
+                }
+            }
+            if (segment.max > 0 && segment.next > segment.max) {
+                // 上个号段在有效期内用完
+                segment.step = Math.min(step, segment.step * 2);
+            } else if (segment.max > 0) {
+                segment.step = Math.max(2, segment.step / 2);
+            }
+            if (!lease(key, segment, Math.min(step, segment.step))) {
+                // 租约在其它实例, 已登记为等待者, 本次直接INCR
+                return stringRedisTemplate.opsForValue().increment(key);
+            }
+            return segment.next++;
+        }
+    }
+
+    /**
+     * 单聊 appId:messageSeq:会话id 和群聊 appId:groupMessageSeq群id 使用租约, 其余为app级计数器
+     */
+    private boolean leasable(String key) {
+        int index = key.indexOf(':');
+        String type = index < 0 ? key : key.substring(index + 1);
+        return type.startsWith(Constants.SeqConstants.Message + ":")
+                || type.startsWith(Constants.SeqConstants.GroupMessage);
     }
 
+    /**
+     * 批量取号(如服务端批量发消息, 每个会话取一个号), 结果与keys一一对应.
+     * 有本地号段的直接发放, 其余一次pipeline取号, 不用逐个key租号段
+     */
+    public long[] doGetSeqs(List<String> keys) {
+        long[] result = new long[keys.size()];
+        Integer step = appConfig.getSeqLeaseStep();
+        boolean leaseEnabled = step != null && step > 1;
+        List<Integer> remote = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.size(); i++) {
+            Segment segment = leaseEnabled && leasable(keys.get(i)) ? segments.get(keys.get(i)) : null;
+            if (segment != null) {
+                synchronized (segment) {
+                    if (segment.next <= segment.max && now < segment.deadline) {
+                        result[i] = segment.next++;
+                        continue;
+                    }
+                }
+            }
+            remote.add(i);
+        }
+        if (remote.isEmpty()) {
+            return result;
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Integer i : remote) {
+                byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                if (leaseEnabled && leasable(keys.get(i))) {
+                    connection.eval(BATCH_INCR_SCRIPT, ReturnType.INTEGER, 2, key,
+                            (keys.get(i) + LEASE_SUFFIX).getBytes(StandardCharsets.UTF_8),
+                            instanceId.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    connection.incr(key);
+                }
+            }
+            return null;
+        });
+        for (int j = 0; j < remote.size(); j++) {
+            int i = remote.get(j);
+            long value = ((Number) values.get(j)).longValue();
+            // 租约被某个实例(可能是本实例)持有, 走租约流程保证单调递增
+            result[i] = value < 0 ? doGetSeq(keys.get(i)) : value;
+        }
+        return result;
+    }
+
+    /**
+     * 尝试租一个号段, 只调用一次脚本不等待
+     * @return false 表示租约在其它实例(或刚让给等待者), 调用方直接INCR
+     */
+    private boolean lease(String key, Segment segment, int step) {
+        long leaseMillis = leaseMillis();
+        long start = System.currentTimeMillis();
+        List result = stringRedisTemplate.execute(LEASE_SCRIPT, Arrays.asList(key, key + LEASE_SUFFIX),
+                instanceId, String.valueOf(step), String.valueOf(leaseMillis));
+        if (result == null || ((Number) result.get(0)).longValue() != 1) {
+            return false;
+        }
+        long max = ((Number) result.get(1)).longValue();
+        segment.max = max;
+        segment.next = max - step + 1;
+        // 以发起请求的时间计算, 保证本地有效期早于redis上的租约过期
+        segment.deadline = start + leaseMillis * 9 / 10;
+        return true;
+    }
+
+    private long leaseMillis() {
+        Integer leaseMillis = appConfig.getSeqLeaseMillis();
+        return leaseMillis == null || leaseMillis <= 0 ? 200L : leaseMillis;
+    }
+
+    /**
+     * 清理已过期的本地号段, 冷门会话的号段不长期驻留内存
+     */
+    private void cleanExpiredSegments() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Segment>> iterator = segments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next().getValue();
+            if (segment.deadline < now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 停机时主动释放租约, 其它实例无需等待过期
+     */
+    @PreDestroy
+    public void releaseLeases() {
+        cleaner.shutdownNow();
+        for (String key : segments.keySet()) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key + LEASE_SUFFIX),
+                        instanceId);
+            } catch (Exception e) {
+                logger.warn("release seq lease error, key={}", key, e);
+            }
+        }
+    }
+
+    private static class Segment {
+
+        long next = 1;
+
+        long max = 0;
+
+        long deadline = 0;
+
+        /** 上次向redis取号的时间, 租约时长内再次取号才租号段 */
+        long lastRequest = 0;
+
+        /** 当前号段长度 */
+        int step = 2;
+    }
 
 }
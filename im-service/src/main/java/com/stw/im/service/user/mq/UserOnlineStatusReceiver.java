@@ -3,23 +3,18 @@ package com.stw.im.service.user.mq;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.TypeReference;
-import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.command.UserEventCommand;
 import com.stw.im.service.message.mq.ChatOperateReceiver;
 import com.stw.im.service.user.model.UserStatusChangeNotifyContent;
 import com.stw.im.service.user.service.ImUserStatusService;
+import com.stw.im.service.utils.UserSessionUtils;
 import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.rabbit.annotation.*;
-import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.messaging.handler.annotation.Headers;
-import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -35,25 +30,21 @@ public class UserOnlineStatusReceiver {
     @Autowired
     ImUserStatusService imUserStatusService;
 
+    @Autowired
+    UserSessionUtils userSessionUtils;
+
     /**
-     * 订阅MQ单聊消息队列--处理
+     * 消费Im2UserService的分区队列，由LogicQueueConsumers按分区注册
      *
      * @throws Exception
      */
-    @RabbitListener(bindings = @QueueBinding(
-            value = @Queue(value = Constants.RabbitConstants.Im2UserService, durable = "true"),
-            exchange = @Exchange(value = Constants.RabbitConstants.Im2UserService, durable = "true")
-    ), concurrency = "1")
-    @RabbitHandler
-    public void onChatMessage(@Payload Message message,
-                              @Headers Map<String, Object> headers,
-                              Channel channel) throws Exception {
+    public void onChatMessage(Message message, Channel channel) throws Exception {
         long start = System.currentTimeMillis();
         Thread t = Thread.currentThread();
         String msg = new String(message.getBody(), "utf-8");
         logger.info("CHAT MSG FROM QUEUE :::::" + msg);
         //deliveryTag 用于回传 rabbitmq 确认该消息处理成功
-        Long deliveryTag = (Long) headers.get(AmqpHeaders.DELIVERY_TAG);
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
 
         try {
             JSONObject jsonObject = JSON.parseObject(msg);
@@ -61,7 +52,8 @@ public class UserOnlineStatusReceiver {
             if(Objects.equals(command, UserEventCommand.USER_ONLINE_STATUS_CHANGE.getCommand())){
                 UserStatusChangeNotifyContent content = JSON.parseObject(msg, new TypeReference<UserStatusChangeNotifyContent>() {
                 }.getType());
-                //TODO
+                // 本实例的失效通知可能还没到, 先失效再读session
+                userSessionUtils.invalidate(content.getAppId(), content.getUserId());
                 imUserStatusService.processUserOnlineStatusNotify(content);
             }
 
@@ -0,0 +1,45 @@
+package com.stw.im.service.user.mq;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.rabbitmq.client.Channel;
+import com.stw.im.common.enums.command.UserEventCommand;
+import com.stw.im.service.utils.UserSessionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+
+/**
+ * @description: 用户上下线时让本实例的session缓存失效
+ * 每个实例一个匿名的临时队列, 按所有分区键绑定到 pipeline2UserService 交换机, 所有实例都能收到上下线事件;
+ * 队列和绑定见 LogicQueueConfig, 业务处理仍由分区队列 UserOnlineStatusReceiver 负责
+ * @author: stw
+ * @version: 1.0
+ */
+@Component
+public class UserSessionCacheReceiver {
+
+    private static Logger logger = LoggerFactory.getLogger(UserSessionCacheReceiver.class);
+
+    @Autowired
+    UserSessionUtils userSessionUtils;
+
+    public void onUserStatusChange(Message message, Channel channel) throws Exception {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        try {
+            JSONObject jsonObject = JSON.parseObject(new String(message.getBody(), "utf-8"));
+            if (Objects.equals(jsonObject.getInteger("command"),
+                    UserEventCommand.USER_ONLINE_STATUS_CHANGE.getCommand())) {
+                userSessionUtils.invalidate(jsonObject.getInteger("appId"), jsonObject.getString("userId"));
+            }
+        } catch (Exception e) {
+            logger.error("USER_SESSION_CACHE_INVALIDATE_ERROR", e);
+        } finally {
+            channel.basicAck(deliveryTag, false);
+        }
+    }
+}
@@ -57,10 +57,12 @@ public class ImUserStatusServiceImpl implements ImUserStatusService {
         BeanUtils.copyProperties(content,userStatusChangeNotifyPack);
         userStatusChangeNotifyPack.setClient(userSession);
 
-        syncSender(userStatusChangeNotifyPack,content.getUserId(),
+        //通知发给本人其它端和所有好友、订阅者, 只编码一次
+        MessageProducer.Payload payload = messageProducer.encode(userStatusChangeNotifyPack);
+        syncSender(payload,content.getUserId(),
                 content);
 
-        dispatcher(userStatusChangeNotifyPack,content.getUserId(),
+        dispatcher(payload,content.getUserId(),
                 content.getAppId());
     }
 
@@ -137,9 +139,10 @@ public class ImUserStatusServiceImpl implements ImUserStatusService {
                 +":"+ Constants.RedisConstants.userCustomerStatus + ":" + req.getUserId()
         ,JSONObject.toJSONString(userCustomStatusChangeNotifyPack));
 
-        syncSender(userCustomStatusChangeNotifyPack,
+        MessageProducer.Payload payload = messageProducer.encode(userCustomStatusChangeNotifyPack);
+        syncSender(payload,
                 req.getUserId(),new ClientInfo(req.getAppId(),req.getClientType(),req.getImei()));
-        dispatcher(userCustomStatusChangeNotifyPack,req.getUserId(),req.getAppId());
+        dispatcher(payload,req.getUserId(),req.getAppId());
     }
 
     @Override
@@ -11,6 +11,7 @@ import com.stw.im.common.enums.UserErrorCode;
 import com.stw.im.common.enums.command.UserEventCommand;
 import com.stw.im.common.exception.ApplicationException;
 import com.stw.im.service.group.service.ImGroupService;
+import com.stw.im.service.message.service.SendPermissionCache;
 import com.stw.im.service.user.dao.ImUserDataEntity;
 import com.stw.im.service.user.dao.mapper.ImUserDataMapper;
 import com.stw.im.service.user.model.req.*;
@@ -53,6 +54,9 @@ public class ImUserviceImpl implements ImUserService {
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    SendPermissionCache sendPermissionCache;
+
     @Autowired
     ImGroupService imGroupService;
 
@@ -73,6 +77,7 @@ public class ImUserviceImpl implements ImUserService {
                 data.setAppId(req.getAppId());
                 int insert = imUserDataMapper.insert(data);
                 if(insert == 1){
+                    sendPermissionCache.invalidateUser(req.getAppId(), data.getUserId());
                     successId.add(data.getUserId());
                 }
             }catch (Exception e){
@@ -149,6 +154,7 @@ public class ImUserviceImpl implements ImUserService {
             try {
                 update =  imUserDataMapper.update(entity, wrapper);
                 if(update > 0){
+                    sendPermissionCache.invalidateUser(req.getAppId(), userId);
                     successId.add(userId);
                 }else{
                     errorId.add(userId);
@@ -183,6 +189,7 @@ public class ImUserviceImpl implements ImUserService {
         update.setUserId(null);
         int update1 = imUserDataMapper.update(update, query);
         if(update1 == 1){
+            sendPermissionCache.invalidateUser(req.getAppId(), req.getUserId());
             UserModifyPack pack = new UserModifyPack();
             BeanUtils.copyProperties(req,pack);
             messageProducer.sendToUser(req.getUserId(),req.getClientType(),req.getImei(),
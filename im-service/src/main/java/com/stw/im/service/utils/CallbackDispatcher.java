@@ -0,0 +1,461 @@
+package com.stw.im.service.utils;
+
+import com.alibaba.fastjson.JSON;
+import com.stw.im.common.config.AppConfig;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.common.utils.HttpRequestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description: 后置回调分发
+ * 按 appId+回调地址 分通道, 每 callbackBatchIntervalMillis 把通道内的事件合并成一个数组请求
+ * (command=callback.batch, 请求体 [{"command":..., "data":...}]), 每个通道同时只有一个请求, 保证通道内顺序.
+ * 失败按 callbackRetryBackoffMillis 指数退避重试, 超过 callbackMaxRetries 次或内存队列满时通道转入暂存:
+ * 由调度线程依次把失败的批次、内存队列和溢出的事件写入 callbackSpoolDir 下的暂存文件(每个文件一批),
+ * 有暂存文件期间新事件也追加到暂存, 发送时先按文件顺序重放, 文件都发完后才回到内存队列, 重启后继续重放,
+ * 因此通道内始终按事件产生的顺序送达; 暂存总量超过 callbackSpoolMaxBytes 的事件丢弃并计数
+ * @author: stw
+ * @version: 1.0
+ */
+@Component
+public class CallbackDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    private static final int SENDER_THREADS = 4;
+
+    @Autowired
+    HttpRequestUtils httpRequestUtils;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong spoolBytes = new AtomicLong();
+
+    private File spoolRoot;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService senders;
+
+    @PostConstruct
+    public void init() {
+        spoolRoot = new File(StringUtils.isBlank(appConfig.getCallbackSpoolDir())
+                ? "callback-spool" : appConfig.getCallbackSpoolDir());
+        if (!spoolRoot.exists() && !spoolRoot.mkdirs()) {
+            logger.error("create callback spool dir failed: {}", spoolRoot.getAbsolutePath());
+        }
+        loadSpool();
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonFactory("callback-dispatcher-"));
+        senders = Executors.newFixedThreadPool(SENDER_THREADS, daemonFactory("callback-sender-"));
+        long interval = appConfig.getCallbackBatchIntervalMillis() == null || appConfig.getCallbackBatchIntervalMillis() <= 0
+                ? 200L : appConfig.getCallbackBatchIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::dispatchQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加入待发送的回调事件, 不阻塞调用方, 不做磁盘io
+     * 通道在暂存中或内存队列已满时放入溢出队列, 由调度线程写入磁盘
+     * @param jsonBody 事件数据(JSON)
+     */
+    public void offer(Integer appId, String url, String command, String jsonBody) {
+        if (StringUtils.isBlank(url)) {
+            return;
+        }
+        Channel channel = channels.computeIfAbsent(appId + "_" + encode(url), k -> new Channel(appId, url, k));
+        String event = "{\"command\":" + JSON.toJSONString(command) + ",\"data\":"
+                + (jsonBody == null ? "null" : jsonBody) + "}";
+        synchronized (channel) {
+            if (channel.spilling || !channel.queue.offer(event)) {
+                channel.spilling = true;
+                channel.overflow.add(event);
+            }
+        }
+    }
+
+    /**
+     * 发送/重试/重放总数, 暂存字节数和各通道的队列深度
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("sent", sent.get());
+        metrics.put("failed", failed.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("spoolBytes", spoolBytes.get());
+        List<Map<String, Object>> channelMetrics = new ArrayList<>();
+        for (Channel channel : channels.values()) {
+            Map<String, Object> metric = new HashMap<>();
+            metric.put("appId", channel.appId);
+            metric.put("url", channel.url);
+            metric.put("queueSize", channel.queue.size());
+            metric.put("overflowSize", channel.overflow.size());
+            metric.put("spoolFiles", channel.spoolFiles.size());
+            metric.put("attempts", channel.attempts);
+            channelMetrics.add(metric);
+        }
+        metrics.put("channels", channelMetrics);
+        return metrics;
+    }
+
+    private void dispatchQuietly() {
+        try {
+            dispatch();
+        } catch (Exception e) {
+            logger.error("callback dispatch error", e);
+        }
+    }
+
+    private void dispatch() {
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels.values()) {
+            if (channel.inFlight) {
+                continue;
+            }
+            if (channel.spilling) {
+                spill(channel);
+            }
+            if (now < channel.nextAttemptAt) {
+                continue;
+            }
+            List<String> batch = channel.retrying != null ? channel.retrying : nextBatch(channel);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            channel.inFlight = true;
+            try {
+                senders.execute(() -> deliver(channel, batch));
+            } catch (RejectedExecutionException e) {
+                channel.retrying = batch;
+                channel.inFlight = false;
+            }
+        }
+    }
+
+    /**
+     * 通道转入暂存后按顺序落盘: 先是重试失败的内存批次, 再是内存队列, 最后是溢出队列.
+     * 只在调度线程且通道没有请求在途时执行, 暂存文件都发完且没有新的溢出时回到内存队列
+     */
+    private void spill(Channel channel) {
+        if (channel.retrying != null && channel.replayFile == null) {
+            spool(channel, channel.retrying);
+            channel.retrying = null;
+            channel.attempts = 0;
+        }
+        List<String> events = new ArrayList<>();
+        synchronized (channel) {
+            channel.queue.drainTo(events);
+            String event;
+            while ((event = channel.overflow.poll()) != null) {
+                events.add(event);
+            }
+        }
+        if (!events.isEmpty()) {
+            spool(channel, events);
+        }
+        synchronized (channel) {
+            if (channel.spoolFiles.isEmpty() && channel.overflow.isEmpty()) {
+                channel.spilling = false;
+            }
+        }
+    }
+
+    /**
+     * 有暂存文件时先重放最早的文件, 暂存中的事件都早于内存队列中的事件
+     */
+    private List<String> nextBatch(Channel channel) {
+        List<String> batch = new ArrayList<>();
+        channel.replayFile = null;
+        File file = channel.spoolFiles.peekFirst();
+        if (file == null) {
+            channel.queue.drainTo(batch, batchSize());
+            return batch;
+        }
+        try {
+            batch.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+            channel.replayFile = file;
+        } catch (Exception e) {
+            logger.error("read callback spool file error: {}", file.getAbsolutePath(), e);
+            channel.spoolFiles.remove(file);
+        }
+        return batch;
+    }
+
+    private void deliver(Channel channel, List<String> batch) {
+        try {
+            Map<String, Object> params = new HashMap<>();
+            params.put("appId", channel.appId);
+            params.put("command", Constants.CallbackCommand.Batch);
+            int status = httpRequestUtils.doPostForStatus(channel.url, params, "[" + String.join(",", batch) + "]");
+            if (status < 200 || status >= 300) {
+                throw new IllegalStateException("callback response status " + status);
+            }
+            sent.addAndGet(batch.size());
+            channel.retrying = null;
+            channel.attempts = 0;
+            if (channel.replayFile != null) {
+                removeSpoolFile(channel, channel.replayFile);
+                channel.replayFile = null;
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            onFailure(channel, batch, e);
+        } finally {
+            channel.inFlight = false;
+        }
+    }
+
+    private void onFailure(Channel channel, List<String> batch, Exception e) {
+        channel.attempts++;
+        int maxRetries = appConfig.getCallbackMaxRetries() == null ? 5 : appConfig.getCallbackMaxRetries();
+        channel.nextAttemptAt = System.currentTimeMillis() + backoff(channel.attempts);
+        if (channel.attempts <= maxRetries) {
+            channel.retrying = batch;
+            logger.warn("callback {} : {} failed {} times, retry later: {}", channel.url, channel.appId,
+                    channel.attempts, e.getMessage());
+            return;
+        }
+        logger.error("callback {} : {} failed {} times, spool {} events", channel.url, channel.appId,
+                channel.attempts, batch.size());
+        if (channel.replayFile != null) {
+            // 重放的暂存文件失败后留在磁盘, 退避后再试
+            channel.retrying = null;
+            channel.attempts = 0;
+            return;
+        }
+        // 内存批次保留为重试批次, 由调度线程在其它事件之前写入暂存
+        channel.retrying = batch;
+        synchronized (channel) {
+            channel.spilling = true;
+        }
+    }
+
+    private long backoff(int attempts) {
+        long base = appConfig.getCallbackRetryBackoffMillis() == null || appConfig.getCallbackRetryBackoffMillis() <= 0
+                ? 500L : appConfig.getCallbackRetryBackoffMillis();
+        return Math.min(MAX_BACKOFF_MILLIS, base << Math.min(attempts - 1, 16));
+    }
+
+    /**
+     * 按批写入暂存文件, 文件名递增, 重放按文件名顺序
+     */
+    private void spool(Channel channel, List<String> events) {
+        int batchSize = batchSize();
+        for (int from = 0; from < events.size(); from += batchSize) {
+            List<String> part = events.subList(from, Math.min(from + batchSize, events.size()));
+            long size = 0;
+            for (String event : part) {
+                size += event.length() + 1;
+            }
+            if (spoolBytes.get() + size > spoolMaxBytes()) {
+                dropped.addAndGet(part.size());
+                logger.error("callback spool is full, drop {} events of {} : {}", part.size(), channel.url,
+                        channel.appId);
+                continue;
+            }
+            try {
+                File dir = new File(spoolRoot, channel.key);
+                if (!dir.exists()) {
+                    dir.mkdirs();
+                }
+                File file = new File(dir, String.format("%020d.log", channel.spoolSeq.incrementAndGet()));
+                Files.write(file.toPath(), part, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+                spoolBytes.addAndGet(file.length());
+                channel.spoolFiles.addLast(file);
+            } catch (Exception e) {
+                dropped.addAndGet(part.size());
+                logger.error("write callback spool error, drop {} events of {} : {}", part.size(), channel.url,
+                        channel.appId, e);
+            }
+        }
+    }
+
+    private void removeSpoolFile(Channel channel, File file) {
+        long length = file.length();
+        channel.spoolFiles.remove(file);
+        if (file.delete()) {
+            spoolBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * 启动时恢复上次未发送的暂存文件, 目录名为 appId_urlencode(回调地址)
+     */
+    private void loadSpool() {
+        File[] dirs = spoolRoot.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            String name = dir.getName();
+            int index = name.indexOf('_');
+            File[] files = dir.listFiles((d, fileName) -> fileName.endsWith(".log"));
+            if (index <= 0 || files == null || files.length == 0) {
+                continue;
+            }
+            try {
+                Channel channel = new Channel(Integer.valueOf(name.substring(0, index)),
+                        URLDecoder.decode(name.substring(index + 1), "UTF-8"), name);
+                Arrays.sort(files);
+                for (File file : files) {
+                    channel.spoolFiles.addLast(file);
+                    spoolBytes.addAndGet(file.length());
+                    long seq = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                    channel.spoolSeq.set(Math.max(channel.spoolSeq.get(), seq));
+                }
+                channel.spilling = true;
+                channels.put(name, channel);
+                logger.info("load callback spool {} : {}, files={}", channel.url, channel.appId, files.length);
+            } catch (Exception e) {
+                logger.error("load callback spool dir error: {}", dir.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * 停机时把内存中未发送的事件写入磁盘, 下次启动后重放
+     */
+    @PreDestroy
+    public void destroy() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        senders.shutdown();
+        try {
+            senders.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Channel channel : channels.values()) {
+            List<String> events = new ArrayList<>();
+            if (channel.retrying != null && channel.replayFile == null) {
+                events.addAll(channel.retrying);
+            }
+            channel.queue.drainTo(events);
+            events.addAll(channel.overflow);
+            channel.overflow.clear();
+            if (!events.isEmpty()) {
+                spool(channel, events);
+            }
+        }
+    }
+
+    private int batchSize() {
+        Integer size = appConfig.getCallbackBatchSize();
+        return size == null || size <= 0 ? 100 : size;
+    }
+
+    private long spoolMaxBytes() {
+        Long max = appConfig.getCallbackSpoolMaxBytes();
+        return max == null || max <= 0 ? 256L * 1024 * 1024 : max;
+    }
+
+    private int queueSize() {
+        Integer size = appConfig.getCallbackQueueSize();
+        return size == null || size <= 0 ? 10000 : size;
+    }
+
+    private static String encode(String url) {
+        try {
+            return URLEncoder.encode(url, "UTF-8");
+        } catch (Exception e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger num = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName(prefix + num.getAndIncrement());
+            return thread;
+        };
+    }
+
+    /**
+     * 一个 appId+回调地址 的发送通道
+     * inFlight 为 volatile, 发送线程写完重试状态后再清除 inFlight, 调度线程先读 inFlight 再读重试状态;
+     * spilling 和内存队列/溢出队列之间的切换在通道锁内进行, 锁内不做io
+     */
+    private class Channel {
+
+        final Integer appId;
+
+        final String url;
+
+        final String key;
+
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(queueSize());
+
+        /** 暂存中或内存队列满时的新事件, 等调度线程写入磁盘 */
+        final Queue<String> overflow = new ConcurrentLinkedQueue<>();
+
+        final Deque<File> spoolFiles = new ConcurrentLinkedDeque<>();
+
+        final AtomicLong spoolSeq = new AtomicLong();
+
+        volatile boolean inFlight;
+
+        /** 通道在暂存中: 新事件进溢出队列, 直到暂存文件都发完 */
+        volatile boolean spilling;
+
+        List<String> retrying;
+
+        File replayFile;
+
+        int attempts;
+
+        long nextAttemptAt;
+
+        Channel(Integer appId, String url, String key) {
+            this.appId = appId;
+            this.url = url;
+            this.key = key;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.stw.im.service.utils;
 
+import com.stw.im.common.BaseErrorCode;
 import com.stw.im.common.ResponseVO;
 import com.stw.im.common.config.AppConfig;
 import com.stw.im.common.utils.HttpRequestUtils;
@@ -8,8 +9,23 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @description: 回调服务工具类，负责处理系统事件的前置/后置回调通知
@@ -30,59 +46,173 @@ public class CallbackService {
     @Autowired
     AppConfig appConfig;
 
-    /** 共享线程池，用于异步执行后置回调，避免阻塞主线程 */
+    /** 后置回调分发，按app和回调地址合并发送 */
     @Autowired
-    ShareThreadPool shareThreadPool;
+    CallbackDispatcher callbackDispatcher;
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 300L;
+
+    /** 前置回调专用线程池，有界，回调地址变慢时不占用共享线程池 */
+    private final ThreadPoolExecutor beforeCallbackExecutor = new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1000), daemonFactory("before-callback-"));
+
+    /** 前置回调超时计时 */
+    private final ScheduledExecutorService timeoutScheduler =
+            Executors.newSingleThreadScheduledExecutor(daemonFactory("before-callback-timeout-"));
+
+    /** appId -> 熔断器 */
+    private final Map<Integer, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
 
 
     /**
      * 异步执行后置回调（事件处理完成后通知）
+     * 事件交给 CallbackDispatcher 合并发送，失败重试，积压和重试失败的事件暂存磁盘
      * @param appId 应用ID，标识当前操作所属的应用
      * @param callbackCommand 回调命令，对应具体事件类型（如消息发送后、好友添加后等，定义在Constants.CallbackCommand）
      * @param jsonBody 回调内容，事件相关的详细数据（JSON格式字符串）
      */
     public void callback(Integer appId,String callbackCommand,String jsonBody){
-        // 提交到线程池异步执行，不阻塞调用方
-        shareThreadPool.submit(() -> {
-            try {
-                // 调用HTTP工具类发送POST请求到配置的回调URL
-                httpRequestUtils.doPost(
-                        appConfig.getCallbackUrl(),  // 从配置获取回调地址
-                        Object.class,                // 响应数据类型（此处不关心具体类型）
-                        builderUrlParams(appId, callbackCommand),  // 构建URL参数（appId和命令）
-                        jsonBody,                    // 请求体（事件数据）
-                        null                         // 额外请求头（无）
-                );
-            }catch (Exception e){
-                // 记录回调异常日志，不影响主流程
-                logger.error("callback 回调{} : {}出现异常 ： {} ",callbackCommand , appId, e.getMessage());
-            }
-        });
+        callbackDispatcher.offer(appId, appConfig.getCallbackUrl(), callbackCommand, jsonBody);
     }
 
     /**
      * 同步执行前置回调（事件处理前校验）
+     * 与 beforeCallbackAsync 相同的超时、熔断和失败策略，调用方最多等待 callbackTimeoutMillis
      * @param appId 应用ID，标识当前操作所属的应用
      * @param callbackCommand 回调命令，对应具体事件类型（如消息发送前、好友添加前等）
      * @param jsonBody 回调内容，事件相关的详细数据（JSON格式字符串）
      * @return 外部服务的响应结果，用于判断是否允许继续执行后续操作
      */
     public ResponseVO beforeCallback(Integer appId,String callbackCommand,String jsonBody){
+        return beforeCallbackAsync(appId, callbackCommand, jsonBody).join();
+    }
+
+    /**
+     * 异步执行前置回调
+     * 返回的future一定正常完成：超过 callbackTimeoutMillis、请求异常、线程池满或该app熔断时
+     * 按 callbackFailOpen 返回成功或 CALLBACK_UNAVAILABLE，不会抛异常
+     * @param appId 应用ID
+     * @param callbackCommand 回调命令
+     * @param jsonBody 回调内容
+     * @return 外部服务的响应结果
+     */
+    public CompletableFuture<ResponseVO> beforeCallbackAsync(Integer appId, String callbackCommand, String jsonBody) {
+        CompletableFuture<ResponseVO> future = new CompletableFuture<>();
+        CircuitBreaker breaker = breakers.computeIfAbsent(appId, k -> new CircuitBreaker());
+        if (!breaker.allow()) {
+            shortCircuited.incrementAndGet();
+            future.complete(fallback());
+            return future;
+        }
+        long start = System.currentTimeMillis();
         try {
-            // 发送POST请求到外部服务（URL为空可能是预留扩展，实际可能从配置获取）
-            ResponseVO responseVO = httpRequestUtils.doPost(
-                    "",  // 注意：此处URL为空，可能需要根据实际配置调整
-                    ResponseVO.class,  // 响应数据类型为统一响应对象
-                    builderUrlParams(appId, callbackCommand),  // 构建URL参数
-                    jsonBody,          // 请求体（事件数据）
-                    null
-            );
-            return responseVO;
-        }catch (Exception e){
-            // 回调异常时默认返回成功，避免阻塞主流程
-            logger.error("callback 之前 回调{} : {}出现异常 ： {} ",callbackCommand , appId, e.getMessage());
+            beforeCallbackExecutor.execute(() -> {
+                try {
+                    // 发送POST请求到配置的回调地址
+                    ResponseVO responseVO = httpRequestUtils.doPost(
+                            appConfig.getCallbackUrl(),
+                            ResponseVO.class,  // 响应数据类型为统一响应对象
+                            builderUrlParams(appId, callbackCommand),  // 构建URL参数
+                            jsonBody,          // 请求体（事件数据）
+                            null
+                    );
+                    recordLatency(System.currentTimeMillis() - start);
+                    // 超时后才返回的结果已由超时计为失败，不再记成功，也不关闭熔断
+                    if (future.complete(responseVO == null ? fallback() : responseVO)) {
+                        breaker.onSuccess();
+                        succeeded.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    logger.error("callback 之前 回调{} : {}出现异常 ： {} ",callbackCommand , appId, e.getMessage());
+                    // 已超时的请求再失败不重复计数
+                    if (future.complete(fallback())) {
+                        breaker.onFailure();
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            // 半开状态放行的探测请求被拒绝时必须释放探测名额, 否则熔断器一直打开
+            breaker.onFailure();
+            future.complete(fallback());
+            return future;
+        }
+        // 超过等待上限按失败策略返回，请求本身仍在回调线程中完成
+        timeoutScheduler.schedule(() -> {
+            if (future.complete(fallback())) {
+                timedOut.incrementAndGet();
+                breaker.onFailure();
+                logger.warn("callback 之前 回调{} : {}超时", callbackCommand, appId);
+            }
+        }, timeoutMillis(), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * 前置回调的调用次数、成功/失败/超时/拒绝/熔断次数、平均和最大耗时，以及处于熔断状态的app
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("succeeded", succeeded.get());
+        metrics.put("failed", failed.get());
+        metrics.put("timedOut", timedOut.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("shortCircuited", shortCircuited.get());
+        metrics.put("avgLatencyMillis", completed.get() == 0 ? 0 : totalLatency.get() / completed.get());
+        metrics.put("maxLatencyMillis", maxLatency.get());
+        List<Integer> openApps = new ArrayList<>();
+        for (Map.Entry<Integer, CircuitBreaker> entry : breakers.entrySet()) {
+            if (entry.getValue().isOpen()) {
+                openApps.add(entry.getKey());
+            }
+        }
+        metrics.put("openApps", openApps);
+        return metrics;
+    }
+
+    private void recordLatency(long latency) {
+        completed.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+            // 重试直到写入更大的值
+        }
+    }
+
+    private ResponseVO fallback() {
+        Boolean failOpen = appConfig.getCallbackFailOpen();
+        if (failOpen == null || failOpen) {
             return ResponseVO.successResponse();
         }
+        return ResponseVO.errorResponse(BaseErrorCode.CALLBACK_UNAVAILABLE);
+    }
+
+    private long timeoutMillis() {
+        Integer timeout = appConfig.getCallbackTimeoutMillis();
+        return timeout == null || timeout <= 0 ? DEFAULT_TIMEOUT_MILLIS : timeout;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        beforeCallbackExecutor.shutdown();
+        timeoutScheduler.shutdown();
     }
 
     /**
@@ -98,5 +228,56 @@ public class CallbackService {
         return map;
     }
 
+    private static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger num = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName(prefix + num.getAndIncrement());
+            return thread;
+        };
+    }
+
+    /**
+     * 熔断器：连续失败 callbackBreakerFailures 次后打开，callbackBreakerOpenMillis 内直接走失败策略，
+     * 到期后只放一个请求探测，成功则关闭，失败则重新打开
+     */
+    private class CircuitBreaker {
+
+        private final AtomicInteger failures = new AtomicInteger();
 
-}
\ No newline at end of file
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        private volatile long openUntil;
+
+        boolean allow() {
+            long until = openUntil;
+            if (until == 0) {
+                return true;
+            }
+            if (System.currentTimeMillis() < until) {
+                return false;
+            }
+            return probing.compareAndSet(false, true);
+        }
+
+        boolean isOpen() {
+            return openUntil != 0;
+        }
+
+        void onSuccess() {
+            failures.set(0);
+            openUntil = 0;
+            probing.set(false);
+        }
+
+        void onFailure() {
+            Integer threshold = appConfig.getCallbackBreakerFailures();
+            if (failures.incrementAndGet() >= (threshold == null || threshold <= 0 ? 5 : threshold)) {
+                Long openMillis = appConfig.getCallbackBreakerOpenMillis();
+                openUntil = System.currentTimeMillis() + (openMillis == null || openMillis <= 0 ? 10000L : openMillis);
+                probing.set(false);
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import com.stw.im.service.group.service.ImGroupMemberService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,6 +34,8 @@ public class GroupMessageProducer {
                          ClientInfo clientInfo){
         JSONObject o = (JSONObject) JSONObject.toJSON(data);
         String groupId = o.getString("groupId");
+        //通知内容只编码一次, 所有成员复用
+        MessageProducer.Payload payload = messageProducer.encode(o);
         List<String> groupMemberId = imGroupMemberService
                 .getGroupMemberId(groupId, clientInfo.getAppId());
 
@@ -44,59 +47,63 @@ public class GroupMessageProducer {
             List<String> members = addGroupMemberPack.getMembers();
             for (GroupMemberDto groupMemberDto : groupManager) {
                 if(clientInfo.getClientType() != ClientType.WEBAPI.getCode() && groupMemberDto.getMemberId().equals(userId)){
-                    messageProducer.sendToUserExceptClient(groupMemberDto.getMemberId(),command,data,clientInfo);
+                    messageProducer.sendToUserExceptClient(groupMemberDto.getMemberId(),command,payload,clientInfo);
                 }else{
-                    messageProducer.sendToUser(groupMemberDto.getMemberId(),command,data,clientInfo.getAppId());
+                    messageProducer.sendToUser(groupMemberDto.getMemberId(),command,payload,clientInfo.getAppId());
                 }
             }
             for (String member : members) {
                 if(clientInfo.getClientType() != ClientType.WEBAPI.getCode() && member.equals(userId)){
-                    messageProducer.sendToUserExceptClient(member,command,data,clientInfo);
+                    messageProducer.sendToUserExceptClient(member,command,payload,clientInfo);
                 }else{
-                    messageProducer.sendToUser(member,command,data,clientInfo.getAppId());
+                    messageProducer.sendToUser(member,command,payload,clientInfo.getAppId());
                 }
             }
         }else if(command.equals(GroupEventCommand.DELETED_MEMBER)){
             RemoveGroupMemberPack pack = o.toJavaObject(RemoveGroupMemberPack.class);
             String member = pack.getMember();
-            List<String> members = imGroupMemberService.getGroupMemberId(groupId, clientInfo.getAppId());
+            //成员列表来自缓存不可修改, 复制后加入被移除的成员
+            List<String> members = new ArrayList<>(groupMemberId);
             members.add(member);
             for (String memberId : members) {
                 if(clientInfo.getClientType() != ClientType.WEBAPI.getCode() && member.equals(userId)){
-                    messageProducer.sendToUserExceptClient(memberId,command,data,clientInfo);
+                    messageProducer.sendToUserExceptClient(memberId,command,payload,clientInfo);
                 }else{
-                    messageProducer.sendToUser(memberId,command,data,clientInfo.getAppId());
+                    messageProducer.sendToUser(memberId,command,payload,clientInfo.getAppId());
                 }
             }
         }else if(command.equals(GroupEventCommand.UPDATED_MEMBER)){
             UpdateGroupMemberPack pack =
                     o.toJavaObject(UpdateGroupMemberPack.class);
             String memberId = pack.getMemberId();
-            List<GroupMemberDto> groupManager = imGroupMemberService.getGroupManager(groupId, clientInfo.getAppId());
+            List<GroupMemberDto> groupManager = new ArrayList<>(
+                    imGroupMemberService.getGroupManager(groupId, clientInfo.getAppId()));
             GroupMemberDto groupMemberDto = new GroupMemberDto();
             groupMemberDto.setMemberId(memberId);
             groupManager.add(groupMemberDto);
             for (GroupMemberDto member : groupManager) {
                 if(clientInfo.getClientType() != ClientType.WEBAPI.getCode() && member.equals(userId)){
-                    messageProducer.sendToUserExceptClient(member.getMemberId(),command,data,clientInfo);
+                    messageProducer.sendToUserExceptClient(member.getMemberId(),command,payload,clientInfo);
                 }else{
-                    messageProducer.sendToUser(member.getMemberId(),command,data,clientInfo.getAppId());
+                    messageProducer.sendToUser(member.getMemberId(),command,payload,clientInfo.getAppId());
                 }
             }
         }else {
+            List<String> toIds = new ArrayList<>(groupMemberId.size());
             for (String memberId : groupMemberId) {
                 if(clientInfo.getClientType() != null && clientInfo.getClientType() !=
                         ClientType.WEBAPI.getCode() && memberId.equals(userId)){
                     messageProducer.sendToUserExceptClient(memberId,command,
-                            data,clientInfo);
+                            payload,clientInfo);
                 }else{
-                    messageProducer.sendToUser(memberId,command,data,clientInfo.getAppId());
+                    toIds.add(memberId);
                 }
             }
+            //其余成员按网关批量下发
+            messageProducer.sendToUsers(toIds,command,payload,clientInfo.getAppId());
         }
 
 
-
     }
 
 }
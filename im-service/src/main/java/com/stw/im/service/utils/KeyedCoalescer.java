@@ -0,0 +1,126 @@
+package com.stw.im.service.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * @description: 按key合并的定时批量写出
+ * 同一key在一个刷新周期内的多次提交按 merger 合并成一条, 每 intervalMillis 整批交给 writer.
+ * writer 抛异常时整批放回, 返回的条目(写出失败的部分)也放回, 期间同key的新提交仍按 merger 合并, 下个周期重试;
+ * 停机时等待正在进行的刷新结束后再刷新一次, 仍失败的记录日志后丢弃
+ * @author: stw
+ * @version: 1.0
+ */
+public class KeyedCoalescer<V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyedCoalescer.class);
+
+    private final String name;
+
+    private final Function<V, String> keyFunction;
+
+    private final BinaryOperator<V> merger;
+
+    private final Function<List<V>, List<V>> writer;
+
+    private final Map<String, V> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param name 线程名和日志中使用
+     * @param keyFunction 合并的key
+     * @param merger 同key的旧值和新值合并
+     * @param writer 写出一批, 返回需要重试的条目
+     */
+    public KeyedCoalescer(String name, Function<V, String> keyFunction, BinaryOperator<V> merger,
+                          Function<List<V>, List<V>> writer) {
+        this.name = name;
+        this.keyFunction = keyFunction;
+        this.merger = merger;
+        this.writer = writer;
+    }
+
+    public void start(long intervalMillis) {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName(name + "-flusher");
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void offer(V value) {
+        pending.merge(keyFunction.apply(value), value, merger);
+    }
+
+    private void flushQuietly() {
+        try {
+            List<V> failed = flush();
+            if (!failed.isEmpty()) {
+                requeue(failed);
+            }
+        } catch (Exception e) {
+            logger.error("{} flush error", name, e);
+        }
+    }
+
+    /**
+     * 写出当前所有条目
+     * @return 需要重试的条目
+     */
+    private List<V> flush() {
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<V> batch = new ArrayList<>(pending.size());
+        for (String key : pending.keySet()) {
+            V value = pending.remove(key);
+            if (value != null) {
+                batch.add(value);
+            }
+        }
+        try {
+            List<V> failed = writer.apply(batch);
+            return failed == null ? Collections.emptyList() : failed;
+        } catch (Exception e) {
+            logger.error("{} write error, retry {} items later", name, batch.size(), e);
+            return batch;
+        }
+    }
+
+    private void requeue(List<V> failed) {
+        for (V value : failed) {
+            // 放回时作为旧值, 与期间提交的新值合并
+            pending.merge(keyFunction.apply(value), value, (latest, old) -> merger.apply(old, latest));
+        }
+    }
+
+    public void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<V> failed = flush();
+        if (!failed.isEmpty()) {
+            logger.error("{} drop {} items on shutdown", name, failed.size());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.stw.im.service.utils;
+
+import com.alibaba.fastjson.JSONArray;
+import com.stw.im.common.constant.Constants;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @description: 逻辑层死信投递
+ * 网关批量投递的消息只有一个deliveryTag, 其中个别条目失败时不能单独nack,
+ * 把失败的条目按原批量格式(json数组 + imBatch头)写入死信队列, 记录来源交换机, 再确认原消息
+ * @author: stw
+ * @version: 1.0
+ */
+@Service
+public class LogicDeadLetterProducer {
+
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+
+    /**
+     * @param sourceExchange 原消息所在的交换机
+     * @param items 处理失败的条目
+     */
+    public void publish(String sourceExchange, JSONArray items) {
+        Message message = MessageBuilder.withBody(items.toJSONString().getBytes(StandardCharsets.UTF_8))
+                .setContentType(MessageProperties.CONTENT_TYPE_JSON)
+                .setDeliveryMode(MessageDeliveryMode.PERSISTENT)
+                .setHeader(Constants.RabbitConstants.BatchHeader, items.size())
+                .setHeader(Constants.RabbitConstants.SourceExchangeHeader, sourceExchange)
+                .build();
+        rabbitTemplate.send(Constants.RabbitConstants.LogicDeadLetter, "", message);
+    }
+}
@@ -1,10 +1,11 @@
 package com.stw.im.service.utils;
 
 import com.alibaba.fastjson.JSONObject;
-import com.stw.im.codec.proto.MessagePack;
+import com.alibaba.fastjson.serializer.SimplePropertyPreFilter;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.command.Command;
 import com.stw.im.common.model.ClientInfo;
+import com.stw.im.common.model.UserClientDto;
 import com.stw.im.common.model.UserSession;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -14,8 +15,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * @description:
@@ -35,10 +42,19 @@ public class MessageProducer {
 
     private String queueName = Constants.RabbitConstants.MessageService2Im;
 
+    /** 批量下发时每条消息最多携带的接收端数, 控制单条消息大小 */
+    private static final int MAX_RECIPIENTS_PER_PACK = 500;
+
     public boolean sendMessage(UserSession session,Object msg){
+        return sendMessage(session.getBrokerId(), msg);
+    }
+
+    public boolean sendMessage(Integer brokerId,Object msg){
         try {
-            logger.info("send message == " + msg);
-            rabbitTemplate.convertAndSend(queueName,session.getBrokerId()+"",msg);
+            if (logger.isDebugEnabled()) {
+                logger.debug("send message == " + msg);
+            }
+            rabbitTemplate.convertAndSend(queueName,brokerId+"",msg);
             return true;
         }catch (Exception e){
             logger.error("send error :" + e.getMessage());
@@ -46,19 +62,135 @@ public class MessageProducer {
         }
     }
 
+    /**
+     * 把业务数据预先编码成json, 发给多个用户/多端时只编码一次
+     * @param excludeFields 不需要下发给客户端的字段, 如群消息的成员列表
+     */
+    public Payload encode(Object data, String... excludeFields) {
+        if (data instanceof Payload) {
+            return (Payload) data;
+        }
+        if (excludeFields.length == 0) {
+            return new Payload(JSONObject.toJSONString(data));
+        }
+        SimplePropertyPreFilter filter = new SimplePropertyPreFilter();
+        filter.getExcludes().addAll(Arrays.asList(excludeFields));
+        return new Payload(JSONObject.toJSONString(data, filter));
+    }
+
     //包装数据，调用sendMessage
     public boolean sendPack(String toId, Command command,Object msg,UserSession session){
-        MessagePack messagePack = new MessagePack();
-        messagePack.setCommand(command.getCommand());
-        messagePack.setToId(toId);
-        messagePack.setClientType(session.getClientType());
-        messagePack.setAppId(session.getAppId());
-        messagePack.setImei(session.getImei());
-        JSONObject jsonObject = JSONObject.parseObject(JSONObject.toJSONString(msg));
-        messagePack.setData(jsonObject);
-
-        String body = JSONObject.toJSONString(messagePack);
-        return sendMessage(session, body);
+        Payload payload = encode(msg);
+        return sendMessage(session, buildPack(toId, command.getCommand(), session, payload));
+    }
+
+    /**
+     * 拼接 MessagePack 的json: 每个接收端只有外层的几个字段不同, data直接拼接已编码好的内容
+     */
+    private String buildPack(String toId, Integer command, UserSession session, Payload payload) {
+        StringBuilder builder = new StringBuilder(payload.json.length() + 128);
+        builder.append("{\"appId\":").append(session.getAppId())
+                .append(",\"clientType\":").append(session.getClientType() == null ? 0 : session.getClientType())
+                .append(",\"command\":").append(command)
+                .append(",\"data\":").append(payload.json);
+        if (session.getImei() != null) {
+            builder.append(",\"imei\":").append(JSONObject.toJSONString(session.getImei()));
+        }
+        if (toId != null) {
+            builder.append(",\"toId\":").append(JSONObject.toJSONString(toId));
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * 批量发送给多个用户的所有在线端(群消息扇出)
+     * 一次批量查出所有用户的session, 按网关(brokerId)分组, 每个网关只发一条带接收方列表的消息,
+     * 由网关按本地连接展开
+     */
+    public void sendToUsers(Collection<String> toIds, Command command, Object data, Integer appId) {
+        if (toIds.isEmpty()) {
+            return;
+        }
+        Map<String, List<UserSession>> sessions = userSessionUtils.getUserSession(appId, toIds);
+        if (sessions.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<UserClientDto>> brokerRecipients = new HashMap<>();
+        for (Map.Entry<String, List<UserSession>> entry : sessions.entrySet()) {
+            for (UserSession session : entry.getValue()) {
+                UserClientDto recipient = new UserClientDto();
+                recipient.setAppId(session.getAppId());
+                recipient.setUserId(entry.getKey());
+                recipient.setClientType(session.getClientType());
+                recipient.setImei(session.getImei());
+                brokerRecipients.computeIfAbsent(session.getBrokerId(), k -> new ArrayList<>()).add(recipient);
+            }
+        }
+        Payload payload = encode(data);
+        for (Map.Entry<Integer, List<UserClientDto>> entry : brokerRecipients.entrySet()) {
+            List<UserClientDto> recipients = entry.getValue();
+            for (int from = 0; from < recipients.size(); from += MAX_RECIPIENTS_PER_PACK) {
+                List<UserClientDto> part = recipients.subList(from,
+                        Math.min(from + MAX_RECIPIENTS_PER_PACK, recipients.size()));
+                sendMessage(entry.getKey(), buildRecipientsPack(command.getCommand(), appId, part, payload));
+            }
+        }
+    }
+
+    /**
+     * 批量发送各不相同的数据(服务端批量发消息), toIds 和 datas 一一对应.
+     * 一次批量查出所有接收方的session, 每个网关的MessagePack拼成json数组按 MAX_RECIPIENTS_PER_PACK 分批发送
+     * @param exclude 不下发的端(如发送方发起请求的端), 可为null
+     * @return 至少有一个在线端的接收方
+     */
+    public Set<String> sendEach(Integer appId, Command command, List<String> toIds, List<?> datas,
+                                ClientInfo exclude) {
+        Set<String> online = new HashSet<>();
+        if (toIds.isEmpty()) {
+            return online;
+        }
+        Map<String, List<UserSession>> sessions = userSessionUtils.getUserSession(appId, new HashSet<>(toIds));
+        if (sessions.isEmpty()) {
+            return online;
+        }
+        Map<Integer, List<String>> brokerPacks = new HashMap<>();
+        for (int i = 0; i < toIds.size(); i++) {
+            String toId = toIds.get(i);
+            List<UserSession> userSessions = sessions.get(toId);
+            if (userSessions == null || userSessions.isEmpty()) {
+                continue;
+            }
+            Payload payload = null;
+            for (UserSession session : userSessions) {
+                if (exclude != null && isMatch(session, exclude)) {
+                    continue;
+                }
+                if (payload == null) {
+                    payload = encode(datas.get(i));
+                }
+                brokerPacks.computeIfAbsent(session.getBrokerId(), k -> new ArrayList<>())
+                        .add(buildPack(toId, command.getCommand(), session, payload));
+                online.add(toId);
+            }
+        }
+        for (Map.Entry<Integer, List<String>> entry : brokerPacks.entrySet()) {
+            List<String> packs = entry.getValue();
+            for (int from = 0; from < packs.size(); from += MAX_RECIPIENTS_PER_PACK) {
+                List<String> part = packs.subList(from, Math.min(from + MAX_RECIPIENTS_PER_PACK, packs.size()));
+                sendMessage(entry.getKey(), "[" + String.join(",", part) + "]");
+            }
+        }
+        return online;
+    }
+
+    private String buildRecipientsPack(Integer command, Integer appId, List<UserClientDto> recipients,
+                                       Payload payload) {
+        StringBuilder builder = new StringBuilder(payload.json.length() + recipients.size() * 64 + 64);
+        builder.append("{\"appId\":").append(appId)
+                .append(",\"command\":").append(command)
+                .append(",\"data\":").append(payload.json)
+                .append(",\"recipients\":").append(JSONObject.toJSONString(recipients));
+        return builder.append('}').toString();
     }
 
     //发送给所有端的方法
@@ -66,8 +198,12 @@ public class MessageProducer {
         List<UserSession> userSession
                 = userSessionUtils.getUserSession(appId, toId);
         List<ClientInfo> list = new ArrayList<>();
+        if (userSession.isEmpty()) {
+            return list;
+        }
+        Payload payload = encode(data);
         for (UserSession session : userSession) {
-            boolean b = sendPack(toId, command, data, session);
+            boolean b = sendPack(toId, command, payload, session);
             if(b){
                 list.add(new ClientInfo(session.getAppId(),session.getClientType(),session.getImei()));
             }
@@ -105,11 +241,32 @@ public class MessageProducer {
         List<UserSession> userSession = userSessionUtils
                 .getUserSession(clientInfo.getAppId(),
                         toId);
+        Payload payload = null;
         for (UserSession session : userSession) {
             if(!isMatch(session,clientInfo)){
-                sendPack(toId,command,data,session);
+                if (payload == null) {
+                    payload = encode(data);
+                }
+                sendPack(toId,command,payload,session);
             }
         }
     }
 
+    /**
+     * 已编码的业务数据
+     */
+    public static final class Payload {
+
+        private final String json;
+
+        private Payload(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
 }
@@ -0,0 +1,149 @@
+package com.stw.im.service.utils;
+
+import com.alibaba.fastjson.JSONObject;
+import com.stw.im.common.model.message.OfflineMessageContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description: 离线消息引用的编解码
+ * 离线消息zset里只存引用(messageKey、序列号、会话、收发方、标记), 消息体单独存一份按messageKey共享.
+ * 支持两种格式, 读取时按首字节区分, 同时兼容旧的完整json:
+ * 1. json: 短字段名 {"k":messageKey,"s":序列号,"t":会话类型,"c":会话id,"f":发送方,"o":接收方,"d":删除标记,"r":random},
+ *    全员广播限定客户端类型时另有 "ct":[客户端类型]
+ * 2. binary: 首字节为版本号 1, 之后按固定顺序写入各字段, 客户端类型(个数+各类型)可选地写在末尾
+ * @author: stw
+ * @version: 1.0
+ */
+public class OfflineMessageCodec {
+
+    public static final String FORMAT_BINARY = "binary";
+
+    private static final byte BINARY_VERSION = 1;
+
+    public static byte[] encode(OfflineMessageContent content, String format) {
+        if (FORMAT_BINARY.equalsIgnoreCase(format)) {
+            return encodeBinary(content);
+        }
+        JSONObject ref = new JSONObject(true);
+        ref.put("k", content.getMessageKey());
+        ref.put("s", content.getMessageSequence());
+        ref.put("t", content.getConversationType());
+        ref.put("c", content.getConversationId());
+        ref.put("f", content.getFromId());
+        ref.put("o", content.getToId());
+        ref.put("d", content.getDelFlag());
+        ref.put("r", content.getMessageRandom());
+        if (content.getClientTypes() != null && !content.getClientTypes().isEmpty()) {
+            ref.put("ct", content.getClientTypes());
+        }
+        return ref.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解码为不带消息体的离线消息, 旧格式的完整json原样解析(带消息体)
+     */
+    public static OfflineMessageContent decode(byte[] bytes, Integer appId) {
+        OfflineMessageContent content;
+        if (bytes.length > 0 && bytes[0] == BINARY_VERSION) {
+            content = decodeBinary(bytes);
+        } else {
+            JSONObject json = JSONObject.parseObject(new String(bytes, StandardCharsets.UTF_8));
+            if (json.containsKey("messageKey")) {
+                content = json.toJavaObject(OfflineMessageContent.class);
+            } else {
+                content = new OfflineMessageContent();
+                content.setMessageKey(json.getLong("k"));
+                content.setMessageSequence(json.getLong("s"));
+                content.setConversationType(json.getInteger("t"));
+                content.setConversationId(json.getString("c"));
+                content.setFromId(json.getString("f"));
+                content.setToId(json.getString("o"));
+                content.setDelFlag(json.getInteger("d"));
+                content.setMessageRandom(json.getString("r"));
+                if (json.containsKey("ct")) {
+                    content.setClientTypes(json.getJSONArray("ct").toJavaList(Integer.class));
+                }
+            }
+        }
+        if (content.getAppId() == null) {
+            content.setAppId(appId);
+        }
+        return content;
+    }
+
+    private static byte[] encodeBinary(OfflineMessageContent content) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(BINARY_VERSION);
+            out.writeLong(content.getMessageKey() == null ? 0L : content.getMessageKey());
+            out.writeLong(content.getMessageSequence() == null ? 0L : content.getMessageSequence());
+            out.writeByte(content.getConversationType() == null ? -1 : content.getConversationType());
+            out.writeByte(content.getDelFlag() == null ? -1 : content.getDelFlag());
+            writeString(out, content.getConversationId());
+            writeString(out, content.getFromId());
+            writeString(out, content.getToId());
+            writeString(out, content.getMessageRandom());
+            List<Integer> clientTypes = content.getClientTypes();
+            if (clientTypes != null && !clientTypes.isEmpty()) {
+                out.writeByte(clientTypes.size());
+                for (Integer clientType : clientTypes) {
+                    out.writeByte(clientType);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static OfflineMessageContent decodeBinary(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.readByte();
+            OfflineMessageContent content = new OfflineMessageContent();
+            content.setMessageKey(in.readLong());
+            content.setMessageSequence(in.readLong());
+            byte conversationType = in.readByte();
+            content.setConversationType(conversationType < 0 ? null : (int) conversationType);
+            byte delFlag = in.readByte();
+            content.setDelFlag(delFlag < 0 ? null : (int) delFlag);
+            content.setConversationId(readString(in));
+            content.setFromId(readString(in));
+            content.setToId(readString(in));
+            content.setMessageRandom(readString(in));
+            if (in.available() > 0) {
+                int size = in.readUnsignedByte();
+                List<Integer> clientTypes = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    clientTypes.add((int) in.readByte());
+                }
+                content.setClientTypes(clientTypes);
+            }
+            return content;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,171 @@
+package com.stw.im.service.utils;
+
+import com.stw.im.common.config.AppConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description 会话亲和的有序线程池
+ * 按 key(会话id/群id) hash 到固定的单线程通道, 同一会话的消息严格按入队顺序串行执行,
+ * 不同会话并行. 通道队列有界, 满了阻塞提交线程(MQ消费线程), 把背压传回broker
+ * @author stw
+ * @version: 1.0
+ */
+@Service
+public class OrderedThreadPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderedThreadPool.class);
+
+    private static final int DEFAULT_LANE_SIZE = 16;
+
+    private static final int DEFAULT_LANE_QUEUE_SIZE = 2000;
+
+    @Autowired
+    AppConfig appConfig;
+
+    private Lane[] lanes;
+
+    @PostConstruct
+    public void init() {
+        int laneSize = appConfig.getOrderedLaneSize() == null || appConfig.getOrderedLaneSize() <= 0
+                ? DEFAULT_LANE_SIZE : appConfig.getOrderedLaneSize();
+        int queueSize = appConfig.getOrderedLaneQueueSize() == null || appConfig.getOrderedLaneQueueSize() <= 0
+                ? DEFAULT_LANE_QUEUE_SIZE : appConfig.getOrderedLaneQueueSize();
+        lanes = new Lane[laneSize];
+        for (int i = 0; i < laneSize; i++) {
+            lanes[i] = new Lane(i, queueSize);
+            lanes[i].start();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+    }
+
+    /**
+     * 提交任务, 同一个key的任务按提交顺序执行
+     * 通道队列满时阻塞等待
+     * @param key 会话id/群id
+     * @param task 任务
+     */
+    public void execute(String key, Runnable task) {
+        Lane lane = lanes[laneIndex(key)];
+        lane.submitted.incrementAndGet();
+        TimedTask timedTask = new TimedTask(task);
+        if (!lane.queue.offer(timedTask)) {
+            lane.blocked.incrementAndGet();
+            long start = System.currentTimeMillis();
+            try {
+                lane.queue.put(timedTask);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lane.submitted.decrementAndGet();
+                throw new IllegalStateException("OrderedThreadPool submit interrupted", e);
+            }
+            logger.warn("OrderedThreadPool lane-{} is full, producer blocked {} ms", lane.index,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    private int laneIndex(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % lanes.length;
+    }
+
+    /**
+     * 各通道的队列深度、提交/完成/阻塞次数、最大排队时间
+     */
+    public List<Map<String, Object>> getMetrics() {
+        List<Map<String, Object>> metrics = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            Map<String, Object> metric = new HashMap<>();
+            metric.put("lane", lane.index);
+            metric.put("queueSize", lane.queue.size());
+            metric.put("submitted", lane.submitted.get());
+            metric.put("completed", lane.completed.get());
+            metric.put("blocked", lane.blocked.get());
+            metric.put("maxWaitMillis", lane.maxWait.get());
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    private static class TimedTask {
+
+        final Runnable task;
+
+        final long submitTime = System.currentTimeMillis();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private static class Lane extends Thread {
+
+        final int index;
+
+        final BlockingQueue<TimedTask> queue;
+
+        final AtomicLong submitted = new AtomicLong();
+
+        final AtomicLong completed = new AtomicLong();
+
+        final AtomicLong blocked = new AtomicLong();
+
+        final AtomicLong maxWait = new AtomicLong();
+
+        Lane(int index, int queueSize) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setName("ordered-lane-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                TimedTask timedTask;
+                try {
+                    timedTask = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                long wait = start - timedTask.submitTime;
+                if (wait > maxWait.get()) {
+                    maxWait.set(wait);
+                }
+                try {
+                    timedTask.task.run();
+                } catch (Throwable e) {
+                    logger.error("OrderedThreadPool_ERROR lane-{}", index, e);
+                } finally {
+                    completed.incrementAndGet();
+                    long dur = System.currentTimeMillis() - start;
+                    if (dur > 300) {
+                        logger.warn("OrderedThreadPool lane-{} slow task, costs time = {}, remanent num = {}",
+                                index, dur, queue.size());
+                    }
+                }
+            }
+        }
+    }
+}
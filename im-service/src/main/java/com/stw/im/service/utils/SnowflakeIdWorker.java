@@ -86,6 +86,15 @@ public class SnowflakeIdWorker {
     }
 
     // ==============================Methods=================================
+
+    /**
+     * 指定时间之后生成的id都不小于返回值, 用于按时间过滤按id排序的数据
+     * @param timeMillis 毫秒时间戳
+     */
+    public static long minIdOf(long timeMillis) {
+        return (timeMillis / 1000 - OFFSET) << OFFSET_SHIFT_BITS;
+    }
+
     public static long nextId() {
         return nextId(SystemClock.now() / 1000);
     }
@@ -5,40 +5,75 @@ import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.ImConnectStatusEnum;
 import com.stw.im.common.model.UserSession;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * @description:
+ * @description: 用户session查询
+ * 本地缓存每个用户的session列表, 投递消息时不再每次HGETALL + 解析.
+ * 网关登录/登出/离线时先写redis再发 USER_ONLINE_STATUS_CHANGE, 收到后让本地缓存失效, redis作为兜底.
+ * 失效时留下版本号更大的墓碑, 失效前发起的redis读取结果不会再写回缓存
  * @author: stw
  * @version: 1.0
  */
 @Component
 public class UserSessionUtils {
 
+    /** 缓存有效期, 丢失失效通知时最多这么久后回源 */
+    private static final long CACHE_TTL_MILLIS = 30000L;
+
+    private static final int CACHE_MAX_SIZE = 100000;
+
     public Object get;
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    private final ConcurrentHashMap<String, CacheEntry> sessionCache = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        thread.setName("user-session-cache-cleaner");
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        cleaner.scheduleWithFixedDelay(this::cleanExpired, 60, 60, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cleaner.shutdownNow();
+    }
+
     //1.获取用户所有的session
 
     public List<UserSession> getUserSession(Integer appId,String userId){
 
-        String userSessionKey = appId + Constants.RedisConstants.UserSessionConstants
-                + userId;
-        Map<Object, Object> entries =
-                stringRedisTemplate.opsForHash().entries(userSessionKey);
         List<UserSession> list = new ArrayList<>();
-        Collection<Object> values = entries.values();
-        for (Object o : values){
-            String str = (String) o;
-            UserSession session =
-                    JSONObject.parseObject(str, UserSession.class);
+        for (UserSession session : getAllSession(appId, userId)){
             if(session.getConnectState() == ImConnectStatusEnum.ONLINE_STATUS.getCode()){
                 list.add(session);
             }
@@ -53,6 +88,11 @@ public class UserSessionUtils {
     public UserSession getUserSession(Integer appId,String userId
             ,Integer clientType,String imei){
 
+        for (UserSession session : getAllSession(appId, userId)) {
+            if (Objects.equals(session.getClientType(), clientType) && Objects.equals(session.getImei(), imei)) {
+                return session;
+            }
+        }
         String userSessionKey = appId + Constants.RedisConstants.UserSessionConstants
                 + userId;
         String hashKey = clientType + ":" + imei;
@@ -62,5 +102,146 @@ public class UserSessionUtils {
         return session;
     }
 
+    /**
+     * 用户上线/下线后调用, 让本地缓存失效
+     */
+    public void invalidate(Integer appId, String userId) {
+        long now = System.currentTimeMillis();
+        sessionCache.compute(cacheKey(appId, userId), (k, current) ->
+                new CacheEntry(current == null ? 1 : current.version + 1, null, now));
+    }
+
+    public Map<String, Object> getCacheMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("size", sessionCache.size());
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        return metrics;
+    }
+
+    /**
+     * 批量获取多个用户在线的session, 未命中缓存的用户用一次pipeline批量HGETALL
+     * @return userId -> 在线session, 不在线的用户不在结果中
+     */
+    public Map<String, List<UserSession>> getUserSession(Integer appId, Collection<String> userIds) {
+        Map<String, List<UserSession>> result = new HashMap<>(userIds.size());
+        List<String> missUserIds = new ArrayList<>();
+        List<Long> missVersions = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String userId : userIds) {
+            CacheEntry current = sessionCache.get(cacheKey(appId, userId));
+            if (current != null && current.sessions != null && now - current.time < CACHE_TTL_MILLIS) {
+                hits.incrementAndGet();
+                putOnline(result, userId, current.sessions);
+            } else {
+                misses.incrementAndGet();
+                missUserIds.add(userId);
+                missVersions.add(current == null ? 0L : current.version);
+            }
+        }
+        if (missUserIds.isEmpty()) {
+            return result;
+        }
+        List<Object> entriesList = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String userId : missUserIds) {
+                connection.hGetAll(sessionKey(appId, userId).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        for (int i = 0; i < missUserIds.size(); i++) {
+            Object entries = entriesList.get(i);
+            List<UserSession> sessions = Collections.unmodifiableList(
+                    parseSessions(entries instanceof Map ? (Map<?, ?>) entries : Collections.emptyMap()));
+            fill(cacheKey(appId, missUserIds.get(i)), missVersions.get(i), sessions, now);
+            putOnline(result, missUserIds.get(i), sessions);
+        }
+        return result;
+    }
+
+    /**
+     * 用户所有的session(包含离线状态的), 返回的列表不可修改
+     */
+    private List<UserSession> getAllSession(Integer appId, String userId) {
+        String key = cacheKey(appId, userId);
+        long now = System.currentTimeMillis();
+        CacheEntry current = sessionCache.get(key);
+        if (current != null && current.sessions != null && now - current.time < CACHE_TTL_MILLIS) {
+            hits.incrementAndGet();
+            return current.sessions;
+        }
+        misses.incrementAndGet();
+        long version = current == null ? 0 : current.version;
+        List<UserSession> sessions = Collections.unmodifiableList(
+                parseSessions(stringRedisTemplate.opsForHash().entries(sessionKey(appId, userId))));
+        fill(key, version, sessions, now);
+        return sessions;
+    }
+
+    /**
+     * 读取期间收到了失效通知(版本号变了)则不写回, 避免旧数据覆盖
+     */
+    private void fill(String key, long version, List<UserSession> sessions, long now) {
+        if (!sessionCache.containsKey(key) && sessionCache.size() >= CACHE_MAX_SIZE) {
+            return;
+        }
+        CacheEntry loaded = new CacheEntry(version, sessions, now);
+        sessionCache.compute(key, (k, latest) -> {
+            long latestVersion = latest == null ? 0 : latest.version;
+            return latestVersion == version ? loaded : latest;
+        });
+    }
+
+    private void putOnline(Map<String, List<UserSession>> result, String userId, List<UserSession> sessions) {
+        List<UserSession> online = null;
+        for (UserSession session : sessions) {
+            if (session.getConnectState() == ImConnectStatusEnum.ONLINE_STATUS.getCode()) {
+                if (online == null) {
+                    online = new ArrayList<>(sessions.size());
+                }
+                online.add(session);
+            }
+        }
+        if (online != null) {
+            result.put(userId, online);
+        }
+    }
+
+    private List<UserSession> parseSessions(Map<?, ?> entries) {
+        List<UserSession> list = new ArrayList<>(entries.size());
+        for (Object o : entries.values()){
+            String str = o instanceof byte[] ? new String((byte[]) o, StandardCharsets.UTF_8) : (String) o;
+            list.add(JSONObject.parseObject(str, UserSession.class));
+        }
+        return list;
+    }
+
+    private String sessionKey(Integer appId, String userId) {
+        return appId + Constants.RedisConstants.UserSessionConstants + userId;
+    }
+
+    private void cleanExpired() {
+        long now = System.currentTimeMillis();
+        sessionCache.entrySet().removeIf(entry -> now - entry.getValue().time > CACHE_TTL_MILLIS);
+    }
+
+    private String cacheKey(Integer appId, String userId) {
+        return appId + ":" + userId;
+    }
+
+    private static class CacheEntry {
+
+        final long version;
+
+        /** null 表示已失效(墓碑) */
+        final List<UserSession> sessions;
+
+        final long time;
+
+        CacheEntry(long version, List<UserSession> sessions, long time) {
+            this.version = version;
+            this.sessions = sessions;
+            this.time = time;
+        }
+    }
 
 }
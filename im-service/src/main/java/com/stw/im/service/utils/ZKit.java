@@ -1,44 +1,240 @@
 package com.stw.im.service.utils;
 
+import com.alibaba.fastjson.JSONObject;
 import com.stw.im.common.constant.Constants;
+import com.stw.im.common.route.NodeInfo;
+import com.stw.im.common.route.NodeInfoProvider;
+import org.I0Itec.zkclient.IZkChildListener;
+import org.I0Itec.zkclient.IZkDataListener;
+import org.I0Itec.zkclient.IZkStateListener;
 import org.I0Itec.zkclient.ZkClient;
+import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author: stw
  * @description: Zookeeper 工具
+ * 网关以临时节点注册, 这里watch子节点变化维护一份本地快照,
+ * 登录路由直接读快照, 不再每次请求访问zookeeper;
+ * 同时watch每个节点的数据, 网关定时上报的负载随之更新到快照
  **/
 @Component
-public class ZKit {
+public class ZKit implements NodeInfoProvider {
 
     private static Logger logger = LoggerFactory.getLogger(ZKit.class);
 
     @Autowired
     private ZkClient zkClient;
+
+    private final String tcpPath = Constants.ImCoreZkRoot + Constants.ImCoreZkRootTcp;
+
+    private final String webPath = Constants.ImCoreZkRoot + Constants.ImCoreZkRootWeb;
+
+    /** 快照整体替换, 读方无锁 */
+    private volatile NodeSnapshot tcpSnapshot = NodeSnapshot.EMPTY;
+
+    private volatile NodeSnapshot webSnapshot = NodeSnapshot.EMPTY;
+
+    /** 已订阅数据变化的节点路径 */
+    private final Set<String> dataWatchedPaths = ConcurrentHashMap.newKeySet();
+
+    private final IZkDataListener dataListener = new IZkDataListener() {
+        @Override
+        public void handleDataChange(String dataPath, Object data) {
+            updateNodeInfo(dataPath, data);
+        }
+
+        @Override
+        public void handleDataDeleted(String dataPath) {
+            // 节点删除由子节点watch处理
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        tcpSnapshot = buildSnapshot(tcpPath, zkClient.subscribeChildChanges(tcpPath, new IZkChildListener() {
+            @Override
+            public void handleChildChange(String parentPath, List<String> currentChilds) {
+                tcpSnapshot = buildSnapshot(parentPath, currentChilds);
+            }
+        }));
+        webSnapshot = buildSnapshot(webPath, zkClient.subscribeChildChanges(webPath, new IZkChildListener() {
+            @Override
+            public void handleChildChange(String parentPath, List<String> currentChilds) {
+                webSnapshot = buildSnapshot(parentPath, currentChilds);
+            }
+        }));
+
+        // 会话过期期间可能错过事件, 新会话建立后全量重新加载
+        zkClient.subscribeStateChanges(new IZkStateListener() {
+            @Override
+            public void handleStateChanged(Watcher.Event.KeeperState state) {
+            }
+
+            @Override
+            public void handleNewSession() {
+                reload();
+            }
+        });
+    }
+
+    private void reload() {
+        tcpSnapshot = buildSnapshot(tcpPath, readChildren(tcpPath));
+        webSnapshot = buildSnapshot(webPath, readChildren(webPath));
+    }
+
+    private List<String> readChildren(String path) {
+        if (!zkClient.exists(path)) {
+            return null;
+        }
+        return zkClient.getChildren(path);
+    }
+
+    private synchronized NodeSnapshot buildSnapshot(String parentPath, List<String> children) {
+        Set<String> paths = new HashSet<>();
+        if (children != null) {
+            for (String node : children) {
+                paths.add(parentPath + "/" + node);
+            }
+        }
+        watchData(parentPath, paths);
+        if (children == null || children.isEmpty()) {
+            logger.info("Zookeeper node changed, path=[{}], nodes=[]", parentPath);
+            return NodeSnapshot.EMPTY;
+        }
+        List<String> nodes = new ArrayList<>(children);
+        Collections.sort(nodes);
+        Map<String, NodeInfo> nodeInfos = new HashMap<>();
+        for (String node : nodes) {
+            NodeInfo nodeInfo = readNodeInfo(parentPath + "/" + node);
+            if (nodeInfo != null) {
+                nodeInfos.put(node, nodeInfo);
+            }
+        }
+        logger.info("Zookeeper node changed, path=[{}], nodes={}", parentPath, nodes);
+        return new NodeSnapshot(Collections.unmodifiableList(nodes), Collections.unmodifiableMap(nodeInfos));
+    }
+
     /**
-     * get all TCP server node from zookeeper
+     * 新节点订阅数据变化, 已下线节点取消订阅
+     */
+    private void watchData(String parentPath, Set<String> paths) {
+        for (String path : dataWatchedPaths) {
+            if (path.startsWith(parentPath + "/") && !paths.contains(path)) {
+                zkClient.unsubscribeDataChanges(path, dataListener);
+                dataWatchedPaths.remove(path);
+            }
+        }
+        for (String path : paths) {
+            if (dataWatchedPaths.add(path)) {
+                zkClient.subscribeDataChanges(path, dataListener);
+            }
+        }
+    }
+
+    /**
+     * 节点数据变化(负载上报)只替换元数据, 节点列表实例不变, 一致性hash环无需重建
+     */
+    private synchronized void updateNodeInfo(String dataPath, Object data) {
+        if (data == null) {
+            return;
+        }
+        NodeInfo nodeInfo;
+        try {
+            nodeInfo = JSONObject.parseObject(data.toString(), NodeInfo.class);
+        } catch (Exception e) {
+            logger.warn("Parse zookeeper node data error, path=[{}]", dataPath, e);
+            return;
+        }
+        int index = dataPath.lastIndexOf('/');
+        String parentPath = dataPath.substring(0, index);
+        String node = dataPath.substring(index + 1);
+        if (tcpPath.equals(parentPath)) {
+            tcpSnapshot = tcpSnapshot.withNodeInfo(node, nodeInfo);
+        } else if (webPath.equals(parentPath)) {
+            webSnapshot = webSnapshot.withNodeInfo(node, nodeInfo);
+        }
+    }
+
+    private NodeInfo readNodeInfo(String path) {
+        try {
+            Object data = zkClient.readData(path, true);
+            if (data == null) {
+                return null;
+            }
+            return JSONObject.parseObject(data.toString(), NodeInfo.class);
+        } catch (Exception e) {
+            logger.warn("Read zookeeper node data error, path=[{}]", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * get all TCP server node from local snapshot
      *
-     * @return
+     * @return 不可修改的节点列表, 节点未变化时返回同一个实例
      */
     public List<String> getAllTcpNode() {
-        List<String> children = zkClient.getChildren(Constants.ImCoreZkRoot + Constants.ImCoreZkRootTcp);
-//        logger.info("Query all node =[{}] success.", JSON.toJSONString(children));
-        return children;
+        return tcpSnapshot.nodes;
     }
 
     /**
-     * get all WEB server node from zookeeper
+     * get all WEB server node from local snapshot
      *
-     * @return
+     * @return 不可修改的节点列表, 节点未变化时返回同一个实例
      */
     public List<String> getAllWebNode() {
-        List<String> children = zkClient.getChildren(Constants.ImCoreZkRoot + Constants.ImCoreZkRootWeb);
-//        logger.info("Query all node =[{}] success.", JSON.toJSONString(children));
-        return children;
+        return webSnapshot.nodes;
+    }
+
+    public NodeInfo getTcpNodeInfo(String node) {
+        return tcpSnapshot.nodeInfos.get(node);
+    }
+
+    public NodeInfo getWebNodeInfo(String node) {
+        return webSnapshot.nodeInfos.get(node);
+    }
+
+    @Override
+    public NodeInfo getNodeInfo(String node) {
+        NodeInfo nodeInfo = tcpSnapshot.nodeInfos.get(node);
+        return nodeInfo != null ? nodeInfo : webSnapshot.nodeInfos.get(node);
+    }
+
+    private static class NodeSnapshot {
+
+        static final NodeSnapshot EMPTY = new NodeSnapshot(Collections.<String>emptyList(),
+                Collections.<String, NodeInfo>emptyMap());
+
+        final List<String> nodes;
+
+        final Map<String, NodeInfo> nodeInfos;
+
+        NodeSnapshot(List<String> nodes, Map<String, NodeInfo> nodeInfos) {
+            this.nodes = nodes;
+            this.nodeInfos = nodeInfos;
+        }
+
+        NodeSnapshot withNodeInfo(String node, NodeInfo nodeInfo) {
+            if (!nodes.contains(node)) {
+                return this;
+            }
+            Map<String, NodeInfo> copy = new HashMap<>(nodeInfos);
+            copy.put(node, nodeInfo);
+            return new NodeSnapshot(nodes, Collections.unmodifiableMap(copy));
+        }
     }
 }
@@ -1,13 +1,19 @@
 package com.stw.im.tcp;
 
 import com.stw.im.codec.config.BootstrapConfig;
+import com.stw.im.tcp.publish.MqBatchPublisher;
+import com.stw.im.tcp.publish.MqMessageProducer;
+import com.stw.im.tcp.reciver.BroadcastMessageReciver;
 import com.stw.im.tcp.reciver.MessageReciver;
 import com.stw.im.tcp.redis.RedisManager;
+import com.stw.im.tcp.register.NodeLoadCollector;
 import com.stw.im.tcp.register.RegistryZK;
 import com.stw.im.tcp.register.ZKit;
 import com.stw.im.tcp.server.LimServer;
 import com.stw.im.tcp.server.LimWebSocketServer;
+import com.stw.im.tcp.utils.LiveRoomHolder;
 import com.stw.im.tcp.utils.MqFactory;
+import com.stw.im.tcp.utils.RecentMessageHolder;
 import org.I0Itec.zkclient.ZkClient;
 import org.yaml.snakeyaml.Yaml;
 
@@ -66,17 +72,33 @@ public class Starter {
             BootstrapConfig bootstrapConfig = yaml.loadAs(inputStream, BootstrapConfig.class);
 
             // 2. 启动TCP服务器（基于Netty的LimServer）和WebSocket服务器
-            new LimServer(bootstrapConfig.getLim()).start();
-            new LimWebSocketServer(bootstrapConfig.getLim()).start();
+            LimServer limServer = new LimServer(bootstrapConfig.getLim());
+            limServer.start();
+            LimWebSocketServer limWebSocketServer = new LimWebSocketServer(bootstrapConfig.getLim());
+            limWebSocketServer.start();
 
+            // 客户端重发去重窗口
+            RecentMessageHolder.init(bootstrapConfig.getLim().getRecentMessageWindowSize());
             // 3. 初始化Redis连接（用于会话存储、在线状态等）
             RedisManager.init(bootstrapConfig);
             // 4. 初始化RabbitMQ连接（用于消息队列通信）
             MqFactory.init(bootstrapConfig.getLim().getRabbitmq());
+            // 逻辑层队列按会话分区
+            MqMessageProducer.init(bootstrapConfig.getLim().getLogicPartitions());
+            // 投递逻辑层的微批量（可选）
+            MqBatchPublisher.init(bootstrapConfig.getLim().getMqBatchSize(),
+                    bootstrapConfig.getLim().getMqBatchLingerMs());
             // 5. 初始化消息接收器（监听MQ队列，处理消息分发）
             MessageReciver.init(bootstrapConfig.getLim().getBrokerId()+"");
+            // 直播间成员只记录在本网关
+            LiveRoomHolder.init(bootstrapConfig.getLim().getBrokerId()+"");
+            // 全员广播接收器（fanout交换机，本地分批写出）
+            BroadcastMessageReciver.init(bootstrapConfig.getLim().getBrokerId()+"",
+                    bootstrapConfig.getLim().getBroadcastBatchSize(),
+                    bootstrapConfig.getLim().getBroadcastBatchIntervalMs());
             // 6. 将服务注册到ZooKeeper（供客户端发现服务地址）
-            registerZK(bootstrapConfig);
+            registerZK(bootstrapConfig, new NodeLoadCollector(limServer.getSubGroup(),
+                    limWebSocketServer.getSubGroup()));
 
         }catch (Exception e){
             // 启动失败时打印异常并退出程序
@@ -89,8 +111,9 @@ public class Starter {
      * 注册服务到ZooKeeper
      * 存储当前服务的IP和端口（TCP/WebSocket）到ZK节点，用于服务发现
      * @param config 全局配置对象
+     * @param loadCollector 负载采集, 定时上报到节点数据
      */
-    public static void registerZK(BootstrapConfig config) throws UnknownHostException {
+    public static void registerZK(BootstrapConfig config, NodeLoadCollector loadCollector) throws UnknownHostException {
         // 获取当前服务器IP地址
         String hostAddress = InetAddress.getLocalHost().getHostAddress();
         // 创建ZK客户端
@@ -98,7 +121,7 @@ public class Starter {
                 config.getLim().getZkConfig().getZkConnectTimeOut());
         ZKit zKit = new ZKit(zkClient);
         // 构建注册器并启动线程执行注册（避免阻塞主线程）
-        RegistryZK registryZK = new RegistryZK(zKit, hostAddress, config.getLim());
+        RegistryZK registryZK = new RegistryZK(zKit, hostAddress, config.getLim(), loadCollector);
         Thread thread = new Thread(registryZK);
         thread.start();
     }
@@ -23,6 +23,8 @@ import com.stw.im.common.utils.UserContextHolder;
 import com.stw.im.tcp.feign.FeignMessageService;
 import com.stw.im.tcp.publish.MqMessageProducer;
 import com.stw.im.tcp.redis.RedisManager;
+import com.stw.im.tcp.utils.LiveRoomHolder;
+import com.stw.im.tcp.utils.RecentMessageHolder;
 import com.stw.im.tcp.utils.SessionSocketHolder;
 import feign.Feign;
 import feign.Request;
@@ -108,6 +110,18 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
                 || command == GroupEventCommand.MSG_GROUP.getCommand()) {
             handleChatMessage(ctx, msg, command);
         }
+        // 直播间加入/离开：只记录在本网关，不进入逻辑层
+        else if (command == GroupEventCommand.JOIN_LIVE_ROOM.getCommand()
+                || command == GroupEventCommand.LEAVE_LIVE_ROOM.getCommand()) {
+            handleLiveRoom(ctx, msg, command);
+        }
+        // 直播间消息：只转发已加入直播间的连接发送的消息，不做存储前的校验
+        else if (command == GroupEventCommand.MSG_LIVE_ROOM.getCommand()) {
+            JSONObject msgData = JSON.parseObject(JSONObject.toJSONString(msg.getMessagePack()));
+            if (LiveRoomHolder.isMember(appId, msgData.getString("roomId"), (NioSocketChannel) ctx.channel())) {
+                MqMessageProducer.sendMessage(msg, command);
+            }
+        }
         // 其他指令：直接转发到消息队列
         else {
             MqMessageProducer.sendMessage(msg, command);
@@ -198,6 +212,24 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
         SessionSocketHolder.removeUserSession((NioSocketChannel) ctx.channel());
     }
 
+    /**
+     * 处理直播间加入/离开
+     * 成员关系只保存在本网关内存，本网关首个成员加入时登记网关，最后一个成员离开时移除
+     */
+    private void handleLiveRoom(ChannelHandlerContext ctx, Message msg, Integer command) {
+        Integer appId = msg.getMessageHeader().getAppId();
+        JSONObject msgData = JSON.parseObject(JSONObject.toJSONString(msg.getMessagePack()));
+        String roomId = msgData.getString("roomId");
+        if (roomId == null) {
+            return;
+        }
+        if (command == GroupEventCommand.JOIN_LIVE_ROOM.getCommand()) {
+            LiveRoomHolder.join(appId, roomId, (NioSocketChannel) ctx.channel());
+        } else {
+            LiveRoomHolder.leave(appId, roomId, (NioSocketChannel) ctx.channel());
+        }
+    }
+
     /**
      * 处理心跳（PING）
      * 更新最后读取时间，用于心跳检测（避免被判定为空闲连接）
@@ -208,18 +240,34 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
 
     /**
      * 处理单聊/群聊消息
+     * 0. 同一messageId的重发在网关拦截
      * 1. 调用逻辑服务校验消息合法性
      * 2. 校验通过：转发消息到消息队列
      * 3. 校验失败：返回错误响应
      */
     private void handleChatMessage(ChannelHandlerContext ctx, Message msg, Integer command) {
+        Integer appId = msg.getMessageHeader().getAppId();
+        String userId = (String) ctx.channel().attr(AttributeKey.valueOf(Constants.UserId)).get();
+        Integer clientType = msg.getMessageHeader().getClientType();
+        String imei = msg.getMessageHeader().getImei();
+        String messageId = null;
         try {
-            CheckSendMessageReq checkReq = new CheckSendMessageReq();
-            checkReq.setAppId(msg.getMessageHeader().getAppId());
-            checkReq.setCommand(command);
-
             // 解析消息中的发送方和接收方
             JSONObject msgData = JSON.parseObject(JSONObject.toJSONString(msg.getMessagePack()));
+            messageId = msgData.getString("messageId");
+
+            // 客户端重发去重：处理中的直接丢弃，已ACK的重放缓存的ACK
+            MessagePack replayAck = RecentMessageHolder.tryAcquire(appId, userId, clientType, imei, messageId);
+            if (replayAck != null) {
+                if (!RecentMessageHolder.isInFlight(replayAck)) {
+                    ctx.channel().writeAndFlush(replayAck);
+                }
+                return;
+            }
+
+            CheckSendMessageReq checkReq = new CheckSendMessageReq();
+            checkReq.setAppId(appId);
+            checkReq.setCommand(command);
             checkReq.setFromId(msgData.getString("fromId"));
             if (command == MessageCommand.MSG_P2P.getCommand()) {
                 checkReq.setToId(msgData.getString("toId")); // 单聊：接收用户ID
@@ -233,7 +281,8 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
                 // 校验通过：转发消息到消息队列处理
                 MqMessageProducer.sendMessage(msg, command);
             } else {
-                // 校验失败：返回错误ACK
+                // 校验失败：返回错误ACK，并允许客户端后续重试
+                RecentMessageHolder.release(appId, userId, clientType, imei, messageId);
                 Integer ackCommand = (command == MessageCommand.MSG_P2P.getCommand())
                         ? MessageCommand.MSG_ACK.getCommand()
                         : GroupEventCommand.GROUP_MSG_ACK.getCommand();
@@ -247,6 +296,7 @@ public class NettyServerHandler extends SimpleChannelInboundHandler<Message> {
                 ctx.channel().writeAndFlush(ack);
             }
         } catch (Exception e) {
+            RecentMessageHolder.release(appId, userId, clientType, imei, messageId);
             e.printStackTrace();
         }
     }
@@ -0,0 +1,147 @@
+package com.stw.im.tcp.publish;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.tcp.utils.MqFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 投递逻辑层的微批量发送
+ * 按 交换机 + 路由键 攒批, 达到条数或等待超过 lingerMs 即发送一个json数组,
+ * 消息头 imBatch 记录条数. 所有发送都在同一个线程按入队顺序执行, 同一会话的消息顺序不变
+ * @author: stw
+ * @version: 1.0
+ */
+@Slf4j
+public class MqBatchPublisher {
+
+    private static volatile boolean enable = false;
+
+    private static int batchSize;
+
+    private static final Map<BatchKey, Batch> BATCHES = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService flushExecutor;
+
+    public static synchronized void init(Integer size, Integer lingerMs) {
+        if (enable || size == null || size <= 1 || lingerMs == null || lingerMs <= 0) {
+            return;
+        }
+        batchSize = size;
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("mq-batch-publisher");
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(MqBatchPublisher::flushAll, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(MqBatchPublisher::flushAll));
+        enable = true;
+    }
+
+    public static boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 加入批次, 满批时提交给发送线程立即发送
+     */
+    public static void publish(String exchange, String routingKey, String body) {
+        BatchKey key = new BatchKey(exchange, routingKey);
+        Batch batch = BATCHES.computeIfAbsent(key, k -> new Batch());
+        boolean full;
+        synchronized (batch) {
+            batch.bodies.add(body);
+            full = batch.bodies.size() >= batchSize;
+        }
+        if (full) {
+            flushExecutor.execute(() -> flush(key, batch));
+        }
+    }
+
+    private static void flushAll() {
+        for (Map.Entry<BatchKey, Batch> entry : BATCHES.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static synchronized void flush(BatchKey key, Batch batch) {
+        List<String> bodies;
+        synchronized (batch) {
+            if (batch.bodies.isEmpty()) {
+                return;
+            }
+            bodies = batch.bodies;
+            batch.bodies = new ArrayList<>(batchSize);
+        }
+        try {
+            Channel channel = MqFactory.getChannel(key.exchange);
+            if (bodies.size() == 1) {
+                channel.basicPublish(key.exchange, key.routingKey, null,
+                        bodies.get(0).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            StringBuilder builder = new StringBuilder(bodies.size() * 256);
+            builder.append('[');
+            for (int i = 0; i < bodies.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(bodies.get(i));
+            }
+            builder.append(']');
+            Map<String, Object> headers = new HashMap<>();
+            headers.put(Constants.RabbitConstants.BatchHeader, bodies.size());
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().headers(headers).build();
+            channel.basicPublish(key.exchange, key.routingKey, properties,
+                    builder.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.error("批量发送消息异常，交换机: {}，条数: {}，异常信息: {}", key.exchange, bodies.size(), e.getMessage());
+        }
+    }
+
+    private static class Batch {
+        List<String> bodies = new ArrayList<>();
+    }
+
+    private static class BatchKey {
+
+        final String exchange;
+
+        final String routingKey;
+
+        BatchKey(String exchange, String routingKey) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey that = (BatchKey) o;
+            return exchange.equals(that.exchange) && routingKey.equals(that.routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(exchange, routingKey);
+        }
+    }
+}
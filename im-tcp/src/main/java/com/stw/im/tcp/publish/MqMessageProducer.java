@@ -6,20 +6,30 @@ import com.stw.im.codec.proto.Message;
 import com.stw.im.codec.proto.MessageHeader;
 import com.stw.im.common.constant.Constants;
 import com.stw.im.common.enums.command.CommandType;
+import com.stw.im.common.utils.PartitionUtils;
 import com.stw.im.tcp.utils.MqFactory;
 import com.rabbitmq.client.Channel;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * @description: 生产者1号：RabbitMQ消息生产者，负责将TCP层接收的消息按类型路由到不同业务队列
  * 核心功能：根据消息指令（command）的类型，将消息分发到对应的RabbitMQ交换机/队列，
  * 支撑单聊、群聊、好友关系、用户状态等业务模块的解耦通信
+ * 单聊、群聊、用户队列按会话分区，路由键为分区号，同一会话固定投递到同一个分区队列
  * @author: stw
  * @version: 1.0
  */
 @Slf4j
 public class MqMessageProducer {
 
+    private static volatile int partitions = 1;
+
+    public static void init(Integer logicPartitions) {
+        partitions = logicPartitions == null || logicPartitions <= 1 ? 1 : logicPartitions;
+    }
+
     /**
      * 发送消息到RabbitMQ（适用于包含完整Message对象的场景）
      * 主要用于TCP层接收客户端原始消息后转发到业务服务
@@ -27,7 +37,6 @@ public class MqMessageProducer {
      * @param command 消息指令（用于确定消息类型和路由目标）
      */
     public static void sendMessage(Message message, Integer command) {
-        Channel channel = null;
         try {
             // 1. 解析指令类型：取指令第一位字符判断业务类型（如消息、群组、好友、用户）
             String commandStr = command.toString();
@@ -41,25 +50,15 @@ public class MqMessageProducer {
                 return;
             }
 
-            // 3. 获取RabbitMQ通道（由MqFactory管理连接池）
-            channel = MqFactory.getChannel(channelName);
-
-            // 4. 构建消息体：将业务数据转换为JSON，并附加必要的元信息
+            // 3. 构建消息体：将业务数据转换为JSON，并附加必要的元信息
             JSONObject messageJson = (JSONObject) JSON.toJSON(message.getMessagePack());
             addBaseMessageInfo(messageJson, command, message.getMessageHeader());
 
-            // 5. 发送消息到指定队列
-            channel.basicPublish(
-                    channelName,  // 交换机名称（与队列同名，简化绑定）
-                    "",           // 路由键（此处无需特殊路由，使用默认）
-                    null,         // 消息属性（默认）
-                    messageJson.toJSONString().getBytes()  // 消息体字节数组
-            );
+            // 4. 发送消息到指定队列
+            publish(channelName, messageJson);
 
         } catch (Exception e) {
             log.error("发送消息异常，指令: {}，异常信息: {}", command, e.getMessage());
-        } finally {
-            // 注意：此处不关闭channel，由MqFactory统一管理通道生命周期
         }
     }
 
@@ -71,7 +70,6 @@ public class MqMessageProducer {
      * @param command 消息指令（用于确定消息类型和路由目标）
      */
     public static void sendMessage(Object message, MessageHeader header, Integer command) {
-        Channel channel = null;
         try {
             // 1. 解析指令类型：同sendMessage(Message, Integer)逻辑
             String commandStr = command.toString();
@@ -85,26 +83,49 @@ public class MqMessageProducer {
                 return;
             }
 
-            // 3. 获取RabbitMQ通道
-            channel = MqFactory.getChannel(channelName);
-
-            // 4. 构建消息体：转换业务对象为JSON，附加元信息
+            // 3. 构建消息体：转换业务对象为JSON，附加元信息
             JSONObject messageJson = (JSONObject) JSON.toJSON(message);
             addBaseMessageInfo(messageJson, command, header);
 
-            // 5. 发送消息
-            channel.basicPublish(
-                    channelName,
-                    "",
-                    null,
-                    messageJson.toJSONString().getBytes()
-            );
+            // 4. 发送消息
+            publish(channelName, messageJson);
 
         } catch (Exception e) {
             log.error("发送消息异常，指令: {}，异常信息: {}", command, e.getMessage());
         }
     }
 
+    /**
+     * 单聊、群聊队列开启批量时交给MqBatchPublisher攒批发送（按分区攒批），其余直接发送
+     * 注意：此处不关闭channel，由MqFactory统一管理通道生命周期
+     * @param channelName 交换机名称
+     * @param messageJson 消息体
+     */
+    private static void publish(String channelName, JSONObject messageJson) throws Exception {
+        String body = messageJson.toJSONString();
+        String routingKey = routingKey(channelName, messageJson);
+        if (MqBatchPublisher.isEnable()
+                && (Constants.RabbitConstants.Im2MessageService.equals(channelName)
+                || Constants.RabbitConstants.Im2GroupService.equals(channelName))) {
+            MqBatchPublisher.publish(channelName, routingKey, body);
+            return;
+        }
+        Channel channel = MqFactory.getChannel(channelName);
+        channel.basicPublish(channelName, routingKey, null, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 分区队列的路由键为会话所在分区，好友队列不分区
+     */
+    private static String routingKey(String channelName, JSONObject messageJson) {
+        if (Constants.RabbitConstants.Im2MessageService.equals(channelName)
+                || Constants.RabbitConstants.Im2GroupService.equals(channelName)
+                || Constants.RabbitConstants.Im2UserService.equals(channelName)) {
+            return String.valueOf(PartitionUtils.partition(messageJson, partitions));
+        }
+        return "";
+    }
+
     /**
      * 根据指令类型获取对应的RabbitMQ队列名称
      * @param commandType 业务指令类型（消息、群组、好友、用户）
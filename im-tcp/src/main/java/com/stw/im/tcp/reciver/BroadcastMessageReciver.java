@@ -0,0 +1,125 @@
+package com.stw.im.tcp.reciver;
+
+import com.alibaba.fastjson.JSONObject;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.common.constant.Constants;
+import com.stw.im.tcp.utils.MqFactory;
+import com.stw.im.tcp.utils.SessionSocketHolder;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @description: 全员广播接收
+ * 逻辑层向fanout交换机只发一次, 每个网关从自己的队列收到后遍历本地连接,
+ * 按 broadcastBatchSize 分批写出, 批次之间间隔 broadcastBatchIntervalMs, 避免瞬间打满出口带宽.
+ * 广播在单独的线程里依次执行, 不阻塞mq消费; 不可写的连接直接跳过, 由客户端离线同步补齐
+ * @author: stw
+ * @version: 1.0
+ */
+@Slf4j
+public class BroadcastMessageReciver {
+
+    private static String brokerId;
+
+    private static int batchSize;
+
+    private static long batchIntervalMs;
+
+    private static ExecutorService executor;
+
+    private static void startReciverMessage() {
+        try {
+            String queueName = Constants.RabbitConstants.Broadcast2Im + brokerId;
+            Channel channel = MqFactory.getChannel(queueName);
+            channel.exchangeDeclare(Constants.RabbitConstants.Broadcast2Im, BuiltinExchangeType.FANOUT, true);
+            channel.queueDeclare(queueName, true, false, false, null);
+            channel.queueBind(queueName, Constants.RabbitConstants.Broadcast2Im, "");
+
+            channel.basicConsume(queueName, false,
+                    new DefaultConsumer(channel) {
+                        @Override
+                        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                            try {
+                                String msgStr = new String(body, StandardCharsets.UTF_8);
+                                log.info("broadcast {}", msgStr);
+                                MessagePack messagePack = JSONObject.parseObject(msgStr, MessagePack.class);
+                                executor.execute(() -> broadcast(messagePack));
+                                channel.basicAck(envelope.getDeliveryTag(), false);
+                            } catch (Exception e) {
+                                log.error("broadcast message error", e);
+                                channel.basicNack(envelope.getDeliveryTag(), false, false);
+                            }
+                        }
+                    }
+            );
+        } catch (Exception e) {
+            log.error("start broadcast reciver error", e);
+        }
+    }
+
+    private static void broadcast(MessagePack messagePack) {
+        List<NioSocketChannel> channels = SessionSocketHolder.getChannels(messagePack.getAppId(),
+                messagePack.getClientTypes());
+        int written = 0;
+        for (int from = 0; from < channels.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, channels.size());
+            for (NioSocketChannel channel : channels.subList(from, to)) {
+                if (!channel.isActive() || !channel.isWritable()) {
+                    continue;
+                }
+                channel.writeAndFlush(packFor(channel, messagePack));
+                written++;
+            }
+            if (to < channels.size() && batchIntervalMs > 0) {
+                try {
+                    Thread.sleep(batchIntervalMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        log.info("broadcast finished, appId={}, channels={}, written={}", messagePack.getAppId(),
+                channels.size(), written);
+    }
+
+    /**
+     * 每个连接一个只带自身信息的包, data共用
+     */
+    private static MessagePack packFor(NioSocketChannel channel, MessagePack messagePack) {
+        MessagePack pack = new MessagePack();
+        pack.setAppId(messagePack.getAppId());
+        pack.setToId((String) channel.attr(AttributeKey.valueOf(Constants.UserId)).get());
+        Integer clientType = (Integer) channel.attr(AttributeKey.valueOf(Constants.ClientType)).get();
+        pack.setClientType(clientType == null ? 0 : clientType);
+        pack.setImei((String) channel.attr(AttributeKey.valueOf(Constants.Imei)).get());
+        pack.setCommand(messagePack.getCommand());
+        pack.setData(messagePack.getData());
+        return pack;
+    }
+
+    public static void init(String brokerId, Integer batchSize, Integer batchIntervalMs) {
+        BroadcastMessageReciver.brokerId = brokerId;
+        BroadcastMessageReciver.batchSize = batchSize == null || batchSize <= 0 ? 2000 : batchSize;
+        BroadcastMessageReciver.batchIntervalMs = batchIntervalMs == null ? 0 : batchIntervalMs;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("broadcast-writer");
+            return thread;
+        });
+        startReciverMessage();
+    }
+}
@@ -1,5 +1,6 @@
 package com.stw.im.tcp.reciver;
 
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.stw.im.codec.proto.MessagePack;
 import com.stw.im.common.constant.Constants;
@@ -43,11 +44,18 @@ public class MessageReciver {
                             try {
                                 String msgStr = new String(body);
                                 log.info(msgStr);
-                                MessagePack messagePack =
-                                        JSONObject.parseObject(msgStr, MessagePack.class);
-                                BaseProcess messageProcess = ProcessFactory
-                                        .getMessageProcess(messagePack.getCommand());
-                                messageProcess.process(messagePack);
+                                // 服务端批量下发时一条mq消息是同一网关的多个MessagePack
+                                if (msgStr.startsWith("[")) {
+                                    for (MessagePack messagePack : JSONArray.parseArray(msgStr, MessagePack.class)) {
+                                        ProcessFactory.getMessageProcess(messagePack.getCommand()).process(messagePack);
+                                    }
+                                } else {
+                                    MessagePack messagePack =
+                                            JSONObject.parseObject(msgStr, MessagePack.class);
+                                    BaseProcess messageProcess = ProcessFactory
+                                            .getMessageProcess(messagePack.getCommand());
+                                    messageProcess.process(messagePack);
+                                }
 
                                 channel.basicAck(envelope.getDeliveryTag(),false);
 
@@ -1,9 +1,16 @@
 package com.stw.im.tcp.reciver.process;
 
+import com.alibaba.fastjson.JSONObject;
 import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.common.enums.command.GroupEventCommand;
+import com.stw.im.common.enums.command.MessageCommand;
+import com.stw.im.common.model.UserClientDto;
+import com.stw.im.tcp.utils.RecentMessageHolder;
 import com.stw.im.tcp.utils.SessionSocketHolder;
 import io.netty.channel.socket.nio.NioSocketChannel;
 
+import java.util.List;
+
 /**
  * @description:
  * @author: stw
@@ -15,10 +22,16 @@ public abstract class BaseProcess {
 
     public void process(MessagePack messagePack){
         processBefore();
+        if (messagePack.getRecipients() != null && !messagePack.getRecipients().isEmpty()) {
+            processRecipients(messagePack);
+            processAfter();
+            return;
+        }
         NioSocketChannel channel = SessionSocketHolder.get(messagePack.getAppId(),
                 messagePack.getToId(), messagePack.getClientType(),
                 messagePack.getImei());
         if(channel != null){
+            recordAck(messagePack);
             channel.writeAndFlush(messagePack);
         }
         processAfter();
@@ -26,4 +39,54 @@ public abstract class BaseProcess {
 
     public abstract void processAfter();
 
+    /**
+     * 批量下发: 按接收端列表查本地连接, 每个连接写一个只带自身信息的包, data共用
+     */
+    private void processRecipients(MessagePack messagePack) {
+        List<UserClientDto> recipients = messagePack.getRecipients();
+        for (UserClientDto recipient : recipients) {
+            int clientType = recipient.getClientType() == null ? 0 : recipient.getClientType();
+            NioSocketChannel channel = SessionSocketHolder.get(recipient.getAppId(),
+                    recipient.getUserId(), clientType, recipient.getImei());
+            if (channel == null) {
+                continue;
+            }
+            MessagePack pack = new MessagePack();
+            pack.setAppId(recipient.getAppId());
+            pack.setToId(recipient.getUserId());
+            pack.setClientType(clientType);
+            pack.setImei(recipient.getImei());
+            pack.setCommand(messagePack.getCommand());
+            pack.setData(messagePack.getData());
+            channel.writeAndFlush(pack);
+        }
+    }
+
+    /**
+     * 发送方ACK写入最近消息窗口, 客户端重发时由网关直接重放;
+     * 失败的ACK不缓存, 客户端重试仍进入逻辑层
+     */
+    private void recordAck(MessagePack messagePack) {
+        Integer command = messagePack.getCommand();
+        if (command == null || (command != MessageCommand.MSG_ACK.getCommand()
+                && command != GroupEventCommand.GROUP_MSG_ACK.getCommand())
+                || !(messagePack.getData() instanceof JSONObject)) {
+            return;
+        }
+        JSONObject responseVO = (JSONObject) messagePack.getData();
+        JSONObject ackData = responseVO.getJSONObject("data");
+        if (ackData == null) {
+            return;
+        }
+        String messageId = ackData.getString("messageId");
+        Integer code = responseVO.getInteger("code");
+        if (code != null && code == 200) {
+            RecentMessageHolder.ack(messagePack.getAppId(), messagePack.getToId(),
+                    messagePack.getClientType(), messagePack.getImei(), messageId, messagePack);
+        } else {
+            RecentMessageHolder.release(messagePack.getAppId(), messagePack.getToId(),
+                    messagePack.getClientType(), messagePack.getImei(), messageId);
+        }
+    }
+
 }
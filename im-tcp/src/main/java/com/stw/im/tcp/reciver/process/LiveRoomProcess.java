@@ -0,0 +1,34 @@
+package com.stw.im.tcp.reciver.process;
+
+import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.tcp.utils.LiveRoomHolder;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * @description: 直播间消息下发
+ * 逻辑层每个网关只发一条(toId为直播间id), 网关按本地成员写出;
+ * 编码只用到command和data, 所有成员共用同一个包. 出站缓冲已满(不可写)的连接直接丢弃本条, 不做重试
+ * @author: stw
+ * @version: 1.0
+ */
+public class LiveRoomProcess extends BaseProcess {
+
+    @Override
+    public void processBefore() {
+
+    }
+
+    @Override
+    public void process(MessagePack messagePack) {
+        for (NioSocketChannel channel : LiveRoomHolder.getMembers(messagePack.getAppId(), messagePack.getToId())) {
+            if (channel.isActive() && channel.isWritable()) {
+                channel.writeAndFlush(messagePack);
+            }
+        }
+    }
+
+    @Override
+    public void processAfter() {
+
+    }
+}
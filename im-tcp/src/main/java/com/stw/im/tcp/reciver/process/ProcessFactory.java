@@ -1,5 +1,7 @@
 package com.stw.im.tcp.reciver.process;
 
+import com.stw.im.common.enums.command.GroupEventCommand;
+
 /**
  * @description:
  * @author: stw
@@ -9,6 +11,8 @@ public class ProcessFactory {
 
     private static BaseProcess defaultProcess;
 
+    private static BaseProcess liveRoomProcess = new LiveRoomProcess();
+
     static {
         defaultProcess = new BaseProcess() {
             @Override
@@ -24,6 +28,9 @@ public class ProcessFactory {
     }
 
     public static BaseProcess getMessageProcess(Integer command) {
+        if (command != null && command == GroupEventCommand.MSG_LIVE_ROOM.getCommand()) {
+            return liveRoomProcess;
+        }
         return defaultProcess;
     }
 
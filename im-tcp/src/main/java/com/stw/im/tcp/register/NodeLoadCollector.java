@@ -0,0 +1,62 @@
+package com.stw.im.tcp.register;
+
+import com.stw.im.common.route.NodeInfo;
+import com.stw.im.tcp.utils.SessionSocketHolder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description: 采集网关负载: 连接数、io线程积压任务数、cpu
+ * @author: stw
+ * @version: 1.0
+ */
+public class NodeLoadCollector {
+
+    private final List<EventLoopGroup> eventLoopGroups = new ArrayList<>();
+
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+
+    public NodeLoadCollector(EventLoopGroup... groups) {
+        for (EventLoopGroup group : groups) {
+            if (group != null) {
+                eventLoopGroups.add(group);
+            }
+        }
+    }
+
+    public void fill(NodeInfo nodeInfo) {
+        nodeInfo.setConnectionCount(SessionSocketHolder.size());
+        nodeInfo.setPendingTasks(pendingTasks());
+        nodeInfo.setCpuLoad(cpuLoad());
+        nodeInfo.setLoadUpdateTime(System.currentTimeMillis());
+    }
+
+    private int pendingTasks() {
+        int pending = 0;
+        for (EventLoopGroup group : eventLoopGroups) {
+            for (EventExecutor executor : group) {
+                if (executor instanceof SingleThreadEventExecutor) {
+                    pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+                }
+            }
+        }
+        return pending;
+    }
+
+    private double cpuLoad() {
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuLoad();
+        }
+        double loadAverage = osBean.getSystemLoadAverage();
+        if (loadAverage < 0) {
+            return -1;
+        }
+        return Math.min(1D, loadAverage / osBean.getAvailableProcessors());
+    }
+}
@@ -1,10 +1,18 @@
 package com.stw.im.tcp.register;
 
+import com.alibaba.fastjson.JSONObject;
 import com.stw.im.codec.config.BootstrapConfig;
 import com.stw.im.common.constant.Constants;
+import com.stw.im.common.route.NodeInfo;
+import org.I0Itec.zkclient.IZkStateListener;
+import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @description:
  * @author: stw
@@ -20,23 +28,98 @@ public class RegistryZK implements Runnable {
 
     private BootstrapConfig.TcpConfig tcpConfig;
 
+    private NodeLoadCollector loadCollector;
+
+    private final long registerTime = System.currentTimeMillis();
+
+    private ScheduledExecutorService loadReportExecutor;
+
     public RegistryZK(ZKit zKit, String ip, BootstrapConfig.TcpConfig tcpConfig) {
+        this(zKit, ip, tcpConfig, null);
+    }
+
+    public RegistryZK(ZKit zKit, String ip, BootstrapConfig.TcpConfig tcpConfig, NodeLoadCollector loadCollector) {
         this.zKit = zKit;
         this.ip = ip;
         this.tcpConfig = tcpConfig;
+        this.loadCollector = loadCollector;
     }
 
     @Override
     public void run() {
         zKit.createRootNode();
-        String tcpPath = Constants.ImCoreZkRoot + Constants.ImCoreZkRootTcp + "/" + ip + ":" + tcpConfig.getTcpPort();
-        zKit.createNode(tcpPath);
+        register();
+
+        // 临时节点随会话过期而删除, 新会话建立后需要重新注册
+        zKit.getZkClient().subscribeStateChanges(new IZkStateListener() {
+            @Override
+            public void handleStateChanged(Watcher.Event.KeeperState state) {
+                logger.info("zookeeper state changed, state=[{}]", state);
+            }
+
+            @Override
+            public void handleNewSession() {
+                logger.info("zookeeper new session, re-registry node");
+                register();
+            }
+        });
+
+        startLoadReport();
+    }
+
+    /**
+     * 定时把负载写入节点数据, 逻辑层watch节点数据做负载感知路由
+     */
+    private void startLoadReport() {
+        Long interval = tcpConfig.getLoadReportInterval();
+        if (loadCollector == null || interval == null || interval <= 0) {
+            return;
+        }
+        loadReportExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("zk-load-report");
+            return thread;
+        });
+        loadReportExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                zKit.writeNodeData(tcpPath(), buildNodeData(tcpConfig.getTcpPort(), "tcp"));
+                zKit.writeNodeData(webPath(), buildNodeData(tcpConfig.getWebSocketPort(), "web"));
+            } catch (Exception e) {
+                // 会话过期期间节点不存在, 新会话重新注册后恢复
+                logger.warn("Report node load to zookeeper error", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private String tcpPath() {
+        return Constants.ImCoreZkRoot + Constants.ImCoreZkRootTcp + "/" + ip + ":" + tcpConfig.getTcpPort();
+    }
+
+    private String webPath() {
+        return Constants.ImCoreZkRoot + Constants.ImCoreZkRootWeb + "/" + ip + ":" + tcpConfig.getWebSocketPort();
+    }
+
+    private void register() {
+        String tcpPath = tcpPath();
+        zKit.createEphemeralNode(tcpPath, buildNodeData(tcpConfig.getTcpPort(), "tcp"));
         logger.info("Registry zookeeper tcpPath success, msg=[{}]", tcpPath);
 
-        String webPath =
-                Constants.ImCoreZkRoot + Constants.ImCoreZkRootWeb + "/" + ip + ":" + tcpConfig.getWebSocketPort();
-        zKit.createNode(webPath);
-        logger.info("Registry zookeeper webPath success, msg=[{}]", tcpPath);
+        String webPath = webPath();
+        zKit.createEphemeralNode(webPath, buildNodeData(tcpConfig.getWebSocketPort(), "web"));
+        logger.info("Registry zookeeper webPath success, msg=[{}]", webPath);
+    }
 
+    private String buildNodeData(Integer port, String type) {
+        NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.setBrokerId(tcpConfig.getBrokerId());
+        nodeInfo.setIp(ip);
+        nodeInfo.setPort(port);
+        nodeInfo.setType(type);
+        nodeInfo.setRegisterTime(registerTime);
+        if (loadCollector != null) {
+            loadCollector.fill(nodeInfo);
+        }
+        return JSONObject.toJSONString(nodeInfo);
     }
 }
@@ -16,6 +16,10 @@ public class ZKit {
         this.zkClient = zkClient;
     }
 
+    public ZkClient getZkClient() {
+        return zkClient;
+    }
+
     //im-coreRoot/tcp/ip:port
     public void createRootNode(){
         boolean exists = zkClient.exists(Constants.ImCoreZkRoot);
@@ -31,7 +35,7 @@ public class ZKit {
 
         boolean webExists = zkClient.exists(Constants.ImCoreZkRoot +
                 Constants.ImCoreZkRootWeb);
-        if(!tcpExists){
+        if(!webExists){
             zkClient.createPersistent(Constants.ImCoreZkRoot +
                     Constants.ImCoreZkRootWeb);
         }
@@ -43,4 +47,21 @@ public class ZKit {
             zkClient.createPersistent(path);
         }
     }
+
+    /**
+     * 以临时节点注册网关, 会话断开后节点自动消失, 逻辑层的watch随之剔除该网关
+     * 同名节点可能是上一个会话残留(进程快速重启), 先删除再创建
+     * @param path ip+port
+     * @param data 节点元数据(json)
+     */
+    public void createEphemeralNode(String path, String data){
+        if(zkClient.exists(path)){
+            zkClient.delete(path);
+        }
+        zkClient.createEphemeral(path, data);
+    }
+
+    public void writeNodeData(String path, String data){
+        zkClient.writeData(path, data);
+    }
 }
@@ -109,4 +109,8 @@ public class LimServer {
         }
         logger.info("TCP服务器已关闭");
     }
-}
\ No newline at end of file
+
+    public EventLoopGroup getSubGroup() {
+        return subGroup;
+    }
+}
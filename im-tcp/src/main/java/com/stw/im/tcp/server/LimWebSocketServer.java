@@ -71,4 +71,8 @@ public class LimWebSocketServer {
     public void start(){
         this.server.bind(this.config.getWebSocketPort());
     }
+
+    public EventLoopGroup getSubGroup() {
+        return subGroup;
+    }
 }
@@ -0,0 +1,167 @@
+package com.stw.im.tcp.utils;
+
+import com.stw.im.common.constant.Constants;
+import com.stw.im.tcp.redis.RedisManager;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBatch;
+import org.redisson.api.RScoredSortedSetAsync;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 直播间成员(只在本网关内存中)
+ * 直播间人数多且成员变化频繁, 不落库也不存redis成员列表, 只由连接所在的网关记录.
+ * 本网关有成员的直播间在 appId:liveRoom:roomId:brokers(zset, score为心跳时间) 中登记brokerId,
+ * 每 LiveRoomBrokerTtlMillis/3 刷新一次, 网关宕机后登记自然过期, 逻辑层只取未过期的网关.
+ * 逻辑层每条直播间消息只发给登记的网关, 由网关按本地成员写出.
+ * redis读写都在单独的登记线程中执行, 不阻塞netty io线程; 登记时按本地成员是否存在决定加入或移除, 与提交顺序无关
+ * @author: stw
+ * @version: 1.0
+ */
+@Slf4j
+public class LiveRoomHolder {
+
+    private static final AttributeKey<Set<String>> ROOMS = AttributeKey.valueOf("liveRooms");
+
+    /** appId:roomId -> 本网关上的成员连接 */
+    private static final Map<String, Set<NioSocketChannel>> MEMBERS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService REGISTRY = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        thread.setName("live-room-registry");
+        return thread;
+    });
+
+    private static String brokerId;
+
+    public static void init(String brokerId) {
+        LiveRoomHolder.brokerId = brokerId;
+        long interval = Constants.RedisConstants.LiveRoomBrokerTtlMillis / 3;
+        REGISTRY.scheduleWithFixedDelay(LiveRoomHolder::refreshAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static void join(Integer appId, String roomId, NioSocketChannel channel) {
+        String key = appId + ":" + roomId;
+        boolean[] created = new boolean[1];
+        MEMBERS.compute(key, (k, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+                created[0] = true;
+            }
+            members.add(channel);
+            return members;
+        });
+        channel.attr(ROOMS).setIfAbsent(ConcurrentHashMap.newKeySet());
+        channel.attr(ROOMS).get().add(key);
+        if (created[0]) {
+            REGISTRY.execute(() -> sync(appId, roomId));
+        }
+    }
+
+    public static void leave(Integer appId, String roomId, NioSocketChannel channel) {
+        String key = appId + ":" + roomId;
+        Set<String> rooms = channel.attr(ROOMS).get();
+        if (rooms != null) {
+            rooms.remove(key);
+        }
+        boolean[] emptied = new boolean[1];
+        MEMBERS.computeIfPresent(key, (k, members) -> {
+            members.remove(channel);
+            if (!members.isEmpty()) {
+                return members;
+            }
+            emptied[0] = true;
+            return null;
+        });
+        if (emptied[0]) {
+            REGISTRY.execute(() -> sync(appId, roomId));
+        }
+    }
+
+    /**
+     * 连接断开时退出所有直播间
+     */
+    public static void leaveAll(NioSocketChannel channel) {
+        Set<String> rooms = channel.attr(ROOMS).get();
+        if (rooms == null) {
+            return;
+        }
+        for (String key : rooms.toArray(new String[0])) {
+            int index = key.indexOf(':');
+            try {
+                leave(Integer.valueOf(key.substring(0, index)), key.substring(index + 1), channel);
+            } catch (Exception e) {
+                log.error("leave live room error, room={}", key, e);
+            }
+        }
+    }
+
+    public static Set<NioSocketChannel> getMembers(Integer appId, String roomId) {
+        Set<NioSocketChannel> members = MEMBERS.get(appId + ":" + roomId);
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    public static boolean isMember(Integer appId, String roomId, NioSocketChannel channel) {
+        return getMembers(appId, roomId).contains(channel);
+    }
+
+    /**
+     * 按当前本地成员登记或移除本网关, 在登记线程中执行
+     */
+    private static void sync(Integer appId, String roomId) {
+        try {
+            RBatch batch = RedisManager.getRedissonClient().createBatch();
+            RScoredSortedSetAsync<String> brokers = batch.getScoredSortedSet(brokersKey(appId, roomId));
+            if (MEMBERS.containsKey(appId + ":" + roomId)) {
+                register(brokers, System.currentTimeMillis());
+            } else {
+                brokers.removeAsync(brokerId);
+            }
+            batch.execute();
+        } catch (Exception e) {
+            log.error("sync live room broker error, appId={}, roomId={}", appId, roomId, e);
+        }
+    }
+
+    /**
+     * 刷新本网关所有直播间的心跳, 顺带清理过期的网关
+     */
+    private static void refreshAll() {
+        try {
+            long now = System.currentTimeMillis();
+            RBatch batch = RedisManager.getRedissonClient().createBatch();
+            int count = 0;
+            for (String key : MEMBERS.keySet()) {
+                int index = key.indexOf(':');
+                register(batch.getScoredSortedSet(brokersKey(Integer.valueOf(key.substring(0, index)),
+                        key.substring(index + 1))), now);
+                count++;
+            }
+            if (count > 0) {
+                batch.execute();
+            }
+        } catch (Exception e) {
+            log.error("refresh live room brokers error", e);
+        }
+    }
+
+    private static void register(RScoredSortedSetAsync<String> brokers, long now) {
+        long ttl = Constants.RedisConstants.LiveRoomBrokerTtlMillis;
+        brokers.addAsync(now, brokerId);
+        brokers.removeRangeByScoreAsync(0, true, now - ttl, false);
+        brokers.expireAsync(ttl, TimeUnit.MILLISECONDS);
+    }
+
+    private static String brokersKey(Integer appId, String roomId) {
+        return appId + ":" + Constants.RedisConstants.LiveRoom + ":" + roomId + ":brokers";
+    }
+}
@@ -0,0 +1,159 @@
+package com.stw.im.tcp.utils;
+
+import com.stw.im.codec.proto.MessagePack;
+import com.stw.im.common.model.UserClientDto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端最近发送的messageId窗口
+ * 弱网下客户端收不到ACK会用同一个messageId重发, 在网关直接拦截:
+ * 处理中的重复消息直接丢弃, 已有ACK的重放缓存的ACK, 不再走校验、MQ和逻辑层
+ * 按客户端(appId + userId + clientType + imei)维护, 断线重连后窗口仍然有效
+ */
+public class RecentMessageHolder {
+
+    /** 每个客户端记录的最近messageId数 */
+    private static volatile int windowSize = 64;
+
+    /** 处理中状态的有效期, 超过后允许重发再次进入逻辑层(ACK可能已丢失) */
+    private static final long IN_FLIGHT_TIMEOUT = 10000L;
+
+    /** 窗口闲置超过该时间清理 */
+    private static final long IDLE_TIMEOUT = 300000L;
+
+    private static final Map<UserClientDto, Window> WINDOWS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService CLEANER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        thread.setName("recent-message-cleaner");
+        return thread;
+    });
+
+    static {
+        CLEANER.scheduleWithFixedDelay(RecentMessageHolder::cleanIdle, 60, 60, TimeUnit.SECONDS);
+    }
+
+    public static void init(Integer size) {
+        if (size != null && size > 0) {
+            windowSize = size;
+        }
+    }
+
+    /**
+     * 记录一条上行消息
+     * @return null 表示新消息需要继续处理; IN_FLIGHT_PACK 表示正在处理中应丢弃; 其它为需要重放的ACK
+     */
+    public static MessagePack tryAcquire(Integer appId, String userId, Integer clientType, String imei,
+                                         String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        Window window = WINDOWS.computeIfAbsent(buildKey(appId, userId, clientType, imei), k -> new Window());
+        return window.tryAcquire(messageId);
+    }
+
+    /**
+     * 收到逻辑层下发的ACK, 缓存起来用于重放
+     */
+    public static void ack(Integer appId, String userId, Integer clientType, String imei,
+                           String messageId, MessagePack ackPack) {
+        Window window = WINDOWS.get(buildKey(appId, userId, clientType, imei));
+        if (window != null && messageId != null) {
+            window.ack(messageId, ackPack);
+        }
+    }
+
+    /**
+     * 处理失败(校验不通过、异常), 移除记录允许客户端重试
+     */
+    public static void release(Integer appId, String userId, Integer clientType, String imei,
+                               String messageId) {
+        Window window = WINDOWS.get(buildKey(appId, userId, clientType, imei));
+        if (window != null && messageId != null) {
+            window.release(messageId);
+        }
+    }
+
+    public static boolean isInFlight(MessagePack pack) {
+        return pack == Window.IN_FLIGHT_PACK;
+    }
+
+    private static UserClientDto buildKey(Integer appId, String userId, Integer clientType, String imei) {
+        UserClientDto dto = new UserClientDto();
+        dto.setAppId(appId);
+        dto.setUserId(userId);
+        dto.setClientType(clientType);
+        dto.setImei(imei);
+        return dto;
+    }
+
+    private static void cleanIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<UserClientDto, Window>> iterator = WINDOWS.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().lastAccessTime > IDLE_TIMEOUT) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Window {
+
+        static final MessagePack IN_FLIGHT_PACK = new MessagePack();
+
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > windowSize;
+            }
+        };
+
+        synchronized MessagePack tryAcquire(String messageId) {
+            long now = System.currentTimeMillis();
+            lastAccessTime = now;
+            Entry entry = entries.get(messageId);
+            if (entry != null) {
+                if (entry.ackPack != null) {
+                    return entry.ackPack;
+                }
+                if (now - entry.time < IN_FLIGHT_TIMEOUT) {
+                    return IN_FLIGHT_PACK;
+                }
+            }
+            entries.put(messageId, new Entry(now));
+            return null;
+        }
+
+        synchronized void ack(String messageId, MessagePack ackPack) {
+            Entry entry = entries.get(messageId);
+            if (entry != null) {
+                entry.ackPack = ackPack;
+            }
+        }
+
+        synchronized void release(String messageId) {
+            entries.remove(messageId);
+        }
+    }
+
+    private static class Entry {
+
+        final long time;
+
+        MessagePack ackPack;
+
+        Entry(long time) {
+            this.time = time;
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.redisson.api.RMap;
 import org.redisson.api.RedissonClient;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -92,6 +93,31 @@ public class SessionSocketHolder {
         return channels;
     }
 
+    /**
+     * 当前节点上某个app的所有连接(全员广播), 可按客户端类型过滤
+     * @param appId 应用ID
+     * @param clientTypes 客户端类型, 为空时不过滤
+     * @return 连接快照, 遍历期间新登录的连接不包含在内
+     */
+    public static List<NioSocketChannel> getChannels(Integer appId, Collection<Integer> clientTypes) {
+        List<NioSocketChannel> channels = new ArrayList<>();
+        boolean filter = clientTypes != null && !clientTypes.isEmpty();
+        CHANNELS.forEach((client, channel) -> {
+            if (appId.equals(client.getAppId())
+                    && (!filter || clientTypes.contains(client.getClientType()))) {
+                channels.add(channel);
+            }
+        });
+        return channels;
+    }
+
+    /**
+     * 当前节点已登录的连接数
+     */
+    public static int size() {
+        return CHANNELS.size();
+    }
+
     /**
      * 从本地缓存中移除指定用户客户端的Channel映射
      * @param appId 应用ID
@@ -155,6 +181,9 @@ public class SessionSocketHolder {
         MqMessageProducer.sendMessage(userStatusChangeNotifyPack, messageHeader,
                 UserEventCommand.USER_ONLINE_STATUS_CHANGE.getCommand());
 
+        // 退出所有直播间
+        LiveRoomHolder.leaveAll(nioSocketChannel);
+
         // 关闭连接
         nioSocketChannel.close();
     }
@@ -202,6 +231,9 @@ public class SessionSocketHolder {
         MqMessageProducer.sendMessage(userStatusChangeNotifyPack, messageHeader,
                 UserEventCommand.USER_ONLINE_STATUS_CHANGE.getCommand());
 
+        // 退出所有直播间
+        LiveRoomHolder.leaveAll(nioSocketChannel);
+
         // 关闭连接
         nioSocketChannel.close();
     }